@@ -27,9 +27,13 @@ import org.spf4j.base.SysExits;
 import org.spf4j.base.TimeSource;
 import org.spf4j.concurrent.DefaultContextAwareExecutor;
 import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.demo.resources.live.CachingFileStore;
 import org.spf4j.demo.resources.live.FileStore;
 import org.spf4j.demo.resources.live.FSFileStore;
+import org.spf4j.demo.resources.live.InMemoryFileStore;
+import org.spf4j.demo.resources.live.LiveEdgeFileStore;
 import org.spf4j.demo.resources.live.ReplicatedFileStoreResource;
+import org.spf4j.demo.resources.live.SegmentLogFileStore;
 import org.spf4j.grizzly.JerseyService;
 import org.spf4j.grizzly.JerseyServiceBuilder;
 import org.spf4j.grizzly.JvmServices;
@@ -152,7 +156,45 @@ public class Main {
                 } catch (IOException ex) {
                   throw new UncheckedIOException(ex);
                 }
-                bind(new FSFileStore(videoPath, 30, TimeUnit.MINUTES))
+                int videoCacheMB = Env.getValue("APP_VIDEO_CACHE_MB", 32);
+                int groupQuotaMB = Env.getValue("APP_VIDEO_GROUP_QUOTA_MB", 0);
+                int storeQuotaMB = Env.getValue("APP_VIDEO_STORE_QUOTA_MB", 0);
+                int minFreeMB = Env.getValue("APP_VIDEO_MIN_FREE_MB", 256);
+                String storeType = Env.getValue("APP_VIDEO_STORE", "fs");
+                int retentionMinutes = Env.getValue("APP_VIDEO_RETENTION_MIN", 30);
+                FileStore localStore;
+                if ("segmentlog".equals(storeType)) {
+                  int segmentLogMB = Env.getValue("APP_VIDEO_SEGMENT_LOG_MB", 64);
+                  boolean forceOnCommit = Boolean.parseBoolean(Env.getValue("APP_VIDEO_SEGMENT_LOG_FORCE", "false"));
+                  try {
+                    localStore = new SegmentLogFileStore(logPath.resolve("videoLogs"), segmentLogMB * 1024L * 1024L,
+                            retentionMinutes, TimeUnit.MINUTES, forceOnCommit);
+                  } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                  }
+                } else if ("memory".equals(storeType)) {
+                  int memoryMB = Env.getValue("APP_VIDEO_MEMORY_MB", 256);
+                  localStore = new InMemoryFileStore(memoryMB * 1024L * 1024L, retentionMinutes, TimeUnit.MINUTES);
+                } else {
+                  localStore = new FSFileStore(videoPath, retentionMinutes, TimeUnit.MINUTES,
+                          groupQuotaMB > 0 ? groupQuotaMB * 1024L * 1024L : Long.MAX_VALUE,
+                          storeQuotaMB > 0 ? storeQuotaMB * 1024L * 1024L : Long.MAX_VALUE,
+                          minFreeMB * 1024L * 1024L);
+                }
+                int liveEdgeFiles = Env.getValue("APP_VIDEO_LIVE_EDGE_FILES", 0);
+                if (liveEdgeFiles > 0) {
+                  long liveEdgeBytes = Env.getValue("APP_VIDEO_LIVE_EDGE_MB", 64) * 1024L * 1024L;
+                  // a quarter of the budget, at least 1 MB (or the whole budget if smaller), at most 16 MB.
+                  long maxEntryBytes = Math.min(liveEdgeBytes,
+                          Math.max(1024 * 1024, Math.min(liveEdgeBytes / 4, 16 * 1024 * 1024)));
+                  localStore = new LiveEdgeFileStore(localStore, liveEdgeFiles, liveEdgeBytes,
+                          (int) maxEntryBytes, 10000);
+                } else if (videoCacheMB > 0 && localStore instanceof FSFileStore) {
+                  // memory and segment log stores are served from memory without a cache.
+                  localStore = new CachingFileStore(localStore, videoCacheMB * 1024L * 1024L,
+                          Math.min(videoCacheMB, 4) * 1024 * 1024);
+                }
+                bind(localStore)
                         .named("local")
                         .to(FileStore.class).in(Singleton.class);
                 bind(ReplicatedFileStoreResource.class)
@@ -0,0 +1,25 @@
+package org.spf4j.demo.resources.live;
+
+/**
+ * Implemented by the streams returned by {@link FileStore#storeFile(String)} that can discard an incomplete file.
+ *
+ * @author Zoltan Farkas
+ */
+public interface Abortable {
+
+  /**
+   * Discards what was written so far, the file is not published and a subsequent close is a no-op.
+   * @param reason the reason of the abort.
+   */
+  void abort(Exception reason);
+
+  /**
+   * Aborts the stream if it is abortable.
+   */
+  static void abort(final Object stream, final Exception reason) {
+    if (stream instanceof Abortable) {
+      ((Abortable) stream).abort(reason);
+    }
+  }
+
+}
@@ -9,10 +9,15 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.stream.Stream;
 import org.spf4j.io.PathsIOException;
 
 /**
+ * Deletes the files older than a given age, and the directories left empty, except the walk root.
+ * Failures to delete or visit are aggregated, as suppressed exceptions, in one PathsIOException thrown
+ * at the end of the walk, so that one bad file does not stop the walk. A store can be walked in partitions
+ * (a visitor per partition), directories beyond the max depth of a walk are not visited as files.
  *
  * @author Zoltan Farkas
  */
@@ -26,15 +31,29 @@ public class AgedDeletingVisitor implements FileVisitor<Path> {
 
   private int nrDeleted;
 
+  private final BiConsumer<Path, BasicFileAttributes> retained;
+
   public AgedDeletingVisitor(long age, TimeUnit unit) {
+    this(age, unit, (p, a) -> { });
+  }
+
+  /**
+   * @param retained will be invoked with every file that is not old enough to be deleted.
+   */
+  public AgedDeletingVisitor(final long age, final TimeUnit unit,
+          final BiConsumer<Path, BasicFileAttributes> retained) {
     this.rootFolder = null;
     this.exception = null;
     this.oldestTime = Instant.now().minusNanos(unit.toNanos(age));
     this.nrDeleted = 0;
+    this.retained = retained;
   }
 
   @Override
   public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+    if (attrs.isDirectory()) {
+      return FileVisitResult.CONTINUE;
+    }
     FileTime lastModifiedTime = Files.getLastModifiedTime(file);
     if (lastModifiedTime.toInstant().isBefore(oldestTime)) {
       try {
@@ -47,6 +66,8 @@ public class AgedDeletingVisitor implements FileVisitor<Path> {
           suppress(ex, file);
         }
       }
+    } else {
+      retained.accept(file, attrs);
     }
     return FileVisitResult.CONTINUE;
   }
@@ -61,8 +82,14 @@ public class AgedDeletingVisitor implements FileVisitor<Path> {
 
   @Override
   public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+    if (exc != null) {
+      suppress(exc, dir);
+    }
     if (rootFolder == dir) {
-       return FileVisitResult.CONTINUE;
+      if (exception != null) {
+        throw exception;
+      }
+      return FileVisitResult.CONTINUE;
     }
     try (Stream<Path> list = Files.list(dir)) {
       if (list.findAny().isEmpty()) {
@@ -71,9 +98,6 @@ public class AgedDeletingVisitor implements FileVisitor<Path> {
         } catch (IOException ex) {
           suppress(ex, dir);
         }
-        if (exception != null && dir.equals(rootFolder)) {
-          throw exception;
-        }
       }
     }
     return FileVisitResult.CONTINUE;
@@ -0,0 +1,244 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import org.spf4j.base.TimeSource;
+
+/**
+ * Writes to a local stream on the calling thread and hands the same bytes over to peer uploads,
+ * which write to their peer asynchronously. Writes are coalesced in chunks before being handed over,
+ * pooled chunks written with {@link #write(ChunkPool.Chunk)} are shared with the peers without copying.
+ * The CRC32C of the content is handed to the peers at the end, sent after the content for each peer to verify
+ * before publishing the file.
+ *
+ * @author Zoltan Farkas
+ */
+public final class AsyncFanOutOutputStream extends OutputStream implements Abortable, ChunkSink {
+
+  private static final int CHUNK_SIZE = 8192;
+
+  private final OutputStream local;
+
+  private final List<PeerUpload> peers;
+
+  private final List<? extends CompletableFuture<?>> confirmations;
+
+  private byte[] pending;
+
+  private int pendingSize;
+
+  private final int writeQuorum;
+
+  private final long deadlineNanos;
+
+  private final CRC32C crc;
+
+  private boolean closed;
+
+  /**
+   * @param local the local stream.
+   * @param peers the peer uploads.
+   * @param confirmations one future per peer, completed when the peer confirms the write, by the upload
+   * or by a retry, and failed when the peer is given up on.
+   * @param writeQuorum the number of peers that need to confirm the write, before close returns.
+   * @param deadlineNanos the deadline to wait for the write quorum.
+   */
+  AsyncFanOutOutputStream(final OutputStream local, final List<PeerUpload> peers,
+          final List<? extends CompletableFuture<?>> confirmations, final int writeQuorum, final long deadlineNanos) {
+    this.local = local;
+    this.peers = peers;
+    this.confirmations = confirmations;
+    this.writeQuorum = Math.min(writeQuorum, confirmations.size());
+    this.deadlineNanos = deadlineNanos;
+    this.pending = new byte[CHUNK_SIZE];
+    this.pendingSize = 0;
+    this.crc = new CRC32C();
+    this.closed = false;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    try {
+      local.write(b);
+    } catch (IOException | RuntimeException ex) {
+      abandon(ex);
+      throw ex;
+    }
+    crc.update(b);
+    if (pendingSize >= pending.length) {
+      handOver();
+    }
+    pending[pendingSize++] = (byte) b;
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    try {
+      local.write(b, off, len);
+    } catch (IOException | RuntimeException ex) {
+      abandon(ex);
+      throw ex;
+    }
+    crc.update(b, off, len);
+    if (pendingSize + len <= pending.length) {
+      System.arraycopy(b, off, pending, pendingSize, len);
+      pendingSize += len;
+    } else {
+      handOver();
+      if (len >= CHUNK_SIZE) {
+        handOver(Arrays.copyOfRange(b, off, off + len), len);
+      } else {
+        System.arraycopy(b, off, pending, 0, len);
+        pendingSize = len;
+      }
+    }
+  }
+
+  /**
+   * Writes the chunk locally and hands the same chunk over to the peers.
+   */
+  @Override
+  public void write(final ChunkPool.Chunk chunk) throws IOException {
+    try {
+      local.write(chunk.array(), 0, chunk.length());
+    } catch (IOException | RuntimeException ex) {
+      abandon(ex);
+      throw ex;
+    }
+    crc.update(chunk.array(), 0, chunk.length());
+    handOver();
+    handOver(chunk);
+  }
+
+  private void handOver() {
+    if (pendingSize > 0) {
+      handOver(pending, pendingSize);
+      pending = new byte[CHUNK_SIZE];
+      pendingSize = 0;
+    }
+  }
+
+  private void handOver(final byte[] bytes, final int length) {
+    ChunkPool.Chunk chunk = ChunkPool.Chunk.wrap(bytes, length);
+    handOver(chunk);
+    chunk.release();
+  }
+
+  private void handOver(final ChunkPool.Chunk chunk) {
+    for (PeerUpload peer : peers) {
+      peer.offer(chunk);
+    }
+  }
+
+  private void abandon(final Exception ex) {
+    for (PeerUpload peer : peers) {
+      peer.abandon(ex);
+    }
+  }
+
+  /**
+   * Aborts the local write and abandons the peer uploads.
+   */
+  @Override
+  public void abort(final Exception reason) {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    Abortable.abort(local, reason);
+    abandon(reason);
+  }
+
+  /**
+   * Local data is flushed, peers are flushed asynchronously.
+   */
+  @Override
+  public void flush() throws IOException {
+    local.flush();
+  }
+
+  /**
+   * Closes the local stream, signals the end of data to the peers and waits for writeQuorum peers to confirm.
+   * The remaining peers finish asynchronously.
+   * @throws WriteQuorumException when the file is published locally, but the peers do not confirm in time.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    handOver();
+    try {
+      local.close();
+    } catch (IOException | RuntimeException ex) {
+      abandon(ex);
+      throw ex;
+    }
+    long crc32c = crc.getValue();
+    for (PeerUpload peer : peers) {
+      peer.finish(crc32c);
+    }
+    if (writeQuorum <= 0) {
+      return;
+    }
+    try {
+      quorum(confirmations, writeQuorum).get(deadlineNanos - TimeSource.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for write quorum " + writeQuorum
+              + " of " + peers);
+    } catch (TimeoutException ex) {
+      throw new WriteQuorumException("Stored locally, timed out waiting for write quorum " + writeQuorum
+              + " of " + peers, ex);
+    } catch (ExecutionException ex) {
+      throw new WriteQuorumException("Stored locally, write quorum " + writeQuorum + " not met by " + peers,
+              ex.getCause());
+    }
+  }
+
+  /**
+   * @return a future that completes when w futures complete successfully,
+   * or fails when that is not possible anymore, with all the failures attached.
+   */
+  static CompletableFuture<Void> quorum(final List<? extends CompletableFuture<?>> futures, final int w) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    int n = futures.size();
+    AtomicInteger succeeded = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    List<Throwable> failures = Collections.synchronizedList(new ArrayList<>(2));
+    for (CompletableFuture<?> f : futures) {
+      f.whenComplete((r, ex) -> {
+        if (ex == null) {
+          if (succeeded.incrementAndGet() == w) {
+            result.complete(null);
+          }
+        } else {
+          failures.add(ex);
+          if (failed.incrementAndGet() == n - w + 1) {
+            IOException ioex = new IOException(failed + " of " + n + " failed, quorum " + w);
+            synchronized (failures) {
+              for (Throwable t : failures) {
+                ioex.addSuppressed(t);
+              }
+            }
+            result.completeExceptionally(ioex);
+          }
+        }
+      });
+    }
+    return result;
+  }
+
+}
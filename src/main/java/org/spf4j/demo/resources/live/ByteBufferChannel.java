@@ -0,0 +1,84 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read only channel over a byte buffer. The buffer is not copied, the channel reads a private duplicate.
+ * @author Zoltan Farkas
+ */
+public final class ByteBufferChannel implements SeekableByteChannel {
+
+  private final ByteBuffer buffer;
+
+  private boolean open;
+
+  public ByteBufferChannel(final ByteBuffer buffer) {
+    this.buffer = buffer.duplicate();
+    this.open = true;
+  }
+
+  @Override
+  public int read(final ByteBuffer dst) throws ClosedChannelException {
+    ensureOpen();
+    int remaining = buffer.remaining();
+    if (remaining <= 0) {
+      return -1;
+    }
+    int toRead = Math.min(remaining, dst.remaining());
+    ByteBuffer src = buffer.duplicate();
+    src.limit(src.position() + toRead);
+    dst.put(src);
+    buffer.position(buffer.position() + toRead);
+    return toRead;
+  }
+
+  @Override
+  public int write(final ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long position() throws ClosedChannelException {
+    ensureOpen();
+    return buffer.position();
+  }
+
+  @Override
+  public SeekableByteChannel position(final long newPosition) throws ClosedChannelException {
+    ensureOpen();
+    buffer.position((int) Math.min(newPosition, buffer.limit()));
+    return this;
+  }
+
+  @Override
+  public long size() throws ClosedChannelException {
+    ensureOpen();
+    return buffer.limit();
+  }
+
+  @Override
+  public SeekableByteChannel truncate(final long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+    open = false;
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+  }
+
+}
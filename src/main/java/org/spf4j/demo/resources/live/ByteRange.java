@@ -0,0 +1,159 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A satisfiable byte range as specified by a HTTP Range header (RFC 7233), both ends inclusive.
+ * @author Zoltan Farkas
+ */
+public final class ByteRange implements Comparable<ByteRange> {
+
+  /** upper limit of the number of ranges we are willing to serve in a single multipart response. */
+  private static final int MAX_RANGES = 16;
+
+  private final long first;
+
+  private final long last;
+
+  public ByteRange(final long first, final long last) {
+    if (first < 0 || last < first) {
+      throw new IllegalArgumentException("Invalid range " + first + '-' + last);
+    }
+    this.first = first;
+    this.last = last;
+  }
+
+  public long getFirst() {
+    return first;
+  }
+
+  public long getLast() {
+    return last;
+  }
+
+  public long getLength() {
+    return last - first + 1;
+  }
+
+  public String toContentRange(final long size) {
+    return "bytes " + first + '-' + last + '/' + size;
+  }
+
+  /**
+   * Parse a Range header value against a resource of a known size.
+   * Overlapping or adjacent ranges are coalesced.
+   * @param range the Range header value.
+   * @param size the size of the resource.
+   * @return null if the header is not a valid byte range specifier (it should be ignored),
+   * empty list if no range is satisfiable (416), the satisfiable ranges otherwise.
+   */
+  @Nullable
+  public static List<ByteRange> parse(final String range, final long size) {
+    String spec = range.trim();
+    if (!spec.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    String[] specs = spec.substring(6).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<ByteRange> result = new ArrayList<>(specs.length);
+    for (String rs : specs) {
+      String r = rs.trim();
+      int dashIdx = r.indexOf('-');
+      if (dashIdx < 0) {
+        return null;
+      }
+      long first;
+      long last;
+      try {
+        if (dashIdx == 0) {
+          long suffixLength = Long.parseLong(r.substring(1));
+          if (suffixLength <= 0) {
+            continue;
+          }
+          first = Math.max(0, size - suffixLength);
+          last = size - 1;
+        } else {
+          first = Long.parseLong(r.substring(0, dashIdx));
+          if (dashIdx == r.length() - 1) {
+            last = size - 1;
+          } else {
+            last = Long.parseLong(r.substring(dashIdx + 1));
+            if (last < first) {
+              return null;
+            }
+            last = Math.min(size - 1, last);
+          }
+        }
+      } catch (NumberFormatException ex) {
+        return null;
+      }
+      if (first < 0) {
+        return null;
+      }
+      if (first < size && first <= last) {
+        result.add(new ByteRange(first, last));
+      }
+    }
+    return coalesce(result);
+  }
+
+  private static List<ByteRange> coalesce(final List<ByteRange> ranges) {
+    if (ranges.size() <= 1) {
+      return ranges;
+    }
+    Collections.sort(ranges);
+    List<ByteRange> result = new ArrayList<>(ranges.size());
+    ByteRange current = ranges.get(0);
+    for (int i = 1, l = ranges.size(); i < l; i++) {
+      ByteRange next = ranges.get(i);
+      if (next.first <= current.last + 1) {
+        if (next.last > current.last) {
+          current = new ByteRange(current.first, next.last);
+        }
+      } else {
+        result.add(current);
+        current = next;
+      }
+    }
+    result.add(current);
+    return result;
+  }
+
+  @Override
+  public int compareTo(final ByteRange o) {
+    int cmp = Long.compare(first, o.first);
+    if (cmp != 0) {
+      return cmp;
+    }
+    return Long.compare(last, o.last);
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ByteRange)) {
+      return false;
+    }
+    ByteRange other = (ByteRange) obj;
+    return first == other.first && last == other.last;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Long.hashCode(first) + Long.hashCode(last);
+  }
+
+  @Override
+  public String toString() {
+    return "ByteRange{" + first + '-' + last + '}';
+  }
+
+}
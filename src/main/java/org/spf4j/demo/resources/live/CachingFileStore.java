@@ -0,0 +1,443 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import org.spf4j.base.CloseableIterable;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * A FileStore decorator that keeps the recently written or read files in direct byte buffers.
+ * On a live stream every viewer reads the last few segments and the playlist, this avoids going
+ * to the file system for every one of these reads.
+ *
+ * Files are cached when written (at close) or on a read miss, if not larger than maxEntryBytes,
+ * and evicted in LRU order when the total cached bytes exceed maxBytes.
+ * Cached content is considered immutable, updates are supposed to happen via storeFile of this store,
+ * files deleted by the wrapped store (retention, quotas) are invalidated when it notifies the deletion.
+ *
+ * @author Zoltan Farkas
+ */
+public final class CachingFileStore implements FileStore {
+
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private static final int INITIAL_CAPTURE_BYTES = 64 * 1024;
+
+  private final FileStore wrapped;
+
+  private final long maxBytes;
+
+  private final int maxEntryBytes;
+
+  /** access ordered, guarded by itself. */
+  private final LinkedHashMap<String, CachedFile> cache;
+
+  private long cachedBytes;
+
+  /** file path -> number of writers, of the files currently written through this store, not cached on read. */
+  private final ConcurrentMap<String, Integer> writing;
+
+  private final FileStoreListeners listeners;
+
+  private final MeasurementRecorder hits;
+
+  private final MeasurementRecorder misses;
+
+  private final MeasurementRecorder evictions;
+
+  private final MeasurementRecorder bytes;
+
+  public CachingFileStore(final FileStore wrapped, final long maxBytes, final int maxEntryBytes) {
+    if (maxEntryBytes > maxBytes) {
+      throw new IllegalArgumentException("Max entry size " + maxEntryBytes + " larger than cache size " + maxBytes);
+    }
+    this.wrapped = wrapped;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+    this.cache = new LinkedHashMap<>(64, 0.75f, true);
+    this.cachedBytes = 0;
+    this.writing = new ConcurrentHashMap<>();
+    this.listeners = new FileStoreListeners();
+    this.hits = RecorderFactory.createScalableCountingRecorder("video_cache_hits", "count", SAMPLE_MILLIS);
+    this.misses = RecorderFactory.createScalableCountingRecorder("video_cache_misses", "count", SAMPLE_MILLIS);
+    this.evictions = RecorderFactory.createScalableCountingRecorder("video_cache_evictions", "count",
+            SAMPLE_MILLIS);
+    this.bytes = RecorderFactory.createScalableMinMaxAvgRecorder("video_cache_bytes", "bytes", SAMPLE_MILLIS);
+    wrapped.addListener(new FileStoreListener() {
+      @Override
+      public void fileStored(final String filePath) {
+        // stores via this store update the cache before notifying.
+      }
+
+      @Override
+      public void fileDeleted(final String filePath) {
+        invalidate(filePath);
+        listeners.fileDeleted(filePath);
+      }
+    });
+  }
+
+  @Override
+  @PreDestroy
+  public void close() throws IOException {
+    synchronized (cache) {
+      cache.clear();
+      cachedBytes = 0;
+    }
+    wrapped.close();
+  }
+
+  @Override
+  @Nullable
+  public CloseableIterable<String> list(final String path) throws IOException {
+    return wrapped.list(path);
+  }
+
+  /**
+   * Files being written are not cached, following reads go to the wrapped store.
+   */
+  @Override
+  @Nullable
+  public InputStream follow(final String filePath) throws IOException {
+    return wrapped.follow(filePath);
+  }
+
+  @Override
+  @Nullable
+  public InputStream readFile(final String filePath) throws IOException {
+    SeekableByteChannel channel = readChannel(filePath);
+    return channel == null ? null : Channels.newInputStream(channel);
+  }
+
+  @Override
+  @Nullable
+  public SeekableByteChannel readChannel(final String filePath) throws IOException {
+    OpenFile file = open(filePath);
+    return file == null ? null : file.getChannel();
+  }
+
+  @Override
+  @Nullable
+  public OpenFile open(final String filePath) throws IOException {
+    CachedFile cf = getCached(filePath);
+    if (cf != null) {
+      return cf.open();
+    }
+    OpenFile file = wrapped.open(filePath);
+    if (file == null) {
+      return null;
+    }
+    if (file.getInfo().getSize() > maxEntryBytes || writing.containsKey(filePath)) {
+      return file;
+    }
+    return load(filePath, file).open();
+  }
+
+  /**
+   * Loads the file in the cache if it is not larger than maxEntryBytes, larger files are prefetched by
+   * the wrapped store.
+   */
+  @Override
+  public void prefetch(final String filePath) throws IOException {
+    synchronized (cache) {
+      if (cache.containsKey(filePath)) {
+        return;
+      }
+    }
+    OpenFile file = wrapped.open(filePath);
+    if (file == null) {
+      return;
+    }
+    if (file.getInfo().getSize() > maxEntryBytes || writing.containsKey(filePath)) {
+      file.close();
+      wrapped.prefetch(filePath);
+      return;
+    }
+    load(filePath, file);
+  }
+
+  /**
+   * Read a file in a direct buffer and cache it with the info of the opened version, unless it is being written.
+   */
+  private CachedFile load(final String filePath, final OpenFile file) throws IOException {
+    FileInfo info = file.getInfo();
+    ByteBuffer content;
+    try (SeekableByteChannel ch = file.getChannel()) {
+      content = ByteBuffer.allocateDirect((int) info.getSize());
+      while (content.hasRemaining()) {
+        if (ch.read(content) < 0) {
+          break;
+        }
+      }
+    }
+    content.flip();
+    CachedFile cf = new CachedFile(content.asReadOnlyBuffer(), info);
+    if (!writing.containsKey(filePath)) {
+      put(filePath, cf, false);
+      // a deletion notified while loading would leave a deleted file cached.
+      if (wrapped.getFileInfo(filePath) == null) {
+        invalidate(filePath);
+      }
+    }
+    return cf;
+  }
+
+  @Override
+  @Nullable
+  public FileInfo getFileInfo(final String filePath) throws IOException {
+    CachedFile cf;
+    synchronized (cache) {
+      cf = cache.get(filePath);
+    }
+    if (cf != null) {
+      return cf.info();
+    }
+    return wrapped.getFileInfo(filePath);
+  }
+
+  @Override
+  public OutputStream storeFile(final String filePath, final long lastModifiedMillis)
+          throws IOException, TimeoutException {
+    return new CapturingOutputStream(filePath, wrapped.storeFile(filePath, lastModifiedMillis));
+  }
+
+  @Override
+  public long getRetentionMillis() {
+    return wrapped.getRetentionMillis();
+  }
+
+  /**
+   * Listeners are notified by this store once the cache is up to date with the written file,
+   * all writes are supposed to be done via this store.
+   */
+  @Override
+  public void addListener(final FileStoreListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(final FileStoreListener listener) {
+    listeners.remove(listener);
+  }
+
+  @Nullable
+  private CachedFile getCached(final String filePath) {
+    CachedFile cf;
+    synchronized (cache) {
+      cf = cache.get(filePath);
+    }
+    if (cf == null) {
+      misses.record(1);
+    } else {
+      hits.record(1);
+    }
+    return cf;
+  }
+
+  private void put(final String filePath, final CachedFile file, final boolean replace) {
+    int nrEvicted = 0;
+    long size;
+    synchronized (cache) {
+      CachedFile old = replace ? cache.put(filePath, file) : cache.putIfAbsent(filePath, file);
+      if (old != null && !replace) {
+        return;
+      }
+      if (old != null) {
+        cachedBytes -= old.content.limit();
+      }
+      cachedBytes += file.content.limit();
+      Iterator<CachedFile> it = cache.values().iterator();
+      while (cachedBytes > maxBytes && it.hasNext()) {
+        CachedFile evicted = it.next();
+        it.remove();
+        cachedBytes -= evicted.content.limit();
+        nrEvicted++;
+      }
+      size = cachedBytes;
+    }
+    if (nrEvicted > 0) {
+      evictions.record(nrEvicted);
+    }
+    bytes.record(size);
+  }
+
+  private void invalidate(final String filePath) {
+    long size;
+    synchronized (cache) {
+      CachedFile old = cache.remove(filePath);
+      if (old == null) {
+        return;
+      }
+      cachedBytes -= old.content.limit();
+      size = cachedBytes;
+    }
+    bytes.record(size);
+  }
+
+  public long getCachedBytes() {
+    synchronized (cache) {
+      return cachedBytes;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CachingFileStore{" + "wrapped=" + wrapped + ", maxBytes=" + maxBytes
+            + ", maxEntryBytes=" + maxEntryBytes + '}';
+  }
+
+  private static final class CachedFile {
+
+    private final ByteBuffer content;
+
+    private final long lastModifiedMillis;
+
+    private final long crc32c;
+
+    /**
+     * @param info the wrapped store info of the file, the source of the last modified time and checksum.
+     */
+    CachedFile(final ByteBuffer content, @Nullable final FileInfo info) {
+      this.content = content;
+      if (info == null) {
+        this.lastModifiedMillis = System.currentTimeMillis();
+        this.crc32c = -1;
+      } else {
+        this.lastModifiedMillis = info.getLastModifiedMillis();
+        this.crc32c = info.getCrc32c();
+      }
+    }
+
+    FileInfo info() {
+      return new FileInfo(content.limit(), lastModifiedMillis, crc32c);
+    }
+
+    OpenFile open() {
+      return new OpenFile(new ByteBufferChannel(content), info());
+    }
+  }
+
+  /**
+   * Writes through to the wrapped store, while capturing the content in a direct buffer.
+   * Files larger than maxEntryBytes are not captured.
+   */
+  private final class CapturingOutputStream extends FilterOutputStream implements Abortable {
+
+    private final String filePath;
+
+    @Nullable
+    private ByteBuffer capture;
+
+    private boolean closed;
+
+    CapturingOutputStream(final String filePath, final OutputStream out) {
+      super(out);
+      this.filePath = filePath;
+      writing.merge(filePath, 1, Integer::sum);
+      this.capture = ByteBuffer.allocateDirect(Math.min(INITIAL_CAPTURE_BYTES, maxEntryBytes));
+      this.closed = false;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      out.write(b);
+      if (ensureCapacity(1)) {
+        capture.put((byte) b);
+      }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      out.write(b, off, len);
+      if (ensureCapacity(len)) {
+        capture.put(b, off, len);
+      }
+    }
+
+    private boolean ensureCapacity(final int len) {
+      if (capture == null) {
+        return false;
+      }
+      if (capture.remaining() >= len) {
+        return true;
+      }
+      long needed = (long) capture.position() + len;
+      if (needed > maxEntryBytes) {
+        capture = null;
+        return false;
+      }
+      ByteBuffer nb = ByteBuffer.allocateDirect((int) Math.min(maxEntryBytes,
+              Math.max(needed, capture.capacity() * 2L)));
+      capture.flip();
+      nb.put(capture);
+      capture = nb;
+      return true;
+    }
+
+    @Override
+    public void abort(final Exception reason) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      capture = null;
+      writeDone();
+      Abortable.abort(out, reason);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        out.close();
+      } catch (IOException | RuntimeException ex) {
+        invalidate(filePath);
+        throw ex;
+      } finally {
+        writeDone();
+      }
+      if (capture == null) {
+        invalidate(filePath);
+      } else {
+        capture.flip();
+        ByteBuffer content;
+        if (capture.capacity() - capture.limit() > capture.limit() / 4) {
+          content = ByteBuffer.allocateDirect(capture.limit());
+          content.put(capture);
+          content.flip();
+        } else {
+          content = capture;
+        }
+        capture = null;
+        FileInfo info = wrapped.getFileInfo(filePath);
+        put(filePath, new CachedFile(content.asReadOnlyBuffer(), info), true);
+      }
+      listeners.fileStored(filePath);
+    }
+
+    /**
+     * Clears the writing flag once the last concurrent writer of the path is done.
+     */
+    private void writeDone() {
+      writing.computeIfPresent(filePath, (k, nrWriters) -> nrWriters > 1 ? nrWriters - 1 : null);
+    }
+  }
+
+}
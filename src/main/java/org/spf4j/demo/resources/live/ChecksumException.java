@@ -0,0 +1,18 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+
+/**
+ * Content that does not match its checksum.
+ *
+ * @author Zoltan Farkas
+ */
+public final class ChecksumException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public ChecksumException(final String message) {
+    super(message);
+  }
+
+}
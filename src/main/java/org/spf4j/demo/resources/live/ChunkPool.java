@@ -0,0 +1,173 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * A pool of reference counted byte chunks used on the ingest path: one chunk read from the request is written
+ * to the local store and handed to all peer uploads, without being copied, and returns to the pool when
+ * the last holder releases it. Chunks that are never released are simply not reused.
+ * Serving uses its own pool of copy buffers, see {@link FileTransfers#transfer(java.nio.channels.SeekableByteChannel,
+ * long, long, java.io.OutputStream)}.
+ *
+ * @author Zoltan Farkas
+ */
+final class ChunkPool {
+
+  static final ChunkPool INGEST = new ChunkPool(64 * 1024, 512);
+
+  static final ChunkPool SERVE = new ChunkPool(64 * 1024, 256);
+
+  private final int chunkSize;
+
+  private final int maxPooled;
+
+  private final ConcurrentLinkedDeque<Chunk> pool;
+
+  private final AtomicInteger nrPooled;
+
+  ChunkPool(final int chunkSize, final int maxPooled) {
+    this.chunkSize = chunkSize;
+    this.maxPooled = maxPooled;
+    this.pool = new ConcurrentLinkedDeque<>();
+    this.nrPooled = new AtomicInteger();
+  }
+
+  /**
+   * @return an empty chunk with one reference.
+   */
+  Chunk take() {
+    Chunk chunk = pool.pollFirst();
+    if (chunk == null) {
+      return new Chunk(new byte[chunkSize], 0, this, true);
+    }
+    nrPooled.decrementAndGet();
+    chunk.reset();
+    return chunk;
+  }
+
+  private void recycle(final Chunk chunk) {
+    if (nrPooled.incrementAndGet() <= maxPooled) {
+      pool.addFirst(chunk);
+    } else {
+      nrPooled.decrementAndGet();
+    }
+  }
+
+  int getNrPooled() {
+    return nrPooled.get();
+  }
+
+  static final class Chunk {
+
+    private final byte[] data;
+
+    private int length;
+
+    private final AtomicInteger refs;
+
+    @Nullable
+    private final ChunkPool pool;
+
+    private boolean allocated;
+
+    private Chunk(final byte[] data, final int length, @Nullable final ChunkPool pool, final boolean allocated) {
+      this.data = data;
+      this.length = length;
+      this.refs = new AtomicInteger(1);
+      this.pool = pool;
+      this.allocated = allocated;
+    }
+
+    /**
+     * @return a chunk that is not pooled, with one reference.
+     */
+    static Chunk wrap(final byte[] data, final int length) {
+      return new Chunk(data, length, null, false);
+    }
+
+    private void reset() {
+      length = 0;
+      allocated = false;
+      refs.set(1);
+    }
+
+    byte[] array() {
+      return data;
+    }
+
+    int length() {
+      return length;
+    }
+
+    /**
+     * @return true if this chunk was allocated by take, instead of being reused.
+     */
+    boolean isAllocated() {
+      return allocated;
+    }
+
+    /**
+     * Read into this chunk: blocks for the first bytes, then continues reading without blocking
+     * until the chunk is full.
+     * @return the number of bytes read, -1 on end of stream.
+     */
+    int fill(final InputStream is) throws IOException {
+      int nr = is.read(data, length, data.length - length);
+      if (nr < 0) {
+        return -1;
+      }
+      length += nr;
+      while (length < data.length && is.available() > 0) {
+        nr = is.read(data, length, data.length - length);
+        if (nr < 0) {
+          break;
+        }
+        length += nr;
+      }
+      return length;
+    }
+
+    /**
+     * A single read into the free space of this chunk, for streams that are only read when ready.
+     * @return the number of bytes read, -1 on end of stream.
+     */
+    int readOnce(final InputStream is) throws IOException {
+      int nr = is.read(data, length, data.length - length);
+      if (nr > 0) {
+        length += nr;
+      }
+      return nr;
+    }
+
+    boolean isFull() {
+      return length >= data.length;
+    }
+
+    Chunk retain() {
+      refs.incrementAndGet();
+      return this;
+    }
+
+    void release() {
+      int nr = refs.decrementAndGet();
+      if (nr == 0) {
+        if (pool != null) {
+          pool.recycle(this);
+        }
+      } else if (nr < 0) {
+        throw new IllegalStateException("Chunk released more times than retained " + this);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Chunk{" + "length=" + length + ", refs=" + refs + '}';
+    }
+
+  }
+
+}
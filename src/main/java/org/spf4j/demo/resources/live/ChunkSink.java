@@ -0,0 +1,17 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+
+/**
+ * Implemented by store streams that can take pooled chunks as they are, instead of copying the bytes.
+ *
+ * @author Zoltan Farkas
+ */
+interface ChunkSink {
+
+  /**
+   * Write a chunk, the sink retains the chunk if it holds on to it after returning.
+   */
+  void write(ChunkPool.Chunk chunk) throws IOException;
+
+}
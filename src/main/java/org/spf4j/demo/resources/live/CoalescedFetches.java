@@ -0,0 +1,99 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultScheduler;
+
+/**
+ * Concurrent fetches of the same file, coalesced into one: the first caller fetches, the callers that arrive while
+ * it does wait for its result. The fetch has one overall deadline, for all its attempts, and the waiting callers
+ * wait until that same deadline, so that a waiter does not give up on a fetch that can still succeed.
+ * A fetch that found nothing (or failed) is remembered for negativeMillis, to not flood the peers with requests
+ * for files nobody has.
+ *
+ * @author Zoltan Farkas
+ */
+final class CoalescedFetches<T> {
+
+  private final ConcurrentMap<String, Fetch<T>> fetches;
+
+  private final long negativeMillis;
+
+  CoalescedFetches(final long negativeMillis) {
+    this.fetches = new ConcurrentHashMap<>();
+    this.negativeMillis = negativeMillis;
+  }
+
+  /**
+   * @param timeoutMillis the time the fetch has, when this call starts it.
+   * @return the fetcher result, null if nothing was found.
+   */
+  @Nullable
+  T fetch(final String filePath, final long timeoutMillis, final Fetcher<T> fetcher) throws IOException {
+    Fetch<T> fetch = new Fetch<>(TimeSource.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    Fetch<T> existing = fetches.putIfAbsent(filePath, fetch);
+    if (existing == null) {
+      T result = null;
+      try {
+        result = fetcher.fetch(fetch.deadlineNanos);
+        fetch.result.complete(result);
+        return result;
+      } catch (IOException | TimeoutException | RuntimeException ex) {
+        fetch.result.completeExceptionally(ex);
+        throw new IOException("Failed to fetch " + filePath, ex);
+      } finally {
+        if (result == null) {
+          DefaultScheduler.instance().schedule(() -> fetches.remove(filePath, fetch),
+                  negativeMillis, TimeUnit.MILLISECONDS);
+        } else {
+          fetches.remove(filePath, fetch);
+        }
+      }
+    }
+    try {
+      return existing.result.get(existing.deadlineNanos - TimeSource.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + filePath);
+    } catch (ExecutionException | TimeoutException ex) {
+      throw new IOException("Failed to fetch " + filePath, ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CoalescedFetches{" + "fetches=" + fetches.size() + ", negativeMillis=" + negativeMillis + '}';
+  }
+
+  @FunctionalInterface
+  interface Fetcher<T> {
+
+    /**
+     * @param deadlineNanos the deadline of all the fetch attempts.
+     * @return the fetched result, null if nothing was found.
+     */
+    @Nullable
+    T fetch(long deadlineNanos) throws IOException, TimeoutException;
+  }
+
+  private static final class Fetch<T> {
+
+    private final CompletableFuture<T> result;
+
+    private final long deadlineNanos;
+
+    Fetch(final long deadlineNanos) {
+      this.result = new CompletableFuture<>();
+      this.deadlineNanos = deadlineNanos;
+    }
+  }
+
+}
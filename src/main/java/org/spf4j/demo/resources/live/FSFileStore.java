@@ -1,64 +1,518 @@
 
 package org.spf4j.demo.resources.live;
 
-import com.google.common.collect.Iterables;
 import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spf4j.base.CloseableIterable;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultExecutor;
 import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.io.PathsIOException;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
 
 /**
  * @author Zoltan Farkas
- * for in memory implementations see: https://github.com/google/jimfs
+ * for an in memory implementation see {@link InMemoryFileStore}.
  */
 public class FSFileStore implements Closeable, FileStore {
 
   private static final Logger LOG = LoggerFactory.getLogger(FSFileStore.class);
 
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private static final String CRC_SUFFIX = ".crc32c";
+
+  private static final AtomicLong TMP_SEQ = new AtomicLong();
+
+  /** max time a follower waits for the writer to make progress. */
+  private static final long FOLLOW_STALL_MILLIS = 30000;
+
+  private static final int PREFETCH_BUFFER_BYTES = 64 * 1024;
+
+  private static final long PREFETCH_MAX_BYTES = 32L * 1024 * 1024;
+
+  /** the number of groups swept in parallel. */
+  private static final int RETENTION_PARALLELISM = Math.max(1, Math.min(4,
+          Runtime.getRuntime().availableProcessors()));
+
+  /** max duration of a retention sweep, less than the sweep period, groups not done continue in the next sweep. */
+  private static final long RETENTION_BUDGET_MILLIS = 45000;
+
   private final Path store;
 
   private final ScheduledFuture<?> scheduleWithFixedDelay;
 
+  private final FileStoreListeners listeners;
+
+  private final FileIndex index;
+
+  private final long retentionMillis;
+
+  private final MeasurementRecorder cleanupDuration;
+
+  private final MeasurementRecorder cleanupExamined;
+
+  private final MeasurementRecorder cleanupDeleted;
+
+  private final MeasurementRecorder cleanupDeferred;
+
+  private final MeasurementRecorder quotaEvictions;
+
+  private final long maxGroupBytes;
+
+  private final long maxBytes;
+
+  private final long minFreeBytes;
+
+  private final AtomicBoolean enforcingLimits;
+
+  /** files being written, by index key. */
+  private final ConcurrentMap<String, StoreOutputStream> uploads;
+
+  /** retention sweeps, one task per group. */
+  private final ForkJoinPool retentionPool;
+
+  /**
+   * striped by index key, held while a file is renamed to its destination and indexed, and while a file is opened
+   * with {@link #open(String)}, so that the opened file and its index info are of the same version.
+   */
+  private final Object[] publishLocks;
+
   public FSFileStore(Path store, long retentionTime, TimeUnit tu) {
-    this.store = store;
+    this(store, retentionTime, tu, Long.MAX_VALUE, Long.MAX_VALUE, 0);
+  }
+
+  /**
+   * @param maxGroupBytes the max bytes a group can use, the oldest files of the group are deleted when exceeded.
+   * @param maxBytes the max bytes the store can use.
+   * @param minFreeBytes the free space to maintain on the underlying file system.
+   * When maxBytes is exceeded or free space drops below minFreeBytes, the oldest files of the largest groups
+   * are deleted first.
+   */
+  public FSFileStore(final Path store, final long retentionTime, final TimeUnit tu,
+          final long maxGroupBytes, final long maxBytes, final long minFreeBytes) {
+    this.store = store.normalize();
+    this.maxGroupBytes = maxGroupBytes;
+    this.maxBytes = maxBytes;
+    this.minFreeBytes = minFreeBytes;
+    this.enforcingLimits = new AtomicBoolean();
+    this.uploads = new ConcurrentHashMap<>();
+    this.listeners = new FileStoreListeners();
+    this.index = new FileIndex();
+    this.retentionMillis = tu.toMillis(retentionTime);
+    this.cleanupDuration = RecorderFactory.createScalableMinMaxAvgRecorder("video_retention_duration", "ms",
+            SAMPLE_MILLIS);
+    this.cleanupExamined = RecorderFactory.createScalableCountingRecorder("video_retention_examined", "count",
+            SAMPLE_MILLIS);
+    this.cleanupDeleted = RecorderFactory.createScalableCountingRecorder("video_retention_deleted", "count",
+            SAMPLE_MILLIS);
+    this.cleanupDeferred = RecorderFactory.createScalableCountingRecorder("video_retention_deferred_groups",
+            "count", SAMPLE_MILLIS);
+    this.quotaEvictions = RecorderFactory.createScalableCountingRecorder("video_quota_evictions", "count",
+            SAMPLE_MILLIS);
+    this.retentionPool = new ForkJoinPool(RETENTION_PARALLELISM);
+    this.publishLocks = new Object[64];
+    for (int i = 0; i < publishLocks.length; i++) {
+      publishLocks[i] = new Object();
+    }
+    scan(retentionTime, tu);
     scheduleWithFixedDelay = DefaultScheduler.instance().scheduleWithFixedDelay(()-> {
       try {
-        AgedDeletingVisitor agedDeletingVisitor = new AgedDeletingVisitor(retentionTime, tu);
-        Files.walkFileTree(store, agedDeletingVisitor);
-        int nrDeleted = agedDeletingVisitor.getNrDeleted();
-        if (nrDeleted > 0) {
-          LOG.info("Cleaned up {} file in {}", nrDeleted, store);
-        }
+        cleanup();
+        enforceStoreLimits();
       } catch (IOException | RuntimeException ex) {
         LOG.error("Failured to cleanup files", ex);
       }
     }, 1, 1, TimeUnit.MINUTES);
   }
 
-  public CloseableIterable<String> list(final String path) throws IOException {
-    Stream<Path> walk;
+  /**
+   * One time walk of the store at startup: deletes what is already expired and indexes the rest.
+   * Files written afterwards are indexed by storeFile.
+   * Every group directory is walked in parallel, as a partition with its own visitor, the files in the store root
+   * are another partition.
+   */
+  private void scan(final long retentionTime, final TimeUnit tu) {
+    if (!Files.isDirectory(store)) {
+      return;
+    }
+    List<ForkJoinTask<Integer>> partitions = new ArrayList<>();
+    partitions.add(retentionPool.submit(() -> scan(store, 1, retentionTime, tu)));
+    try (Stream<Path> list = Files.list(store)) {
+      for (Path path : (Iterable<Path>) list::iterator) {
+        if (Files.isDirectory(path)) {
+          partitions.add(retentionPool.submit(() -> scan(path, Integer.MAX_VALUE, retentionTime, tu)));
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      LOG.error("Failured to list {}, some files might not be cleaned up", store, ex);
+    }
+    int nrDeleted = 0;
+    for (ForkJoinTask<Integer> partition : partitions) {
+      nrDeleted += partition.join();
+    }
+    if (nrDeleted > 0) {
+      LOG.info("Cleaned up {} file in {}", nrDeleted, store);
+    }
+  }
+
+  /**
+   * Walk a partition of the store, failures are logged per partition.
+   * @return the number of files deleted.
+   */
+  private int scan(final Path root, final int maxDepth, final long retentionTime, final TimeUnit tu) {
+    AgedDeletingVisitor agedDeletingVisitor = new AgedDeletingVisitor(retentionTime, tu, (file, attrs) -> {
+      String fileName = file.getFileName().toString();
+      if (fileName.startsWith(".")) {
+        if (fileName.endsWith(TMP_SUFFIX)) {
+          deleteStaleTemp(file);
+        }
+      } else {
+        index.put(toFilePath(file), new FileInfo(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                readSidecar(file, attrs)));
+      }
+    });
+    try {
+      Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), maxDepth, agedDeletingVisitor);
+    } catch (IOException | RuntimeException ex) {
+      LOG.error("Failured to scan {}, some files might not be cleaned up", root, ex);
+    }
+    if (!root.equals(store)) {
+      // the visitor does not delete the root of its walk.
+      deleteEmptyDirectories(root);
+    }
+    return agedDeletingVisitor.getNrDeleted();
+  }
+
+  /**
+   * temporary files left behind by a previous process, never published.
+   */
+  private static void deleteStaleTemp(final Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException ex) {
+      LOG.warn("Unable to delete {}", file, ex);
+    }
+  }
+
+  private String toFilePath(final Path file) {
+    return store.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+  }
+
+  /**
+   * Deletes the indexed files older than the retention time. Only expired index entries are looked at.
+   * Groups are swept in parallel, on a bounded pool, within a time budget: the groups that are not done
+   * when the budget is exhausted continue with the next sweep, instead of delaying it.
+   */
+  void cleanup() {
+    long startNanos = TimeSource.nanoTime();
+    long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(RETENTION_BUDGET_MILLIS);
+    long cutoffMillis = System.currentTimeMillis() - retentionMillis;
+    List<FileIndex.Group> groups = index.getGroups();
+    List<ForkJoinTask<Sweep>> sweeps = new ArrayList<>(groups.size());
+    for (FileIndex.Group group : groups) {
+      sweeps.add(retentionPool.submit(() -> sweep(group, cutoffMillis, deadlineNanos)));
+    }
+    int examined = 0;
+    int nrDeleted = 0;
+    int nrDeferred = 0;
+    for (ForkJoinTask<Sweep> task : sweeps) {
+      Sweep sweep = task.join();
+      examined += sweep.examined[0];
+      nrDeleted += sweep.nrDeleted;
+      if (sweep.deferred) {
+        nrDeferred++;
+      }
+    }
+    cleanupExamined.record(examined);
+    cleanupDeleted.record(nrDeleted);
+    cleanupDeferred.record(nrDeferred);
+    cleanupDuration.record(TimeUnit.NANOSECONDS.toMillis(TimeSource.nanoTime() - startNanos));
+    if (nrDeleted > 0) {
+      LOG.info("Cleaned up {} file in {}", nrDeleted, store);
+    }
+    if (nrDeferred > 0) {
+      LOG.warn("Retention of {} groups in {} deferred to the next sweep, budget {} ms exhausted",
+              nrDeferred, store, RETENTION_BUDGET_MILLIS);
+    }
+  }
+
+  /**
+   * Deletes the expired files of a group until done or past the deadline.
+   * Delete failures are aggregated in one PathsIOException per group, the files that failed to be deleted
+   * are put back in the index at the end of the sweep, and are retried by the next sweep.
+   */
+  private Sweep sweep(final FileIndex.Group group, final long cutoffMillis, final long deadlineNanos) {
+    Sweep sweep = new Sweep();
+    List<Map.Entry<String, FileInfo>> failed = new ArrayList<>(0);
+    while (true) {
+      if (TimeSource.nanoTime() - deadlineNanos > 0) {
+        sweep.deferred = true;
+        break;
+      }
+      Map.Entry<String, FileInfo> expired;
+      synchronized (group) {
+        expired = group.pollExpired(cutoffMillis, sweep.examined);
+        if (expired == null) {
+          break;
+        }
+        Path file = store.resolve(expired.getKey());
+        try {
+          if (deleteFile(file)) {
+            sweep.nrDeleted++;
+          }
+        } catch (IOException ex) {
+          sweep.suppress(file, ex);
+          failed.add(expired);
+          continue;
+        }
+      }
+      listeners.fileDeleted(expired.getKey());
+    }
+    for (Map.Entry<String, FileInfo> entry : failed) {
+      group.restore(entry.getKey(), entry.getValue());
+    }
+    if (sweep.nrDeleted > 0 && !group.getName().isEmpty() && index.removeIfEmpty(group)) {
+      deleteEmptyDirectories(store.resolve(group.getName()));
+    }
+    if (sweep.exception != null) {
+      LOG.warn("Unable to delete some files of group {} in {}", group.getName(), store, sweep.exception);
+    }
+    LOG.debug("Retention of group {}: {} examined, {} deleted, deferred = {}", group.getName(),
+            sweep.examined[0], sweep.nrDeleted, sweep.deferred);
+    return sweep;
+  }
+
+  /**
+   * The progress of the retention sweep of a group.
+   */
+  private static final class Sweep {
+
+    private final int[] examined = new int[1];
+
+    private int nrDeleted;
+
+    private boolean deferred;
+
+    @Nullable
+    private PathsIOException exception;
+
+    void suppress(final Path path, final IOException ex) {
+      if (exception == null) {
+        exception = new PathsIOException(path, ex);
+      } else {
+        exception.add(path, ex);
+      }
+    }
+  }
+
+  /**
+   * Deletes the oldest files of the group until it is within maxGroupBytes.
+   * The most recent file of a group is never deleted.
+   */
+  private void enforceGroupQuota(final FileIndex.Group group) {
+    int nrEvicted = 0;
+    while (group.getBytes() > maxGroupBytes && evictOldest(group)) {
+      nrEvicted++;
+    }
+    if (nrEvicted > 0) {
+      quotaEvictions.record(nrEvicted);
+      LOG.debug("Evicted {} files from {} to stay within quota", nrEvicted, group);
+    }
+  }
+
+  private void requestStoreLimits() {
+    if (maxBytes == Long.MAX_VALUE && minFreeBytes <= 0) {
+      return;
+    }
+    if (enforcingLimits.compareAndSet(false, true)) {
+      DefaultExecutor.INSTANCE.execute(() -> {
+        try {
+          enforceStoreLimits();
+        } catch (IOException | RuntimeException ex) {
+          LOG.error("Failed to enforce store limits for {}", store, ex);
+        } finally {
+          enforcingLimits.set(false);
+        }
+      });
+    }
+  }
+
+  /**
+   * Deletes files when the store is above maxBytes or the file system below minFreeBytes.
+   * To be fair across groups, the oldest file of the group using the most bytes is deleted first.
+   */
+  synchronized void enforceStoreLimits() throws IOException {
+    long targetBytes = maxBytes;
+    if (minFreeBytes > 0) {
+      long usable = Files.getFileStore(store).getUsableSpace();
+      if (usable < minFreeBytes) {
+        targetBytes = Math.min(targetBytes, index.getTotalBytes() - (minFreeBytes - usable));
+      }
+    }
+    int nrEvicted = 0;
+    while (index.getTotalBytes() > targetBytes) {
+      FileIndex.Group largest = null;
+      long largestBytes = 0;
+      for (FileIndex.Group group : index.getGroups()) {
+        long bytes = group.getBytes();
+        if (bytes > largestBytes && group.size() > 1) {
+          largest = group;
+          largestBytes = bytes;
+        }
+      }
+      if (largest == null || !evictOldest(largest)) {
+        break;
+      }
+      nrEvicted++;
+    }
+    if (nrEvicted > 0) {
+      quotaEvictions.record(nrEvicted);
+      LOG.info("Evicted {} files from {} to stay within limits", nrEvicted, store);
+    }
+  }
+
+  /**
+   * Deletes the oldest file of a group, a file that fails to be deleted is put back in the index.
+   * @return true if a file was evicted, false if the group has no file to evict, or the delete failed.
+   */
+  private boolean evictOldest(final FileIndex.Group group) {
+    Map.Entry<String, FileInfo> oldest;
+    synchronized (group) {
+      if (group.size() <= 1) {
+        return false;
+      }
+      oldest = group.pollExpired(Long.MAX_VALUE, new int[1]);
+      if (oldest == null) {
+        return false;
+      }
+      try {
+        deleteFile(store.resolve(oldest.getKey()));
+      } catch (IOException ex) {
+        group.restore(oldest.getKey(), oldest.getValue());
+        LOG.warn("Unable to delete {}", oldest.getKey(), ex);
+        return false;
+      }
+    }
+    listeners.fileDeleted(oldest.getKey());
+    return true;
+  }
+
+  /**
+   * Deletes a file and its checksum sidecar.
+   * @return true if the file was deleted, false if it did not exist.
+   */
+  private static boolean deleteFile(final Path file) throws IOException {
+    Files.deleteIfExists(sidecar(file));
+    return Files.deleteIfExists(file);
+  }
+
+  /**
+   * @return the hidden file that holds the CRC32C checksum of file.
+   */
+  private static Path sidecar(final Path file) {
+    return file.resolveSibling("." + file.getFileName() + CRC_SUFFIX);
+  }
+
+  /**
+   * @return the checksum from the sidecar, or -1 if not available or older than the file.
+   */
+  private static long readSidecar(final Path file, final BasicFileAttributes attrs) {
+    Path sidecar = sidecar(file);
     try {
-      walk = Files.list(store.resolve(path));
+      if (Files.getLastModifiedTime(sidecar).compareTo(attrs.lastModifiedTime()) < 0) {
+        return -1;
+      }
+      return FileInfo.parseCrc32c(new String(Files.readAllBytes(sidecar), StandardCharsets.US_ASCII));
     } catch (NoSuchFileException ex) {
-      return null;
+      return -1;
+    } catch (IOException ex) {
+      LOG.warn("Unable to read {}", sidecar, ex);
+      return -1;
+    }
+  }
+
+  private static void deleteEmptyDirectories(final Path dir) {
+    try (Stream<Path> list = Files.list(dir)) {
+      for (Path path : (Iterable<Path>) list::iterator) {
+        if (Files.isDirectory(path)) {
+          deleteEmptyDirectories(path);
+        }
+      }
+    } catch (NoSuchFileException ex) {
+      return;
+    } catch (IOException ex) {
+      LOG.warn("Unable to list {}", dir, ex);
+      return;
+    }
+    try {
+      Files.delete(dir);
+    } catch (DirectoryNotEmptyException | NoSuchFileException ex) {
+      // still in use.
+    } catch (IOException ex) {
+      LOG.warn("Unable to delete {}", dir, ex);
     }
-    return CloseableIterable.from(Iterables.transform(() -> walk.iterator(), (p) -> p.getFileName().toString()), walk);
   }
 
+  /**
+   * Lists a folder from the in memory index, the disk is not accessed.
+   */
   @Override
-  public OutputStream storeFile(String filePath) throws IOException {
+  @Nullable
+  public CloseableIterable<String> list(final String path) {
+    List<String> names = index.list(path.isEmpty() ? "" : toFilePath(resolve(path)));
+    return names == null ? null : CloseableIterable.from(names);
+  }
+
+  @Override
+  public OutputStream storeFile(final String filePath) throws IOException {
+    return storeFile(filePath, System.currentTimeMillis());
+  }
+
+  /**
+   * The modification time is set on the temporary file before it is renamed to the destination.
+   */
+  @Override
+  public OutputStream storeFile(final String filePath, final long lastModifiedMillis) throws IOException {
     Path file = Path.of(filePath);
     if (file.isAbsolute()) {
       throw new IllegalArgumentException("Invalid Path: " + filePath);
@@ -74,7 +528,55 @@ public class FSFileStore implements Closeable, FileStore {
       }
       Files.createDirectories(streamFolder);
     }
-    return Files.newOutputStream(streamFolder.resolve(file.getFileName()));
+    Path target = streamFolder.resolve(file.getFileName());
+    Path tmp = streamFolder.resolve("." + file.getFileName() + '.' + TMP_SEQ.incrementAndGet() + TMP_SUFFIX);
+    OutputStream os;
+    try {
+      os = Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    } catch (NoSuchFileException ex) {
+      // folder removed by a concurrent cleanup.
+      Files.createDirectories(streamFolder);
+      os = Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+    StoreOutputStream result = new StoreOutputStream(filePath, toFilePath(target), tmp, target, os,
+            lastModifiedMillis);
+    uploads.put(result.indexKey, result);
+    return result;
+  }
+
+  /**
+   * Follows a file while it is being written to its temporary file.
+   */
+  @Override
+  @Nullable
+  public InputStream follow(final String filePath) throws IOException {
+    StoreOutputStream upload = uploads.get(toFilePath(resolve(filePath)));
+    if (upload == null) {
+      return null;
+    }
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(upload.tmp);
+    } catch (NoSuchFileException ex) {
+      // published or aborted meanwhile.
+      return null;
+    }
+    return new FollowInputStream(upload, channel);
+  }
+
+  @Override
+  public long getRetentionMillis() {
+    return retentionMillis;
+  }
+
+  @Override
+  public void addListener(final FileStoreListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(final FileStoreListener listener) {
+    listeners.remove(listener);
   }
 
 
@@ -82,22 +584,302 @@ public class FSFileStore implements Closeable, FileStore {
   @Nullable
   public InputStream readFile(String filePath) throws IOException {
     try {
-      Path resolved = store.resolve(Path.of(filePath).normalize());
-      if (!resolved.startsWith(store)) {
-        throw new IllegalArgumentException("Invalid Path: " + filePath);
-      }
-      return Files.newInputStream(resolved);
+      return Files.newInputStream(resolve(filePath));
     } catch (NoSuchFileException ex) {
       return null;
     }
   }
 
+  @Override
+  @Nullable
+  public SeekableByteChannel readChannel(String filePath) throws IOException {
+    try {
+      return FileChannel.open(resolve(filePath));
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * The file is opened and its info read while holding its publish lock, a concurrent store of the file
+   * renames and indexes the new version either before or after.
+   */
+  @Override
+  @Nullable
+  public OpenFile open(final String filePath) throws IOException {
+    Path resolved = resolve(filePath);
+    if (resolved.equals(store)) {
+      return null;
+    }
+    String key = toFilePath(resolved);
+    synchronized (publishLock(key)) {
+      FileInfo info = index.get(key);
+      if (info == null) {
+        return null;
+      }
+      try {
+        return new OpenFile(FileChannel.open(resolved), info, resolved);
+      } catch (NoSuchFileException ex) {
+        // deleted by retention.
+        return null;
+      }
+    }
+  }
+
+  private Object publishLock(final String indexKey) {
+    return publishLocks[Math.floorMod(indexKey.hashCode(), publishLocks.length)];
+  }
+
+  /**
+   * Reads the file (up to PREFETCH_MAX_BYTES), for it to be in the page cache when it is served.
+   * There is no madvise/readahead in java, a sequential read is the portable equivalent,
+   * and the kernel read ahead makes it a few large disk reads.
+   */
+  @Override
+  public void prefetch(final String filePath) throws IOException {
+    SeekableByteChannel channel = readChannel(filePath);
+    if (channel == null) {
+      return;
+    }
+    try (SeekableByteChannel ch = channel) {
+      ByteBuffer buff = ByteBuffer.allocate(PREFETCH_BUFFER_BYTES);
+      long remaining = Math.min(ch.size(), PREFETCH_MAX_BYTES);
+      while (remaining > 0) {
+        buff.clear();
+        int nr = ch.read(buff);
+        if (nr < 0) {
+          break;
+        }
+        remaining -= nr;
+      }
+    }
+  }
+
+  /**
+   * File info from the in memory index, the disk is not accessed.
+   */
+  @Override
+  @Nullable
+  public FileInfo getFileInfo(String filePath) {
+    Path resolved = resolve(filePath);
+    if (resolved.equals(store)) {
+      return null;
+    }
+    return index.get(toFilePath(resolved));
+  }
+
+  private Path resolve(final String filePath) {
+    Path resolved = store.resolve(filePath).normalize();
+    if (!resolved.startsWith(store)) {
+      throw new IllegalArgumentException("Invalid Path: " + filePath);
+    }
+    return resolved;
+  }
+
   @Override
   @PreDestroy
   public void close() throws IOException {
     scheduleWithFixedDelay.cancel(true);
+    retentionPool.shutdown();
   }
 
+  /**
+   * Writes to a hidden temporary file in the destination folder, which is atomically renamed to the destination
+   * on close. Readers never see a partially written file, followers see the bytes as they are written.
+   */
+  private final class StoreOutputStream extends FilterOutputStream implements Abortable {
 
+    private final String filePath;
+
+    /** the normalized file path, used as index key. */
+    private final String indexKey;
+
+    private final Path tmp;
+
+    private final Path target;
+
+    private final long lastModifiedMillis;
+
+    /** written bytes, guarded by this, followers wait on this for progress. */
+    private long size;
+
+    private final CRC32C crc;
+
+    /** the abort reason, null unless aborted. */
+    private Exception aborted;
+
+    private boolean closed;
+
+    StoreOutputStream(final String filePath, final String indexKey, final Path tmp, final Path target,
+            final OutputStream out, final long lastModifiedMillis) {
+      super(out);
+      this.filePath = filePath;
+      this.indexKey = indexKey;
+      this.tmp = tmp;
+      this.target = target;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.closed = false;
+      this.size = 0;
+      this.aborted = null;
+      this.crc = new CRC32C();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      out.write(b);
+      crc.update(b);
+      progress(1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      out.write(b, off, len);
+      crc.update(b, off, len);
+      progress(len);
+    }
+
+    private synchronized void progress(final long len) {
+      size += len;
+      notifyAll();
+    }
+
+    private synchronized long awaitProgress(final long position) throws IOException {
+      long deadline = System.currentTimeMillis() + FOLLOW_STALL_MILLIS;
+      while (size <= position && !closed) {
+        long waitMillis = deadline - System.currentTimeMillis();
+        if (waitMillis <= 0) {
+          throw new IOException("No progress writing " + filePath + " in " + FOLLOW_STALL_MILLIS + " ms");
+        }
+        try {
+          wait(waitMillis);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while following " + filePath);
+        }
+      }
+      if (aborted != null) {
+        throw new IOException("Writing " + filePath + " was aborted", aborted);
+      }
+      return size;
+    }
+
+    private synchronized void done(@Nullable final Exception abortReason) {
+      closed = true;
+      aborted = abortReason;
+      notifyAll();
+    }
+
+    @Override
+    public void abort(final Exception reason) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        done(reason);
+      }
+      uploads.remove(indexKey, this);
+      try {
+        out.close();
+      } catch (IOException ex) {
+        reason.addSuppressed(ex);
+      }
+      try {
+        Files.deleteIfExists(tmp);
+      } catch (IOException ex) {
+        LOG.warn("Unable to delete {}", tmp, ex);
+      }
+      LOG.debug("Aborted writing {}", filePath, reason);
+    }
+
+    @Override
+    public void close() throws IOException {
+      long fileSize;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        fileSize = size;
+      }
+      long crc32c = crc.getValue();
+      try {
+        out.close();
+        Files.setLastModifiedTime(tmp, FileTime.fromMillis(lastModifiedMillis));
+        synchronized (publishLock(indexKey)) {
+          try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+          } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+          }
+          index.put(indexKey, new FileInfo(fileSize, lastModifiedMillis, crc32c));
+        }
+      } catch (IOException | RuntimeException ex) {
+        abort(ex);
+        throw ex;
+      }
+      try {
+        Files.write(sidecar(target), FileInfo.crc32cToString(crc32c).getBytes(StandardCharsets.US_ASCII));
+      } catch (IOException ex) {
+        LOG.warn("Unable to write checksum of {}", filePath, ex);
+      }
+      uploads.remove(indexKey, this);
+      done(null);
+      if (maxGroupBytes != Long.MAX_VALUE) {
+        FileIndex.Group group = index.getGroup(FileIndex.groupOf(indexKey));
+        if (group != null) {
+          enforceGroupQuota(group);
+        }
+      }
+      requestStoreLimits();
+      listeners.fileStored(filePath);
+    }
+  }
+
+  /**
+   * Reads the temporary file of an upload, waiting for the writer when caught up.
+   */
+  private static final class FollowInputStream extends InputStream {
+
+    private final StoreOutputStream upload;
+
+    private final FileChannel channel;
+
+    private long position;
+
+    FollowInputStream(final StoreOutputStream upload, final FileChannel channel) {
+      this.upload = upload;
+      this.channel = channel;
+      this.position = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int nr = read(b, 0, 1);
+      return nr < 0 ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      long available = upload.awaitProgress(position);
+      if (position >= available) {
+        return -1;
+      }
+      int nr = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available - position)), position);
+      if (nr < 0) {
+        throw new IOException("Unexpected end of " + upload.filePath + " at " + position
+                + ", expected " + available);
+      }
+      position += nr;
+      return nr;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
 
 }
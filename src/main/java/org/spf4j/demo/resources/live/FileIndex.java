@@ -0,0 +1,263 @@
+package org.spf4j.demo.resources.live;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * In memory index of the files of a store, partitioned by group (the first path element).
+ * Holds the size and modification time of every file, and serves folder listings without touching the disk.
+ * Every group keeps its files ordered by modification time so that retention only needs to look at
+ * the files that actually expired, and tracks its byte usage incrementally for quota enforcement.
+ *
+ * @author Zoltan Farkas
+ */
+final class FileIndex {
+
+  private final ConcurrentMap<String, Group> groups;
+
+  private final AtomicLong totalBytes;
+
+  FileIndex() {
+    this.groups = new ConcurrentHashMap<>();
+    this.totalBytes = new AtomicLong();
+  }
+
+  /**
+   * @return the sum of the sizes of all indexed files.
+   */
+  long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  static String groupOf(final String filePath) {
+    int idx = filePath.indexOf('/');
+    return idx < 0 ? "" : filePath.substring(0, idx);
+  }
+
+  void put(final String filePath, final FileInfo info) {
+    groups.compute(groupOf(filePath), (name, group) -> {
+      Group result = group == null ? new Group(name, totalBytes) : group;
+      result.put(filePath, info);
+      return result;
+    });
+  }
+
+  /**
+   * Indexes a file and runs withGroupLock while holding the group monitor, for stores that keep
+   * the file content next to the index: the content update is atomic with respect to retention and eviction,
+   * which hold the group monitor while they poll and remove files.
+   */
+  void put(final String filePath, final FileInfo info, final Runnable withGroupLock) {
+    groups.compute(groupOf(filePath), (name, group) -> {
+      Group result = group == null ? new Group(name, totalBytes) : group;
+      synchronized (result) {
+        result.put(filePath, info);
+        withGroupLock.run();
+      }
+      return result;
+    });
+  }
+
+  @Nullable
+  FileInfo get(final String filePath) {
+    Group group = groups.get(groupOf(filePath));
+    return group == null ? null : group.get(filePath);
+  }
+
+  @Nullable
+  Group getGroup(final String name) {
+    return groups.get(name);
+  }
+
+  List<Group> getGroups() {
+    return new ArrayList<>(groups.values());
+  }
+
+  /**
+   * Lists the names of the files and folders directly under a folder.
+   * @param folder the folder path, "" for the root.
+   * @return the sorted names, or null if there is nothing indexed under folder.
+   */
+  @Nullable
+  List<String> list(final String folder) {
+    if (folder.isEmpty()) {
+      NavigableSet<String> result = new TreeSet<>();
+      for (Map.Entry<String, Group> entry : groups.entrySet()) {
+        String name = entry.getKey();
+        if (name.isEmpty()) {
+          result.addAll(entry.getValue().list(""));
+        } else {
+          result.add(name);
+        }
+      }
+      return new ArrayList<>(result);
+    }
+    String prefix = folder + '/';
+    Group group = groups.get(groupOf(prefix));
+    if (group == null) {
+      return null;
+    }
+    NavigableSet<String> result = group.list(prefix);
+    return result.isEmpty() ? null : new ArrayList<>(result);
+  }
+
+  /**
+   * Drops the group if it has no files left.
+   * @return true if the group was removed.
+   */
+  boolean removeIfEmpty(final Group group) {
+    boolean[] removed = new boolean[1];
+    groups.computeIfPresent(group.getName(), (name, g) -> {
+      if (g == group && g.isEmpty()) {
+        removed[0] = true;
+        return null;
+      }
+      return g;
+    });
+    return removed[0];
+  }
+
+  static final class Group {
+
+    private final String name;
+
+    /** file path -> info, sorted so that folder listings are range reads. */
+    private final NavigableMap<String, FileInfo> files;
+
+    private final AtomicLong totalBytes;
+
+    private long bytes;
+
+    private long sequence;
+
+    /** expiry entries, ordered by modification time; rewritten files leave stale entries that are skipped. */
+    private final PriorityQueue<Expiry> expiries;
+
+    Group(final String name, final AtomicLong totalBytes) {
+      this.name = name;
+      this.files = new TreeMap<>();
+      this.expiries = new PriorityQueue<>();
+      this.totalBytes = totalBytes;
+      this.bytes = 0;
+      this.sequence = 0;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    synchronized void put(final String filePath, final FileInfo info) {
+      FileInfo prev = files.put(filePath, info);
+      long delta = prev == null ? info.getSize() : info.getSize() - prev.getSize();
+      bytes += delta;
+      totalBytes.addAndGet(delta);
+      expiries.add(new Expiry(info.getLastModifiedMillis(), sequence++, filePath));
+    }
+
+    synchronized long getBytes() {
+      return bytes;
+    }
+
+    synchronized int size() {
+      return files.size();
+    }
+
+    @Nullable
+    synchronized FileInfo get(final String filePath) {
+      return files.get(filePath);
+    }
+
+    synchronized boolean isEmpty() {
+      return files.isEmpty();
+    }
+
+    /**
+     * @return the names of the files and folders directly under prefix (a folder path ending with /, or "").
+     */
+    synchronized NavigableSet<String> list(final String prefix) {
+      NavigableSet<String> result = new TreeSet<>();
+      int from = prefix.length();
+      for (String filePath : files.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet()) {
+        int idx = filePath.indexOf('/', from);
+        result.add(idx < 0 ? filePath.substring(from) : filePath.substring(from, idx));
+      }
+      return result;
+    }
+
+    /**
+     * Removes from the index the next file last modified before cutoffMillis.
+     * Callers that need to delete the file should hold the group monitor across this call and the delete,
+     * so that a concurrent rewrite is not lost.
+     * Files that fail to be deleted are to be put back with {@link #restore(String, FileInfo)}.
+     * @param examined incremented with every expiry entry looked at.
+     * @return the expired file path and info, or null if no file is older than cutoffMillis.
+     */
+    @Nullable
+    synchronized Map.Entry<String, FileInfo> pollExpired(final long cutoffMillis, final int[] examined) {
+      Expiry expiry;
+      while ((expiry = expiries.peek()) != null && expiry.millis < cutoffMillis) {
+        expiries.poll();
+        examined[0]++;
+        FileInfo info = files.get(expiry.filePath);
+        if (info != null && info.getLastModifiedMillis() == expiry.millis) {
+          files.remove(expiry.filePath);
+          bytes -= info.getSize();
+          totalBytes.addAndGet(-info.getSize());
+          return new AbstractMap.SimpleImmutableEntry<>(expiry.filePath, info);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Puts back a polled file that could not be deleted, unless the file was stored again meanwhile.
+     * The file expires again, with the next sweep.
+     */
+    synchronized void restore(final String filePath, final FileInfo info) {
+      if (!files.containsKey(filePath)) {
+        put(filePath, info);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Group{" + "name=" + name + '}';
+    }
+
+  }
+
+  private static final class Expiry implements Comparable<Expiry> {
+
+    private final long millis;
+
+    /** insertion order, to keep files written in the same millisecond in write order. */
+    private final long sequence;
+
+    private final String filePath;
+
+    Expiry(final long millis, final long sequence, final String filePath) {
+      this.millis = millis;
+      this.sequence = sequence;
+      this.filePath = filePath;
+    }
+
+    @Override
+    public int compareTo(final Expiry o) {
+      int result = Long.compare(millis, o.millis);
+      return result != 0 ? result : Long.compare(sequence, o.sequence);
+    }
+
+  }
+
+}
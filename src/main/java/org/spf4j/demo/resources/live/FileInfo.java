@@ -0,0 +1,91 @@
+
+package org.spf4j.demo.resources.live;
+
+/**
+ * File metadata as known by a {@link FileStore}.
+ * @author Zoltan Farkas
+ */
+public final class FileInfo {
+
+  /** the CRC32C of the content, as 8 hex digits, sent with uploads and downloads between peers. */
+  public static final String CRC32C_HEADER = "X-Content-CRC32C";
+
+  /**
+   * sent instead of the CRC32C header with uploads streamed before their checksum is known: the body is the content
+   * followed by its CRC32C, as 4 bytes big endian, which the peer verifies before publishing the file.
+   */
+  public static final String CRC32C_TRAILER_HEADER = "X-Content-CRC32C-Trailer";
+
+  /**
+   * the modification time of the original file in epoch millis, sent with uploads and downloads between peers,
+   * the Last-Modified header having a one second resolution.
+   */
+  public static final String LAST_MODIFIED_HEADER = "X-Last-Modified-Millis";
+
+  private final long size;
+
+  private final long lastModifiedMillis;
+
+  private final long crc32c;
+
+  public FileInfo(final long size, final long lastModifiedMillis) {
+    this(size, lastModifiedMillis, -1);
+  }
+
+  /**
+   * @param crc32c the CRC32C checksum of the content, -1 if not known.
+   */
+  public FileInfo(final long size, final long lastModifiedMillis, final long crc32c) {
+    this.size = size;
+    this.lastModifiedMillis = lastModifiedMillis;
+    this.crc32c = crc32c;
+  }
+
+  /**
+   * @return the CRC32C checksum of the content, -1 if not known.
+   */
+  public long getCrc32c() {
+    return crc32c;
+  }
+
+  public boolean hasCrc32c() {
+    return crc32c >= 0;
+  }
+
+  /**
+   * @return the checksum as 8 hex digits, the format used in headers and sidecar files.
+   */
+  public static String crc32cToString(final long crc32c) {
+    return String.format("%08x", crc32c);
+  }
+
+  /**
+   * @return the checksum, or -1 if value is not a valid checksum.
+   */
+  public static long parseCrc32c(final String value) {
+    String str = value.trim();
+    if (str.isEmpty() || str.length() > 8) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(str, 16);
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getLastModifiedMillis() {
+    return lastModifiedMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "FileInfo{" + "size=" + size + ", lastModifiedMillis=" + lastModifiedMillis
+            + ", crc32c=" + crc32c + '}';
+  }
+
+}
@@ -0,0 +1,47 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.security.PermitAll;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import org.spf4j.jaxrs.Timeout;
+
+/**
+ * Exposes the manifests of the local file store, see {@link FileManifests}.
+ * @author Zoltan Farkas
+ */
+@Path("/fileManifests")
+@Singleton
+@PermitAll
+public class FileManifestResource {
+
+  private final FileStore localStore;
+
+  @Inject
+  public FileManifestResource(@Named("local") final FileStore localStore) {
+    this.localStore = localStore;
+  }
+
+  @GET
+  @Produces(MediaType.TEXT_PLAIN)
+  @Timeout(value = 15, unit = TimeUnit.SECONDS)
+  public String getGroupHashes() throws IOException {
+    return FileManifests.writeGroupHashes(FileManifests.groupHashes(localStore));
+  }
+
+  @Path("{group}")
+  @GET
+  @Produces(MediaType.TEXT_PLAIN)
+  @Timeout(value = 15, unit = TimeUnit.SECONDS)
+  public String getGroupEntries(@PathParam("group") final String group) throws IOException {
+    return FileManifests.writeEntries(FileManifests.groupEntries(localStore, group));
+  }
+
+}
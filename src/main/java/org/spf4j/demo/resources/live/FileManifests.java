@@ -0,0 +1,228 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import org.spf4j.base.CloseableIterable;
+
+/**
+ * Compact manifests of the content of a FileStore, used to reconcile the content of cluster nodes.
+ * The manifest is a 2 level hash tree: a hash per group (first level directory), computed over the names, sizes
+ * and CRC32C checksums (when known) of the files in the group. Modification times are not part of the hash:
+ * copies keep the time of the original (see {@link FileStore#storeFile(String, long)}), but only to the second
+ * when read from a peer that does not send the exact time. They are part of the entries so that old files
+ * are not pulled, and so that a file is not replaced by an older version.
+ *
+ * Manifests are exchanged as text, one entry per line, tab separated: name, size, modification time and the
+ * checksum as 8 hex digits, the checksum column is missing when not known.
+ *
+ * @author Zoltan Farkas
+ */
+public final class FileManifests {
+
+  private FileManifests() { }
+
+  /**
+   * @return the list of files in a group, sorted by name.
+   */
+  public static List<Entry> groupEntries(final FileStore store, final String group) throws IOException {
+    CloseableIterable<String> names = store.list(group);
+    if (names == null) {
+      return Collections.emptyList();
+    }
+    List<Entry> result = new ArrayList<>();
+    try (CloseableIterable<String> n = names) {
+      for (String name : n) {
+        FileInfo info = store.getFileInfo(group + '/' + name);
+        if (info != null) {
+          result.add(new Entry(name, info.getSize(), info.getLastModifiedMillis(), info.getCrc32c()));
+        }
+      }
+    }
+    result.sort((a, b) -> a.name.compareTo(b.name));
+    return result;
+  }
+
+  /**
+   * @return group name to group hash.
+   */
+  public static Map<String, String> groupHashes(final FileStore store) throws IOException {
+    CloseableIterable<String> groups = store.list("");
+    if (groups == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> result = new TreeMap<>();
+    try (CloseableIterable<String> g = groups) {
+      for (String group : g) {
+        if (store.getFileInfo(group) == null) { // directories only.
+          result.put(group, hash(groupEntries(store, group)));
+        }
+      }
+    }
+    return result;
+  }
+
+  public static String hash(final List<Entry> entries) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+    for (Entry entry : entries) {
+      md.update(entry.name.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) '\t');
+      md.update(Long.toString(entry.size).getBytes(StandardCharsets.US_ASCII));
+      if (entry.hasCrc32c()) {
+        md.update((byte) '\t');
+        md.update(FileInfo.crc32cToString(entry.crc32c).getBytes(StandardCharsets.US_ASCII));
+      }
+      md.update((byte) '\n');
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(md.digest());
+  }
+
+  public static String writeGroupHashes(final Map<String, String> hashes) {
+    StringBuilder result = new StringBuilder(hashes.size() * 64);
+    for (Map.Entry<String, String> entry : hashes.entrySet()) {
+      result.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+    }
+    return result.toString();
+  }
+
+  public static Map<String, String> readGroupHashes(final Reader reader) throws IOException {
+    Map<String, String> result = new HashMap<>();
+    BufferedReader br = new BufferedReader(reader);
+    String line;
+    while ((line = br.readLine()) != null) {
+      int idx = line.indexOf('\t');
+      if (idx < 0) {
+        throw new IOException("Invalid manifest line: " + line);
+      }
+      result.put(line.substring(0, idx), line.substring(idx + 1));
+    }
+    return result;
+  }
+
+  public static String writeEntries(final List<Entry> entries) {
+    StringBuilder result = new StringBuilder(entries.size() * 48);
+    for (Entry entry : entries) {
+      result.append(entry.name).append('\t').append(entry.size).append('\t')
+              .append(entry.lastModifiedMillis);
+      if (entry.hasCrc32c()) {
+        result.append('\t').append(FileInfo.crc32cToString(entry.crc32c));
+      }
+      result.append('\n');
+    }
+    return result.toString();
+  }
+
+  public static List<Entry> readEntries(final Reader reader) throws IOException {
+    List<Entry> result = new ArrayList<>();
+    BufferedReader br = new BufferedReader(reader);
+    String line;
+    while ((line = br.readLine()) != null) {
+      Entry entry = Entry.parse(line);
+      if (entry == null) {
+        throw new IOException("Invalid manifest line: " + line);
+      }
+      result.add(entry);
+    }
+    return result;
+  }
+
+  public static final class Entry {
+
+    private final String name;
+
+    private final long size;
+
+    private final long lastModifiedMillis;
+
+    private final long crc32c;
+
+    public Entry(final String name, final long size, final long lastModifiedMillis) {
+      this(name, size, lastModifiedMillis, -1);
+    }
+
+    /**
+     * @param crc32c the CRC32C checksum of the content, -1 if not known.
+     */
+    public Entry(final String name, final long size, final long lastModifiedMillis, final long crc32c) {
+      this.name = name;
+      this.size = size;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.crc32c = crc32c;
+    }
+
+    @Nullable
+    static Entry parse(final String line) {
+      String[] parts = line.split("\t");
+      if (parts.length != 3 && parts.length != 4) {
+        return null;
+      }
+      try {
+        long crc32c = -1;
+        if (parts.length == 4) {
+          crc32c = FileInfo.parseCrc32c(parts[3]);
+          if (crc32c < 0) {
+            return null;
+          }
+        }
+        return new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), crc32c);
+      } catch (NumberFormatException ex) {
+        return null;
+      }
+    }
+
+    /**
+     * @return true if the content of the files differs: the sizes, or the checksums when known by both, differ.
+     */
+    public boolean differs(final Entry other) {
+      return size != other.size || (hasCrc32c() && other.hasCrc32c() && crc32c != other.crc32c);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastModifiedMillis() {
+      return lastModifiedMillis;
+    }
+
+    /**
+     * @return the CRC32C checksum of the content, -1 if not known.
+     */
+    public long getCrc32c() {
+      return crc32c;
+    }
+
+    public boolean hasCrc32c() {
+      return crc32c >= 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Entry{" + "name=" + name + ", size=" + size + ", lastModifiedMillis=" + lastModifiedMillis
+              + ", crc32c=" + crc32c + '}';
+    }
+
+  }
+
+}
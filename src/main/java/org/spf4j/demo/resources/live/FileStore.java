@@ -5,6 +5,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
 import java.util.concurrent.TimeoutException;
 import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
@@ -27,7 +29,115 @@ public interface FileStore  extends Closeable {
   @Nullable
   InputStream readFile(String filePath) throws IOException;
 
-  OutputStream storeFile(String filePath) throws IOException, TimeoutException;
+  /**
+   * Open a file for random access reads. When the returned channel is a {@link java.nio.channels.FileChannel},
+   * consumers can use transferTo, which does not copy the content through the java heap when the target is a socket
+   * or file channel.
+   * @param filePath the file path relative to the store root.
+   * @return the read channel, or null if the file does not exist.
+   */
+  @Nullable
+  SeekableByteChannel readChannel(String filePath) throws IOException;
+
+  /**
+   * Open a file for reading, with the info of the opened version, for responses that send the size and checksum
+   * of a file before its content. Stores that publish a file by replacing the previous version need to implement
+   * this atomically, the default implementation only detects a replacement that changes the size, and drops the
+   * checksum of a file that keeps being replaced.
+   * @param filePath the file path relative to the store root.
+   * @return the opened file, or null if the file does not exist.
+   */
+  @Nullable
+  default OpenFile open(final String filePath) throws IOException {
+    for (int i = 0; i < 3; i++) {
+      SeekableByteChannel channel = readChannel(filePath);
+      if (channel == null) {
+        return null;
+      }
+      FileInfo info;
+      try {
+        info = getFileInfo(filePath);
+      } catch (IOException | RuntimeException ex) {
+        channel.close();
+        throw ex;
+      }
+      if (info != null && info.getSize() == channel.size()) {
+        return new OpenFile(channel, info);
+      }
+      channel.close();
+    }
+    SeekableByteChannel channel = readChannel(filePath);
+    return channel == null ? null : new OpenFile(channel, new FileInfo(channel.size(), System.currentTimeMillis()));
+  }
+
+  /**
+   * @param filePath the file path relative to the store root.
+   * @return the file size and last modification time, or null if the file does not exist (or is a directory).
+   */
+  @Nullable
+  FileInfo getFileInfo(String filePath) throws IOException;
+
+  /**
+   * Store a file. The file is published (becomes readable and listeners are notified) when the returned stream
+   * is closed. Returned streams that implement {@link Abortable} can be aborted to discard an incomplete file.
+   * The modification time of the file is the time storeFile is called.
+   */
+  default OutputStream storeFile(final String filePath) throws IOException, TimeoutException {
+    return storeFile(filePath, System.currentTimeMillis());
+  }
+
+  /**
+   * Store a copy of a file, see {@link #storeFile(String)}: replicated, pulled and written behind copies keep
+   * the modification time of the original (the time it was stored on the node that ingested it), so that the
+   * copies of a file compare equal across nodes, and expire with the original.
+   * @param lastModifiedMillis the modification time of the stored file.
+   */
+  OutputStream storeFile(String filePath, long lastModifiedMillis) throws IOException, TimeoutException;
+
+  /**
+   * Read a file that is currently being stored, following the writes until the file is published.
+   * Reads block until the writer appends more bytes, and fail if the writer aborts.
+   * @param filePath the file path relative to the store root.
+   * @return the file stream, or null if the file is not being stored (or the store does not support following).
+   */
+  @Nullable
+  default InputStream follow(final String filePath) throws IOException {
+    return null;
+  }
+
+  /**
+   * Hint that a file will be read soon: stores that read from disk load the file in memory, so that the first read
+   * does not wait for the disk. Stores that serve from memory do nothing, and so does a missing file.
+   * @param filePath the file path relative to the store root.
+   */
+  default void prefetch(final String filePath) throws IOException {
+    // nothing to prefetch by default.
+  }
+
+  /**
+   * Stores that place files on the nodes of a cluster serve the files of this node only, reads of the other files
+   * are to be redirected to a node that stores them.
+   * @param filePath the file path relative to the store root.
+   * @return the base URI (scheme, host and port) of the node to read the file from, null to read it from this store.
+   */
+  @Nullable
+  default URI locate(final String filePath) throws IOException {
+    return null;
+  }
+
+  /**
+   * @return for how long files are kept after their modification time, Long.MAX_VALUE if they do not expire.
+   */
+  default long getRetentionMillis() {
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Register a listener to be notified when a file stored via storeFile becomes readable.
+   */
+  void addListener(FileStoreListener listener);
+
+  void removeListener(FileStoreListener listener);
 
 
 }
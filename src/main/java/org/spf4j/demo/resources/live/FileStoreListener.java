@@ -0,0 +1,25 @@
+
+package org.spf4j.demo.resources.live;
+
+/**
+ * Listener notified by a {@link FileStore} when a file becomes readable, or is deleted by the store.
+ * Notifications are delivered on the writer thread, implementations must not block.
+ * @author Zoltan Farkas
+ */
+@FunctionalInterface
+public interface FileStoreListener {
+
+  /**
+   * @param filePath the path of the file that was (re)written, relative to the store root.
+   */
+  void fileStored(String filePath);
+
+  /**
+   * Notified when the store deletes a file on its own, to enforce retention or quotas.
+   * @param filePath the path of the deleted file, relative to the store root.
+   */
+  default void fileDeleted(final String filePath) {
+    // most listeners only care about new content.
+  }
+
+}
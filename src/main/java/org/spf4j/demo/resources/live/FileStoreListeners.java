@@ -0,0 +1,56 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of listeners a FileStore implementation notifies.
+ * @author Zoltan Farkas
+ */
+public final class FileStoreListeners {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FileStoreListeners.class);
+
+  private final List<FileStoreListener> listeners;
+
+  public FileStoreListeners() {
+    this.listeners = new CopyOnWriteArrayList<>();
+  }
+
+  public void add(final FileStoreListener listener) {
+    listeners.add(listener);
+  }
+
+  public void remove(final FileStoreListener listener) {
+    listeners.remove(listener);
+  }
+
+  public void fileStored(final String filePath) {
+    for (FileStoreListener listener : listeners) {
+      try {
+        listener.fileStored(filePath);
+      } catch (RuntimeException ex) {
+        LOG.error("Failed to notify {} of {}", listener, filePath, ex);
+      }
+    }
+  }
+
+  public void fileDeleted(final String filePath) {
+    for (FileStoreListener listener : listeners) {
+      try {
+        listener.fileDeleted(filePath);
+      } catch (RuntimeException ex) {
+        LOG.error("Failed to notify {} of {} deletion", listener, filePath, ex);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FileStoreListeners{" + listeners + '}';
+  }
+
+}
@@ -0,0 +1,249 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32C;
+import javax.annotation.Nullable;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * @author Zoltan Farkas
+ */
+public final class FileTransfers {
+
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private static final MeasurementRecorder INGEST_BYTES
+          = RecorderFactory.createScalableCountingRecorder("video_ingest_bytes", "bytes", SAMPLE_MILLIS);
+
+  /** bytes allocated per stored file, besides the reused pooled chunks. */
+  private static final MeasurementRecorder INGEST_ALLOCATED
+          = RecorderFactory.createScalableMinMaxAvgRecorder("video_ingest_allocated", "bytes", SAMPLE_MILLIS);
+
+  private FileTransfers() { }
+
+  /**
+   * Copy a stream to a stream returned by {@link FileStore#storeFile(String)},
+   * aborting the stored file if the copy fails, so that incomplete content is never published.
+   * The copy reads into pooled chunks, which are handed as they are to streams that are a {@link ChunkSink}.
+   * @return the number of bytes copied.
+   */
+  public static long store(final InputStream from, final OutputStream to) throws IOException {
+    return store(from, to, -1);
+  }
+
+  /**
+   * Copy a stream to a stream returned by {@link FileStore#storeFile(String)}, verifying the CRC32C of the content
+   * before the stored file is closed. On mismatch the stored file is aborted, and is never published.
+   * @param expectedCrc32c the expected checksum, -1 for no verification.
+   * @return the number of bytes copied.
+   * @throws ChecksumException when the content does not match the expected checksum.
+   */
+  public static long store(final InputStream from, final OutputStream to, final long expectedCrc32c)
+          throws IOException {
+    return store(from, to, expectedCrc32c < 0 ? null : () -> expectedCrc32c);
+  }
+
+  /**
+   * Copy a stream of content followed by its CRC32C (see {@link FileInfo#CRC32C_TRAILER_HEADER}) to a stream
+   * returned by {@link FileStore#storeFile(String)}, verifying the content before the stored file is closed.
+   * The trailer is not stored. On mismatch, or when the stream ends before the trailer, the stored file is aborted,
+   * and is never published.
+   * @return the number of content bytes copied.
+   * @throws ChecksumException when the content does not match the trailer checksum.
+   */
+  public static long storeWithCrc32cTrailer(final InputStream from, final OutputStream to) throws IOException {
+    TrailerInputStream content = new TrailerInputStream(from);
+    return store(content, to, content::getCrc32c);
+  }
+
+  /**
+   * @param expectedCrc32c the expected checksum, read once all the content is copied, null for no verification.
+   */
+  private static long store(final InputStream from, final OutputStream to,
+          @Nullable final LongSupplier expectedCrc32c) throws IOException {
+    CRC32C crc = expectedCrc32c == null ? null : new CRC32C();
+    long total = 0;
+    long allocated = 0;
+    try {
+      while (true) {
+        ChunkPool.Chunk chunk = ChunkPool.INGEST.take();
+        try {
+          if (chunk.isAllocated()) {
+            allocated += chunk.array().length;
+          }
+          if (chunk.fill(from) < 0) {
+            break;
+          }
+          if (crc != null) {
+            crc.update(chunk.array(), 0, chunk.length());
+          }
+          write(chunk, to);
+          total += chunk.length();
+        } finally {
+          chunk.release();
+        }
+      }
+      if (crc != null) {
+        long expected = expectedCrc32c.getAsLong();
+        if (crc.getValue() != expected) {
+          throw new ChecksumException("CRC32C " + FileInfo.crc32cToString(crc.getValue()) + " of " + total
+                  + " bytes, expected " + FileInfo.crc32cToString(expected));
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      Abortable.abort(to, ex);
+      throw ex;
+    } finally {
+      recordIngest(total, allocated);
+    }
+    return total;
+  }
+
+  /**
+   * Write a chunk to a store stream, handing it as it is to a {@link ChunkSink}.
+   */
+  static void write(final ChunkPool.Chunk chunk, final OutputStream to) throws IOException {
+    if (to instanceof ChunkSink) {
+      ((ChunkSink) to).write(chunk);
+    } else {
+      to.write(chunk.array(), 0, chunk.length());
+    }
+  }
+
+  static void recordIngest(final long bytes, final long allocated) {
+    INGEST_BYTES.record(bytes);
+    INGEST_ALLOCATED.record(allocated);
+  }
+
+  /**
+   * Transfer a region of a channel to a stream, like a servlet response stream: the content is read in pooled
+   * 64KB heap buffers, which are written to the stream as they are. A stream is not a channel the JDK can
+   * transfer to without copying the content to user space, and transferTo a channel over a stream copies
+   * the content twice, in 8KB writes, which is slower than a stream copy (see FileTransfersBenchmark).
+   * Segments stored on disk are sent by the container with sendfile instead, see VideoPubSubResource.
+   */
+  public static void transfer(final SeekableByteChannel from, final long position, final long count,
+          final OutputStream to) throws IOException {
+    ChunkPool.Chunk chunk = ChunkPool.SERVE.take();
+    try {
+      byte[] buff = chunk.array();
+      ByteBuffer bb = ByteBuffer.wrap(buff);
+      long pos = position;
+      long end = position + count;
+      from.position(pos);
+      while (pos < end) {
+        bb.clear();
+        if (end - pos < buff.length) {
+          bb.limit((int) (end - pos));
+        }
+        int read = from.read(bb);
+        if (read < 0) {
+          throw new IOException("Unexpected end of " + from + " at " + pos + ", expected " + end);
+        }
+        to.write(buff, 0, read);
+        pos += read;
+      }
+    } finally {
+      chunk.release();
+    }
+  }
+
+  /**
+   * The content of a stream that ends with a CRC32C trailer: the last 4 bytes are held back,
+   * and are the checksum once the stream is read to the end.
+   */
+  private static final class TrailerInputStream extends InputStream {
+
+    private static final int TRAILER_BYTES = 4;
+
+    private final InputStream in;
+
+    /** the last bytes read, not returned yet. */
+    private final byte[] held;
+
+    private final byte[] tmp;
+
+    private int heldLength;
+
+    private boolean eof;
+
+    TrailerInputStream(final InputStream in) {
+      this.in = in;
+      this.held = new byte[TRAILER_BYTES];
+      this.tmp = new byte[2 * TRAILER_BYTES];
+      this.heldLength = 0;
+      this.eof = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int nr = read(b, 0, 1);
+      return nr < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (eof) {
+        return -1;
+      }
+      while (heldLength < TRAILER_BYTES) {
+        int nr = in.read(held, heldLength, TRAILER_BYTES - heldLength);
+        if (nr < 0) {
+          throw new EOFException("Stream ended before the CRC32C trailer, " + heldLength + " bytes");
+        }
+        heldLength += nr;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      int nr = in.read(b, off, len);
+      if (nr < 0) {
+        eof = true;
+        return -1;
+      }
+      // the held bytes come first, the last TRAILER_BYTES of held + read are held back.
+      if (nr >= TRAILER_BYTES) {
+        System.arraycopy(b, off + nr - TRAILER_BYTES, tmp, 0, TRAILER_BYTES);
+        System.arraycopy(b, off, b, off + TRAILER_BYTES, nr - TRAILER_BYTES);
+        System.arraycopy(held, 0, b, off, TRAILER_BYTES);
+        System.arraycopy(tmp, 0, held, 0, TRAILER_BYTES);
+      } else {
+        System.arraycopy(held, 0, tmp, 0, TRAILER_BYTES);
+        System.arraycopy(b, off, tmp, TRAILER_BYTES, nr);
+        System.arraycopy(tmp, 0, b, off, nr);
+        System.arraycopy(tmp, nr, held, 0, TRAILER_BYTES);
+      }
+      return nr;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return eof ? 0 : in.available();
+    }
+
+    /**
+     * @return the CRC32C trailer, once the content is read to the end.
+     */
+    long getCrc32c() {
+      if (!eof) {
+        throw new IllegalStateException("Content not read to the end");
+      }
+      return ((held[0] & 0xFFL) << 24) | ((held[1] & 0xFFL) << 16) | ((held[2] & 0xFFL) << 8) | (held[3] & 0xFFL);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+}
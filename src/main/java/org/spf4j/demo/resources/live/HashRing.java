@@ -0,0 +1,110 @@
+package org.spf4j.demo.resources.live;
+
+import com.google.common.hash.Hashing;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring of the cluster nodes, used to place the files of a stream on K of the N nodes.
+ * Every node has a number of virtual nodes on the ring, the replicas of a key are the distinct nodes
+ * found walking the ring clockwise from the key hash. When a node joins or leaves, only the keys next to
+ * its virtual nodes change owners. Rings are immutable, membership changes derive a new ring from the current one.
+ *
+ * @author Zoltan Farkas
+ */
+final class HashRing {
+
+  private final int virtualNodes;
+
+  private final Set<InetAddress> members;
+
+  private final NavigableMap<Long, InetAddress> ring;
+
+  HashRing(final int virtualNodes) {
+    this(virtualNodes, Collections.emptySet(), new TreeMap<>());
+  }
+
+  private HashRing(final int virtualNodes, final Set<InetAddress> members, final NavigableMap<Long, InetAddress> ring) {
+    this.virtualNodes = virtualNodes;
+    this.members = members;
+    this.ring = ring;
+  }
+
+  Set<InetAddress> getMembers() {
+    return members;
+  }
+
+  /**
+   * @return a ring with the given members, this ring if the members did not change.
+   * Only the virtual nodes of the members that left or joined are removed or added.
+   */
+  HashRing withMembers(final Set<InetAddress> newMembers) {
+    if (members.equals(newMembers)) {
+      return this;
+    }
+    NavigableMap<Long, InetAddress> newRing = new TreeMap<>(ring);
+    for (InetAddress member : members) {
+      if (!newMembers.contains(member)) {
+        for (int i = 0; i < virtualNodes; i++) {
+          newRing.remove(hash(member.getHostAddress() + '#' + i), member);
+        }
+      }
+    }
+    for (InetAddress member : newMembers) {
+      if (!members.contains(member)) {
+        for (int i = 0; i < virtualNodes; i++) {
+          newRing.merge(hash(member.getHostAddress() + '#' + i), member,
+                  // hash collision, resolved the same way on all nodes.
+                  (a, b) -> a.getHostAddress().compareTo(b.getHostAddress()) <= 0 ? a : b);
+        }
+      }
+    }
+    return new HashRing(virtualNodes, Collections.unmodifiableSet(new HashSet<>(newMembers)), newRing);
+  }
+
+  /**
+   * @return the first k distinct nodes clockwise from the key hash, the preferred replica first.
+   */
+  List<InetAddress> replicas(final String key, final int k) {
+    int n = Math.min(k, members.size());
+    List<InetAddress> result = new ArrayList<>(n);
+    if (n <= 0) {
+      return result;
+    }
+    long h = hash(key);
+    addDistinct(ring.tailMap(h, true), result, n);
+    if (result.size() < n) {
+      addDistinct(ring.headMap(h, false), result, n);
+    }
+    return result;
+  }
+
+  private static void addDistinct(final Map<Long, InetAddress> nodes, final List<InetAddress> result, final int n) {
+    for (InetAddress node : nodes.values()) {
+      if (!result.contains(node)) {
+        result.add(node);
+        if (result.size() >= n) {
+          return;
+        }
+      }
+    }
+  }
+
+  private static long hash(final String value) {
+    return Hashing.murmur3_128().hashString(value, StandardCharsets.UTF_8).asLong();
+  }
+
+  @Override
+  public String toString() {
+    return "HashRing{" + "members=" + members + ", virtualNodes=" + virtualNodes + '}';
+  }
+
+}
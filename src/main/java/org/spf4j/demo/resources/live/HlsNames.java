@@ -0,0 +1,65 @@
+package org.spf4j.demo.resources.live;
+
+import java.util.function.Predicate;
+
+/**
+ * HLS file naming conventions, as produced by ffmpeg's hls muxer: a stream "group/name" is made of the
+ * playlist "group/name.m3u8" and the segments "group/name0.ts", "group/name1.ts"...
+ *
+ * @author Zoltan Farkas
+ */
+public final class HlsNames {
+
+  public static final String PLAYLIST_EXT = ".m3u8";
+
+  public static final String SEGMENT_EXT = ".ts";
+
+  private HlsNames() { }
+
+  public static boolean isPlaylist(final String filePath) {
+    return filePath.endsWith(PLAYLIST_EXT);
+  }
+
+  public static boolean isSegment(final String filePath) {
+    return filePath.endsWith(SEGMENT_EXT);
+  }
+
+  /**
+   * @param filePath a playlist or segment path.
+   * @return the stream the file belongs to: the path without extension, and without the segment number.
+   * The segment number is all the trailing digits of a segment name, use {@link #streamOf(String, Predicate)}
+   * for streams with names that end in a digit.
+   */
+  public static String streamOf(final String filePath) {
+    return streamOf(filePath, (stream) -> false);
+  }
+
+  /**
+   * The segment number can not be told apart from a stream name that ends in a digit: "cam10.ts" is segment 0
+   * of "cam1" or segment 10 of "cam". Segments are resolved against the known streams, the longest known stream
+   * the segment name starts with wins, a segment of no known stream is attributed to the stream without any
+   * trailing digit.
+   *
+   * @param filePath a playlist or segment path.
+   * @param isStream tests if a stream, "group/name", is known (has a playlist).
+   * @return the stream the file belongs to.
+   */
+  public static String streamOf(final String filePath, final Predicate<String> isStream) {
+    int end = filePath.lastIndexOf('.');
+    if (end <= filePath.lastIndexOf('/')) {
+      end = filePath.length();
+    }
+    if (isSegment(filePath)) {
+      int start = filePath.lastIndexOf('/') + 1;
+      while (end > start + 1 && Character.isDigit(filePath.charAt(end - 1))) {
+        end--;
+        String stream = filePath.substring(0, end);
+        if (isStream.test(stream)) {
+          return stream;
+        }
+      }
+    }
+    return filePath.substring(0, end);
+  }
+
+}
@@ -0,0 +1,58 @@
+package org.spf4j.demo.resources.live;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The streams a node has seen a playlist of, used to resolve the stream of segments
+ * (see {@link HlsNames#streamOf(String, Predicate)}). A segment stored before the first playlist of its stream
+ * is attributed to the stream without trailing digits. Bounded, the least recently seen streams are forgotten first.
+ *
+ * @author Zoltan Farkas
+ */
+final class HlsStreams {
+
+  private static final int DEFAULT_MAX_STREAMS = 16384;
+
+  /** guarded by this. */
+  private final LinkedHashMap<String, Boolean> streams;
+
+  HlsStreams() {
+    this(DEFAULT_MAX_STREAMS);
+  }
+
+  HlsStreams(final int maxStreams) {
+    this.streams = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+        return size() > maxStreams;
+      }
+    };
+  }
+
+  /**
+   * @param filePath a playlist or segment path, the stream of a playlist becomes known.
+   * @return the stream of the file.
+   */
+  String streamOf(final String filePath) {
+    if (HlsNames.isPlaylist(filePath)) {
+      String stream = HlsNames.streamOf(filePath);
+      synchronized (this) {
+        streams.put(stream, Boolean.TRUE);
+      }
+      return stream;
+    }
+    return HlsNames.streamOf(filePath, this::isKnown);
+  }
+
+  synchronized boolean isKnown(final String stream) {
+    return streams.get(stream) != null;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "HlsStreams{" + "streams=" + streams.size() + '}';
+  }
+
+}
@@ -0,0 +1,406 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.CloseableIterable;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * A file store that keeps the files in direct (off heap) buffers, for pods that only serve a short live window
+ * and should not touch the disk. Files expire after the retention time like with {@link FSFileStore},
+ * and the oldest files of the largest groups are evicted when the byte budget is exceeded.
+ * The buffers capturing files being written are reserved against the budget before they are allocated, uploads
+ * that cannot be made room for fail, instead of exhausting the direct memory.
+ * Files are indexed per group (see {@link FileIndex}), every group having its own lock, so that writers and
+ * retention in one group do not contend with the other groups; reads do not lock.
+ *
+ * @author Zoltan Farkas
+ */
+public final class InMemoryFileStore implements Closeable, FileStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(InMemoryFileStore.class);
+
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private static final int INITIAL_CAPTURE_BYTES = 256 * 1024;
+
+  private final FileIndex index;
+
+  /** file path -> read only content, updated while holding the group monitor. */
+  private final ConcurrentMap<String, ByteBuffer> contents;
+
+  private final long maxBytes;
+
+  /** the capacity of the capture buffers of the files being written. */
+  private final AtomicLong reservedBytes;
+
+  private final long retentionMillis;
+
+  private final FileStoreListeners listeners;
+
+  private final ScheduledFuture<?> scheduleWithFixedDelay;
+
+  private final MeasurementRecorder bytes;
+
+  private final MeasurementRecorder retentionDeleted;
+
+  private final MeasurementRecorder evictions;
+
+  /**
+   * @param maxBytes the byte budget of the store.
+   */
+  public InMemoryFileStore(final long maxBytes, final long retentionTime, final TimeUnit tu) {
+    this.maxBytes = maxBytes;
+    this.reservedBytes = new AtomicLong();
+    this.retentionMillis = tu.toMillis(retentionTime);
+    this.index = new FileIndex();
+    this.contents = new ConcurrentHashMap<>();
+    this.listeners = new FileStoreListeners();
+    this.bytes = RecorderFactory.createScalableMinMaxAvgRecorder("video_memory_store_bytes", "bytes",
+            SAMPLE_MILLIS);
+    this.retentionDeleted = RecorderFactory.createScalableCountingRecorder("video_memory_retention_deleted",
+            "count", SAMPLE_MILLIS);
+    this.evictions = RecorderFactory.createScalableCountingRecorder("video_memory_evictions", "count",
+            SAMPLE_MILLIS);
+    long cleanupMillis = Math.max(1000, Math.min(60000, retentionMillis / 10));
+    scheduleWithFixedDelay = DefaultScheduler.instance().scheduleWithFixedDelay(() -> {
+      try {
+        cleanup();
+      } catch (RuntimeException ex) {
+        LOG.error("Failured to cleanup files", ex);
+      }
+    }, cleanupMillis, cleanupMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Drops the files older than the retention time. Only expired index entries are looked at.
+   */
+  void cleanup() {
+    long cutoffMillis = System.currentTimeMillis() - retentionMillis;
+    int[] examined = new int[1];
+    int nrDeleted = 0;
+    for (FileIndex.Group group : index.getGroups()) {
+      while (true) {
+        synchronized (group) {
+          Map.Entry<String, FileInfo> expired = group.pollExpired(cutoffMillis, examined);
+          if (expired == null) {
+            break;
+          }
+          contents.remove(expired.getKey());
+          nrDeleted++;
+        }
+      }
+      index.removeIfEmpty(group);
+    }
+    retentionDeleted.record(nrDeleted);
+    bytes.record(index.getTotalBytes());
+  }
+
+  /**
+   * @return the bytes of the stored files and of the capture buffers.
+   */
+  private long usedBytes() {
+    return index.getTotalBytes() + reservedBytes.get();
+  }
+
+  /**
+   * Reserve bytes for a capture buffer, evicting files to make room.
+   * @throws IOException if there is no room for the reservation, even after evicting.
+   */
+  private void reserve(final long nrBytes, final String filePath) throws IOException {
+    if (nrBytes > maxBytes) {
+      throw new IOException("File too large " + filePath + ", " + nrBytes + " bytes, budget " + maxBytes);
+    }
+    reservedBytes.addAndGet(nrBytes);
+    if (usedBytes() > maxBytes) {
+      enforceBudget();
+      if (usedBytes() > maxBytes) {
+        reservedBytes.addAndGet(-nrBytes);
+        throw new IOException("No room for " + filePath + " in budget " + maxBytes + ", "
+                + reservedBytes.get() + " bytes being written");
+      }
+    }
+  }
+
+  /**
+   * Evicts files while above the byte budget, the oldest file of the group using the most bytes first.
+   * The most recent file of a group is evicted only when no group has older files.
+   */
+  private synchronized void enforceBudget() {
+    int nrEvicted = 0;
+    while (usedBytes() > maxBytes) {
+      FileIndex.Group largest = largestGroup(2);
+      if (largest == null) {
+        largest = largestGroup(1);
+      }
+      if (largest == null || !evictOldest(largest)) {
+        break;
+      }
+      nrEvicted++;
+    }
+    if (nrEvicted > 0) {
+      evictions.record(nrEvicted);
+      LOG.debug("Evicted {} files to stay within {} bytes", nrEvicted, maxBytes);
+    }
+  }
+
+  @Nullable
+  private FileIndex.Group largestGroup(final int minFiles) {
+    FileIndex.Group largest = null;
+    long largestBytes = 0;
+    for (FileIndex.Group group : index.getGroups()) {
+      long groupBytes = group.getBytes();
+      if (groupBytes > largestBytes && group.size() >= minFiles) {
+        largest = group;
+        largestBytes = groupBytes;
+      }
+    }
+    return largest;
+  }
+
+  private boolean evictOldest(final FileIndex.Group group) {
+    synchronized (group) {
+      Map.Entry<String, FileInfo> oldest = group.pollExpired(Long.MAX_VALUE, new int[1]);
+      if (oldest == null) {
+        return false;
+      }
+      contents.remove(oldest.getKey());
+      return true;
+    }
+  }
+
+  /**
+   * @return the normalized index key of filePath.
+   */
+  private static String toKey(final String filePath) {
+    Path path = Path.of(filePath).normalize();
+    String key = path.toString().replace(path.getFileSystem().getSeparator(), "/");
+    if (path.isAbsolute() || path.startsWith("..")) {
+      throw new IllegalArgumentException("Invalid Path: " + filePath);
+    }
+    return key;
+  }
+
+  @Override
+  @Nullable
+  public CloseableIterable<String> list(final String path) {
+    List<String> names = index.list(path.isEmpty() ? "" : toKey(path));
+    return names == null ? null : CloseableIterable.from(names);
+  }
+
+  @Override
+  @Nullable
+  public InputStream readFile(final String filePath) {
+    SeekableByteChannel channel = readChannel(filePath);
+    return channel == null ? null : Channels.newInputStream(channel);
+  }
+
+  @Override
+  @Nullable
+  public SeekableByteChannel readChannel(final String filePath) {
+    ByteBuffer content = contents.get(toKey(filePath));
+    return content == null ? null : new ByteBufferChannel(content);
+  }
+
+  /**
+   * The content and info are read while holding the group monitor, which publishing holds while updating both.
+   */
+  @Override
+  @Nullable
+  public OpenFile open(final String filePath) {
+    String key = toKey(filePath);
+    FileIndex.Group group = index.getGroup(FileIndex.groupOf(key));
+    if (group == null) {
+      return null;
+    }
+    synchronized (group) {
+      ByteBuffer content = contents.get(key);
+      FileInfo info = group.get(key);
+      return content == null || info == null ? null : new OpenFile(new ByteBufferChannel(content), info);
+    }
+  }
+
+  @Override
+  @Nullable
+  public FileInfo getFileInfo(final String filePath) {
+    String key = toKey(filePath);
+    return key.isEmpty() ? null : index.get(key);
+  }
+
+  @Override
+  public OutputStream storeFile(final String filePath) {
+    return storeFile(filePath, System.currentTimeMillis());
+  }
+
+  @Override
+  public OutputStream storeFile(final String filePath, final long lastModifiedMillis) {
+    String key = toKey(filePath);
+    if (key.isEmpty()) {
+      throw new IllegalArgumentException("Invalid Path: " + filePath);
+    }
+    return new MemoryOutputStream(filePath, key, lastModifiedMillis);
+  }
+
+  @Override
+  public long getRetentionMillis() {
+    return retentionMillis;
+  }
+
+  @Override
+  public void addListener(final FileStoreListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(final FileStoreListener listener) {
+    listeners.remove(listener);
+  }
+
+  public long getBytes() {
+    return index.getTotalBytes();
+  }
+
+  @Override
+  @PreDestroy
+  public void close() {
+    scheduleWithFixedDelay.cancel(true);
+  }
+
+  @Override
+  public String toString() {
+    return "InMemoryFileStore{" + "maxBytes=" + maxBytes + ", retentionMillis=" + retentionMillis + '}';
+  }
+
+  /**
+   * Captures the content in a direct buffer, reserved against the budget, the file is published on close.
+   * The buffer is allocated on the first write, and grows by doubling, within the room left in the budget.
+   */
+  private final class MemoryOutputStream extends OutputStream implements Abortable {
+
+    private final String filePath;
+
+    private final String key;
+
+    private final long lastModifiedMillis;
+
+    @Nullable
+    private ByteBuffer capture;
+
+    private final CRC32C crc;
+
+    private boolean closed;
+
+    MemoryOutputStream(final String filePath, final String key, final long lastModifiedMillis) {
+      this.filePath = filePath;
+      this.key = key;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.capture = null;
+      this.crc = new CRC32C();
+      this.closed = false;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      ensureCapacity(1).put((byte) b);
+      crc.update(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      ensureCapacity(len).put(b, off, len);
+      crc.update(b, off, len);
+    }
+
+    private ByteBuffer ensureCapacity(final int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed for " + filePath);
+      }
+      if (capture == null) {
+        int capacity = (int) Math.max(len, Math.min(INITIAL_CAPTURE_BYTES, maxBytes - usedBytes()));
+        reserve(capacity, filePath);
+        capture = ByteBuffer.allocateDirect(capacity);
+      } else if (capture.remaining() < len) {
+        long needed = (long) capture.position() + len;
+        if (needed > Integer.MAX_VALUE) {
+          throw new IOException("File too large " + filePath + ", " + needed + " bytes");
+        }
+        long capacity = Math.max(needed, Math.min(Math.min(Integer.MAX_VALUE, capture.capacity() * 2L),
+                maxBytes - usedBytes()));
+        reserve(capacity, filePath);
+        ByteBuffer nb = ByteBuffer.allocateDirect((int) capacity);
+        capture.flip();
+        nb.put(capture);
+        releaseCapture();
+        capture = nb;
+      }
+      return capture;
+    }
+
+    private void releaseCapture() {
+      if (capture != null) {
+        reservedBytes.addAndGet(-capture.capacity());
+        capture = null;
+      }
+    }
+
+    @Override
+    public void abort(final Exception reason) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      releaseCapture();
+      LOG.debug("Aborted writing {}", filePath, reason);
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (capture == null) {
+        capture = ByteBuffer.allocateDirect(0);
+      }
+      capture.flip();
+      ByteBuffer content;
+      if (capture.capacity() - capture.limit() > capture.limit() / 4) {
+        content = ByteBuffer.allocateDirect(capture.limit());
+        content.put(capture);
+        content.flip();
+      } else {
+        content = capture;
+      }
+      ByteBuffer readOnly = content.asReadOnlyBuffer();
+      index.put(key, new FileInfo(readOnly.limit(), lastModifiedMillis, crc.getValue()),
+              () -> contents.put(key, readOnly));
+      releaseCapture();
+      if (usedBytes() > maxBytes) {
+        enforceBudget();
+      }
+      bytes.record(index.getTotalBytes());
+      listeners.fileStored(filePath);
+    }
+  }
+
+}
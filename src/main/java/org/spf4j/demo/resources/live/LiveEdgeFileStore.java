@@ -0,0 +1,802 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32C;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.CloseableIterable;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * A FileStore decorator that keeps the live edge of every stream (the most recently written files of a stream)
+ * in direct byte buffers, and writes them to the wrapped store in the background (write-behind).
+ *
+ * A stored file is readable from memory, and listeners are notified, as soon as its stream is closed.
+ * Files that are not yet persisted are never dropped: when the memory budget (maxBytes) is exhausted by files
+ * not yet written to the wrapped store, writers block for up to maxBlockMillis (back-pressure).
+ * Failed writes to the wrapped store are retried (with a backoff of up to MAX_PERSIST_RETRY_SECONDS) until
+ * they succeed or the store is closed, the file staying in memory meanwhile.
+ * Files larger than maxEntryBytes are written through to the wrapped store.
+ * Files being stored can be followed, from memory while captured, via the wrapped store once written through.
+ *
+ * @author Zoltan Farkas
+ */
+public final class LiveEdgeFileStore implements FileStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LiveEdgeFileStore.class);
+
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private static final int INITIAL_CAPTURE_BYTES = 64 * 1024;
+
+  /** failed persist attempts are logged as errors after this many attempts. */
+  private static final int PERSIST_ERROR_ATTEMPTS = 3;
+
+  private static final long MAX_PERSIST_RETRY_SECONDS = 60;
+
+  /** max time a follower waits for the writer to make progress. */
+  private static final long FOLLOW_STALL_MILLIS = 30000;
+
+  /** returned by {@link EdgeOutputStream#readAt} when the content is not captured anymore. */
+  private static final int WRITTEN_THROUGH = -2;
+
+  private final FileStore wrapped;
+
+  private final int filesPerStream;
+
+  private final long maxBytes;
+
+  private final int maxEntryBytes;
+
+  private final long maxBlockMillis;
+
+  /** the readable in memory files, by path. */
+  private final ConcurrentMap<String, Entry> entries;
+
+  /** the files being stored, by path. */
+  private final ConcurrentMap<String, EdgeOutputStream> capturing;
+
+  /** the live edge of every stream, oldest first, guarded by this. */
+  private final Map<String, ArrayDeque<Entry>> streams;
+
+  /** the streams with a stored playlist, the streams of segments are resolved against them. */
+  private final HlsStreams knownStreams;
+
+  /** all live edge files in publish order, guarded by this. */
+  private final LinkedHashSet<Entry> byAge;
+
+  /** reserved bytes, guarded by this. */
+  private long usedBytes;
+
+  /** files not yet persisted, guarded by this. */
+  private int pendingPersists;
+
+  private final Object[] persistLocks;
+
+  private final FileStoreListeners listeners;
+
+  private final MeasurementRecorder hits;
+
+  private final MeasurementRecorder misses;
+
+  private final MeasurementRecorder bytes;
+
+  private final MeasurementRecorder blockedMillis;
+
+  private final MeasurementRecorder persistFailures;
+
+  private volatile boolean closed;
+
+  /**
+   * @param wrapped the store to persist to.
+   * @param filesPerStream the number of most recent files of a stream to keep in memory.
+   * @param maxBytes the memory budget.
+   * @param maxEntryBytes files larger than this are written through, must be positive and within the budget.
+   * @param maxBlockMillis the max time a writer waits for memory to be available.
+   */
+  public LiveEdgeFileStore(final FileStore wrapped, final int filesPerStream, final long maxBytes,
+          final int maxEntryBytes, final long maxBlockMillis) {
+    if (maxEntryBytes <= 0) {
+      throw new IllegalArgumentException("Invalid max entry size " + maxEntryBytes);
+    }
+    if (maxEntryBytes > maxBytes) {
+      throw new IllegalArgumentException("Max entry size " + maxEntryBytes + " larger than budget " + maxBytes);
+    }
+    this.wrapped = wrapped;
+    this.filesPerStream = filesPerStream;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+    this.maxBlockMillis = maxBlockMillis;
+    this.entries = new ConcurrentHashMap<>();
+    this.capturing = new ConcurrentHashMap<>();
+    this.streams = new HashMap<>();
+    this.knownStreams = new HlsStreams();
+    this.byAge = new LinkedHashSet<>();
+    this.usedBytes = 0;
+    this.pendingPersists = 0;
+    this.persistLocks = new Object[64];
+    for (int i = 0; i < persistLocks.length; i++) {
+      persistLocks[i] = new Object();
+    }
+    this.listeners = new FileStoreListeners();
+    this.hits = RecorderFactory.createScalableCountingRecorder("live_edge_hits", "count", SAMPLE_MILLIS);
+    this.misses = RecorderFactory.createScalableCountingRecorder("live_edge_misses", "count", SAMPLE_MILLIS);
+    this.bytes = RecorderFactory.createScalableMinMaxAvgRecorder("live_edge_bytes", "bytes", SAMPLE_MILLIS);
+    this.blockedMillis = RecorderFactory.createScalableMinMaxAvgRecorder("live_edge_blocked", "ms",
+            SAMPLE_MILLIS);
+    this.persistFailures = RecorderFactory.createScalableCountingRecorder("live_edge_persist_failures", "count",
+            SAMPLE_MILLIS);
+  }
+
+  /**
+   * waits for the pending writes to the wrapped store (for up to maxBlockMillis), and closes it.
+   */
+  @Override
+  @PreDestroy
+  public void close() throws IOException {
+    long deadline = TimeSource.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+    synchronized (this) {
+      closed = true;
+      long waitMillis;
+      while (pendingPersists > 0
+              && (waitMillis = TimeUnit.NANOSECONDS.toMillis(deadline - TimeSource.nanoTime())) > 0) {
+        try {
+          wait(waitMillis);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      if (pendingPersists > 0) {
+        LOG.error("Closing with {} files not persisted", pendingPersists);
+      }
+      streams.clear();
+      byAge.clear();
+      entries.clear();
+      usedBytes = 0;
+    }
+    wrapped.close();
+  }
+
+  /**
+   * Lists the wrapped store, including the files not yet persisted.
+   */
+  @Override
+  @Nullable
+  public CloseableIterable<String> list(final String path) throws IOException {
+    CloseableIterable<String> list = wrapped.list(path);
+    String prefix = path.isEmpty() || path.endsWith("/") ? path : path + '/';
+    NavigableSet<String> pending = null;
+    for (Entry entry : entries.values()) {
+      if (!entry.persisted && entry.filePath.startsWith(prefix)) {
+        if (pending == null) {
+          pending = new TreeSet<>();
+        }
+        int idx = entry.filePath.indexOf('/', prefix.length());
+        pending.add(idx < 0 ? entry.filePath.substring(prefix.length())
+                : entry.filePath.substring(prefix.length(), idx));
+      }
+    }
+    if (pending == null) {
+      return list;
+    }
+    if (list != null) {
+      try (CloseableIterable<String> l = list) {
+        for (String name : l) {
+          pending.add(name);
+        }
+      }
+    }
+    return CloseableIterable.from(pending);
+  }
+
+  @Override
+  @Nullable
+  public InputStream readFile(final String filePath) throws IOException {
+    SeekableByteChannel channel = readChannel(filePath);
+    return channel == null ? null : Channels.newInputStream(channel);
+  }
+
+  @Override
+  @Nullable
+  public SeekableByteChannel readChannel(final String filePath) throws IOException {
+    Entry entry = entries.get(filePath);
+    if (entry != null) {
+      hits.record(1);
+      return new ByteBufferChannel(entry.content);
+    }
+    misses.record(1);
+    return wrapped.readChannel(filePath);
+  }
+
+  @Override
+  @Nullable
+  public OpenFile open(final String filePath) throws IOException {
+    Entry entry = entries.get(filePath);
+    if (entry != null) {
+      hits.record(1);
+      return new OpenFile(new ByteBufferChannel(entry.content), entry.info());
+    }
+    misses.record(1);
+    return wrapped.open(filePath);
+  }
+
+  /**
+   * Follows a file being stored, reading the captured content from memory.
+   */
+  @Override
+  @Nullable
+  public InputStream follow(final String filePath) throws IOException {
+    EdgeOutputStream upload = capturing.get(filePath);
+    if (upload == null) {
+      return wrapped.follow(filePath);
+    }
+    return new FollowInputStream(upload);
+  }
+
+  /**
+   * Files at the live edge are in memory, older files are prefetched by the wrapped store.
+   */
+  @Override
+  public void prefetch(final String filePath) throws IOException {
+    if (!entries.containsKey(filePath)) {
+      wrapped.prefetch(filePath);
+    }
+  }
+
+  @Override
+  @Nullable
+  public FileInfo getFileInfo(final String filePath) throws IOException {
+    Entry entry = entries.get(filePath);
+    if (entry != null) {
+      return entry.info();
+    }
+    return wrapped.getFileInfo(filePath);
+  }
+
+  @Override
+  public OutputStream storeFile(final String filePath, final long lastModifiedMillis)
+          throws IOException, TimeoutException {
+    return new EdgeOutputStream(filePath, lastModifiedMillis);
+  }
+
+  @Override
+  public long getRetentionMillis() {
+    return wrapped.getRetentionMillis();
+  }
+
+  /**
+   * Listeners are notified by this store once a file is readable from memory,
+   * all writes are supposed to be done via this store.
+   */
+  @Override
+  public void addListener(final FileStoreListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(final FileStoreListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * @return the reserved direct memory bytes.
+   */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * Reserve memory, evicting persisted files, or waiting for files to be persisted when needed.
+   */
+  private synchronized void reserve(final long nrBytes) throws IOException {
+    if (usedBytes + nrBytes <= maxBytes) {
+      usedBytes += nrBytes;
+      return;
+    }
+    long start = TimeSource.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+    try {
+      while (usedBytes + nrBytes > maxBytes) {
+        if (evictPersisted()) {
+          continue;
+        }
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(deadline - TimeSource.nanoTime());
+        if (waitMillis <= 0) {
+          throw new IOException("Live edge memory exhausted, " + usedBytes + " of " + maxBytes
+                  + " bytes used, " + pendingPersists + " files not persisted");
+        }
+        try {
+          wait(waitMillis);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for live edge memory");
+        }
+      }
+    } finally {
+      blockedMillis.record(TimeUnit.NANOSECONDS.toMillis(TimeSource.nanoTime() - start));
+    }
+    usedBytes += nrBytes;
+  }
+
+  private synchronized void release(final long nrBytes) {
+    usedBytes -= nrBytes;
+    notifyAll();
+  }
+
+  /**
+   * Evicts the oldest persisted file, guarded by this.
+   */
+  private boolean evictPersisted() {
+    Iterator<Entry> it = byAge.iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.persisted) {
+        it.remove();
+        ArrayDeque<Entry> stream = streams.get(entry.stream);
+        if (stream != null) {
+          stream.remove(entry);
+          if (stream.isEmpty()) {
+            streams.remove(entry.stream);
+          }
+        }
+        drop(entry);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops an entry that is out of the live edge and persisted (or superseded), guarded by this.
+   */
+  private void drop(final Entry entry) {
+    entries.remove(entry.filePath, entry);
+    usedBytes -= entry.content.capacity();
+    notifyAll();
+  }
+
+  /**
+   * Makes a file readable, adding it to the live edge of its stream, guarded by this.
+   */
+  private synchronized void publish(final Entry entry) {
+    Entry old = entries.put(entry.filePath, entry);
+    if (old != null) {
+      old.superseded = true;
+      byAge.remove(old);
+      ArrayDeque<Entry> stream = streams.get(old.stream);
+      if (stream != null) {
+        stream.remove(old);
+      }
+      if (old.persisted) {
+        usedBytes -= old.content.capacity();
+        notifyAll();
+      }
+    }
+    ArrayDeque<Entry> stream = streams.computeIfAbsent(entry.stream, (k) -> new ArrayDeque<>(filesPerStream + 1));
+    stream.addLast(entry);
+    byAge.add(entry);
+    while (stream.size() > filesPerStream) {
+      Entry out = stream.removeFirst();
+      byAge.remove(out);
+      out.outOfEdge = true;
+      if (out.persisted) {
+        drop(out);
+      }
+    }
+    pendingPersists++;
+    bytes.record(usedBytes);
+  }
+
+  private void persist(final Entry entry, final int attempt) {
+    boolean done;
+    synchronized (persistLocks[Math.floorMod(entry.filePath.hashCode(), persistLocks.length)]) {
+      done = entry.superseded;
+      if (!done) {
+        try (OutputStream os = wrapped.storeFile(entry.filePath, entry.lastModifiedMillis)) {
+          Channels.newChannel(os).write(entry.content.duplicate());
+          done = true;
+        } catch (IOException | TimeoutException | RuntimeException ex) {
+          persistFailures.record(1);
+          if (closed) {
+            LOG.error("Failed to persist {}, store closed after {} attempts", entry.filePath, attempt, ex);
+          } else {
+            // the entry stays pending, and is not dropped from memory until persisted.
+            if (attempt >= PERSIST_ERROR_ATTEMPTS) {
+              LOG.error("Failed to persist {}, attempt {}, keeping it in memory", entry.filePath, attempt, ex);
+            } else {
+              LOG.warn("Failed to persist {}, attempt {}", entry.filePath, attempt, ex);
+            }
+            DefaultScheduler.instance().schedule(() -> DefaultExecutor.INSTANCE.execute(
+                    () -> persist(entry, attempt + 1)),
+                    Math.min(MAX_PERSIST_RETRY_SECONDS, 1L << Math.min(attempt, 30)), TimeUnit.SECONDS);
+          }
+        }
+      }
+    }
+    if (done) {
+      synchronized (this) {
+        entry.persisted = true;
+        pendingPersists--;
+        if (entry.superseded) {
+          usedBytes -= entry.content.capacity();
+          notifyAll();
+        } else if (entry.outOfEdge) {
+          drop(entry);
+        } else {
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  private static final class Entry {
+
+    private final String filePath;
+
+    private final String stream;
+
+    private final ByteBuffer content;
+
+    private final long lastModifiedMillis;
+
+    private final long crc32c;
+
+    /** the following are written while holding the store monitor. */
+    private volatile boolean persisted;
+
+    private volatile boolean superseded;
+
+    private boolean outOfEdge;
+
+    Entry(final String filePath, final String stream, final ByteBuffer content, final long lastModifiedMillis,
+            final long crc32c) {
+      this.filePath = filePath;
+      this.stream = stream;
+      this.content = content;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.crc32c = crc32c;
+      this.persisted = false;
+      this.superseded = false;
+      this.outOfEdge = false;
+    }
+
+    FileInfo info() {
+      return new FileInfo(content.limit(), lastModifiedMillis, crc32c);
+    }
+
+    @Override
+    public String toString() {
+      return "Entry{" + "filePath=" + filePath + ", size=" + content.limit() + ", persisted=" + persisted + '}';
+    }
+
+  }
+
+  /**
+   * Captures the content in a direct buffer reserved from the budget,
+   * switching to write through when the file turns out larger than maxEntryBytes.
+   * Followers read the captured content while holding this monitor, and wait on it for progress.
+   */
+  private final class EdgeOutputStream extends OutputStream implements Abortable {
+
+    private final String filePath;
+
+    private final long lastModifiedMillis;
+
+    /** the captured content, guarded by this, null once published, written through or aborted. */
+    @Nullable
+    private ByteBuffer capture;
+
+    /** the published content, guarded by this. */
+    @Nullable
+    private ByteBuffer published;
+
+    @Nullable
+    private OutputStream writeThrough;
+
+    /** checksum of the captured content, written through files are checksummed by the wrapped store. */
+    private final CRC32C crc;
+
+    /** the abort reason, guarded by this, null unless aborted. */
+    @Nullable
+    private Exception aborted;
+
+    /** guarded by this. */
+    private boolean closed;
+
+    EdgeOutputStream(final String filePath, final long lastModifiedMillis) throws IOException {
+      this.filePath = filePath;
+      this.lastModifiedMillis = lastModifiedMillis;
+      int initial = Math.min(INITIAL_CAPTURE_BYTES, maxEntryBytes);
+      reserve(initial);
+      this.capture = ByteBuffer.allocateDirect(initial);
+      this.published = null;
+      this.writeThrough = null;
+      this.crc = new CRC32C();
+      this.aborted = null;
+      this.closed = false;
+      capturing.put(filePath, this);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (ensureCapacity(1)) {
+        synchronized (this) {
+          ensureOpen();
+          capture.put((byte) b);
+          notifyAll();
+        }
+        crc.update(b);
+      } else {
+        writeThrough.write(b);
+      }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      if (ensureCapacity(len)) {
+        synchronized (this) {
+          ensureOpen();
+          capture.put(b, off, len);
+          notifyAll();
+        }
+        crc.update(b, off, len);
+      } else {
+        writeThrough.write(b, off, len);
+      }
+    }
+
+    /**
+     * guarded by this.
+     */
+    private void ensureOpen() throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed for " + filePath, aborted);
+      }
+    }
+
+    /**
+     * Read captured (or published) content, waiting for the writer when caught up.
+     * @return the number of bytes read, -1 at the end of a published file, or WRITTEN_THROUGH.
+     */
+    synchronized int readAt(final long position, final byte[] b, final int off, final int len)
+            throws IOException {
+      long deadline = TimeSource.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FOLLOW_STALL_MILLIS);
+      while (!closed && capture != null && capture.position() <= position) {
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(deadline - TimeSource.nanoTime());
+        if (waitMillis <= 0) {
+          throw new IOException("No progress writing " + filePath + " in " + FOLLOW_STALL_MILLIS + " ms");
+        }
+        try {
+          wait(waitMillis);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while following " + filePath);
+        }
+      }
+      if (aborted != null) {
+        throw new IOException("Writing " + filePath + " was aborted", aborted);
+      }
+      ByteBuffer src;
+      if (capture != null) {
+        src = capture.duplicate();
+        src.flip();
+      } else if (published != null) {
+        src = published.duplicate();
+      } else {
+        return WRITTEN_THROUGH;
+      }
+      if (position >= src.limit()) {
+        return -1;
+      }
+      src.position((int) position);
+      int nr = Math.min(len, src.remaining());
+      src.get(b, off, nr);
+      return nr;
+    }
+
+    /**
+     * @return true if the bytes can be captured, false if they need to be written through.
+     */
+    private boolean ensureCapacity(final int len) throws IOException {
+      synchronized (this) {
+        ensureOpen();
+      }
+      if (capture == null) {
+        return false;
+      }
+      if (capture.remaining() >= len) {
+        return true;
+      }
+      long needed = (long) capture.position() + len;
+      if (needed > maxEntryBytes) {
+        try {
+          writeThrough = wrapped.storeFile(filePath, lastModifiedMillis);
+        } catch (TimeoutException ex) {
+          throw new IOException("Timed out storing " + filePath, ex);
+        }
+        ByteBuffer captured = capture.duplicate();
+        captured.flip();
+        Channels.newChannel(writeThrough).write(captured);
+        int capacity = capture.capacity();
+        synchronized (this) {
+          // followers continue from the wrapped store.
+          capture = null;
+          notifyAll();
+        }
+        release(capacity);
+        return false;
+      }
+      int newCapacity = (int) Math.min(maxEntryBytes, Math.max(needed, capture.capacity() * 2L));
+      reserve(newCapacity - capture.capacity());
+      ByteBuffer nb = ByteBuffer.allocateDirect(newCapacity);
+      synchronized (this) {
+        capture.flip();
+        nb.put(capture);
+        capture = nb;
+      }
+      return true;
+    }
+
+    @Override
+    public void abort(final Exception reason) {
+      ByteBuffer captured;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        aborted = reason;
+        captured = capture;
+        capture = null;
+        notifyAll();
+      }
+      capturing.remove(filePath, this);
+      if (captured != null) {
+        release(captured.capacity());
+      } else {
+        Abortable.abort(writeThrough, reason);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      Entry entry;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        if (capture == null) {
+          entry = null;
+        } else {
+          capture.flip();
+          entry = new Entry(filePath, knownStreams.streamOf(filePath), capture.asReadOnlyBuffer(),
+                  lastModifiedMillis, crc.getValue());
+          capture = null;
+          published = entry.content;
+        }
+        notifyAll();
+      }
+      try {
+        if (entry == null) {
+          writeThrough.close();
+        } else {
+          publish(entry);
+          DefaultExecutor.INSTANCE.execute(() -> persist(entry, 1));
+        }
+      } finally {
+        capturing.remove(filePath, this);
+      }
+      listeners.fileStored(filePath);
+    }
+  }
+
+  /**
+   * Follows an upload from memory, and from the wrapped store once the upload is written through.
+   */
+  private final class FollowInputStream extends InputStream {
+
+    private final EdgeOutputStream upload;
+
+    private long position;
+
+    @Nullable
+    private InputStream writtenThrough;
+
+    FollowInputStream(final EdgeOutputStream upload) {
+      this.upload = upload;
+      this.position = 0;
+      this.writtenThrough = null;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int nr = read(b, 0, 1);
+      return nr < 0 ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (writtenThrough == null) {
+        int nr = upload.readAt(position, b, off, len);
+        if (nr != WRITTEN_THROUGH) {
+          if (nr > 0) {
+            position += nr;
+          }
+          return nr;
+        }
+        writtenThrough = openWrittenThrough();
+      }
+      return writtenThrough.read(b, off, len);
+    }
+
+    /**
+     * @return the wrapped store content, after the bytes read so far.
+     */
+    private InputStream openWrittenThrough() throws IOException {
+      InputStream is = wrapped.follow(upload.filePath);
+      if (is == null) {
+        // already published by the wrapped store.
+        is = wrapped.readFile(upload.filePath);
+        if (is == null) {
+          throw new IOException(upload.filePath + " is not available anymore, followed up to " + position);
+        }
+      }
+      long toSkip = position;
+      while (toSkip > 0) {
+        long skipped = is.skip(toSkip);
+        if (skipped <= 0) {
+          if (is.read() < 0) {
+            is.close();
+            throw new IOException("Unexpected end of " + upload.filePath + ", expected at least " + position);
+          }
+          skipped = 1;
+        }
+        toSkip -= skipped;
+      }
+      return is;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (writtenThrough != null) {
+        writtenThrough.close();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LiveEdgeFileStore{" + "wrapped=" + wrapped + ", filesPerStream=" + filesPerStream
+            + ", maxBytes=" + maxBytes + '}';
+  }
+
+}
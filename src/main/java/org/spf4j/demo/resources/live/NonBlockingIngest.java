@@ -0,0 +1,170 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.Nullable;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.concurrent.DefaultExecutor;
+
+/**
+ * Copies a request body to a stream returned by {@link FileStore#storeFile(String)} without blocking on the
+ * network: the body is only read when the container signals that data is available, so an upload does not hold a
+ * thread while the publisher is not sending. What is read is written to the store stream in pooled chunks, like
+ * {@link FileTransfers#store(java.io.InputStream, OutputStream)} does, and the stored file is closed
+ * on an executor thread once the body is read, since closing can wait for the peer write quorum.
+ * A failed, timed out or aborted ingest aborts the stored file.
+ *
+ * @author Zoltan Farkas
+ */
+final class NonBlockingIngest implements ReadListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NonBlockingIngest.class);
+
+  private final ServletInputStream from;
+
+  private final OutputStream to;
+
+  private final CompletableFuture<Long> result;
+
+  /**
+   * the chunk being filled, written to the store only when full or at the end of the body: a small network read
+   * does not become a chunk of its own, which would take a slot in every peer upload queue.
+   */
+  @Nullable
+  private ChunkPool.Chunk chunk;
+
+  private long total;
+
+  private long allocated;
+
+  private boolean done;
+
+  private NonBlockingIngest(final ServletInputStream from, final OutputStream to) {
+    this.from = from;
+    this.to = to;
+    this.result = new CompletableFuture<>();
+  }
+
+  /**
+   * Start copying from to the store stream, the request must be in async mode.
+   * @return the ingest, use {@link #getResult()} to be notified of the number of bytes stored.
+   */
+  static NonBlockingIngest start(final ServletInputStream from, final OutputStream to) {
+    NonBlockingIngest ingest = new NonBlockingIngest(from, to);
+    from.setReadListener(ingest);
+    return ingest;
+  }
+
+  /**
+   * @return the number of bytes stored, completed after the stored file is closed.
+   */
+  CompletableFuture<Long> getResult() {
+    return result;
+  }
+
+  @Override
+  public synchronized void onDataAvailable() {
+    if (done) {
+      return;
+    }
+    try {
+      while (from.isReady()) {
+        if (chunk == null) {
+          chunk = ChunkPool.INGEST.take();
+          if (chunk.isAllocated()) {
+            allocated += chunk.array().length;
+          }
+        }
+        if (chunk.readOnce(from) < 0) {
+          break;
+        }
+        if (chunk.isFull()) {
+          writeChunk();
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      abort(ex);
+    }
+  }
+
+  @Override
+  public synchronized void onAllDataRead() {
+    if (done) {
+      return;
+    }
+    try {
+      writeChunk();
+    } catch (IOException | RuntimeException ex) {
+      abort(ex);
+      return;
+    }
+    done = true;
+    releaseChunk();
+    long nrBytes = total;
+    FileTransfers.recordIngest(nrBytes, allocated);
+    DefaultExecutor.INSTANCE.execute(() -> {
+      try {
+        to.close();
+        result.complete(nrBytes);
+      } catch (IOException | RuntimeException ex) {
+        result.completeExceptionally(ex);
+      }
+    });
+  }
+
+  @Override
+  public void onError(final Throwable t) {
+    abort(t instanceof Exception ? (Exception) t : new IOException("Failed reading request body", t));
+  }
+
+  /**
+   * Abort the ingest, the stored file is discarded, a no-op after the body is read.
+   */
+  synchronized void abort(final Exception reason) {
+    if (done) {
+      return;
+    }
+    done = true;
+    releaseChunk();
+    FileTransfers.recordIngest(total, allocated);
+    Abortable.abort(to, reason);
+    try {
+      to.close();
+    } catch (IOException | RuntimeException ex) {
+      reason.addSuppressed(ex);
+    }
+    LOG.debug("Ingest aborted after {} bytes", total, reason);
+    result.completeExceptionally(reason);
+  }
+
+  private void writeChunk() throws IOException {
+    ChunkPool.Chunk c = chunk;
+    if (c == null || c.length() == 0) {
+      return;
+    }
+    chunk = null;
+    try {
+      FileTransfers.write(c, to);
+      total += c.length();
+    } finally {
+      c.release();
+    }
+  }
+
+  private void releaseChunk() {
+    if (chunk != null) {
+      chunk.release();
+      chunk = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "NonBlockingIngest{" + "to=" + to + ", total=" + total + ", done=" + done + '}';
+  }
+
+}
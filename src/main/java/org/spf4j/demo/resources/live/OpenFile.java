@@ -0,0 +1,67 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import javax.annotation.Nullable;
+
+/**
+ * A file opened for reading, with the info of the opened version: the size, modification time and checksum
+ * describe the content read from the channel, even when the file is rewritten while it is read.
+ * See {@link FileStore#open(String)}.
+ *
+ * @author Zoltan Farkas
+ */
+public final class OpenFile implements Closeable {
+
+  private final SeekableByteChannel channel;
+
+  private final FileInfo info;
+
+  @Nullable
+  private final Path file;
+
+  public OpenFile(final SeekableByteChannel channel, final FileInfo info) {
+    this(channel, info, null);
+  }
+
+  /**
+   * @param file the file system file the channel reads, null if the content is not read from a file.
+   */
+  public OpenFile(final SeekableByteChannel channel, final FileInfo info, @Nullable final Path file) {
+    this.channel = channel;
+    this.info = info;
+    this.file = file;
+  }
+
+  public SeekableByteChannel getChannel() {
+    return channel;
+  }
+
+  public FileInfo getInfo() {
+    return info;
+  }
+
+  /**
+   * The path of the file the content is read from, for containers that send files by name with sendfile.
+   * A file replaced after it was opened is sent in its new version, only files that are never replaced
+   * (like segments) are to be sent by name.
+   * @return the file system path, null if the content is not read from a file.
+   */
+  @Nullable
+  public Path getFile() {
+    return file;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return "OpenFile{" + "info=" + info + '}';
+  }
+
+}
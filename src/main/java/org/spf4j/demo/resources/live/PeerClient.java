@@ -0,0 +1,135 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.client.ClientBuilder;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpCoreContext;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.apache.connector.ApacheHttpClientBuilderConfigurator;
+import org.glassfish.jersey.client.ClientConfig;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.jaxrs.client.Spf4JClient;
+import org.spf4j.perf.MeasurementRecorderSource;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * The http client used between peers: the Apache connector with a connection pool, so that uploads, read throughs
+ * and reconciliation reuse keep-alive connections to a peer instead of connecting for every file.
+ * The pool holds up to maxConnectionsPerPeer connections per peer, requests beyond that wait for a connection,
+ * which makes the uploads of the waiting files fall behind and be retried from the local copy.
+ *
+ * Per peer: replication_connections_opened counts new connections, replication_connections_reused the requests
+ * sent on a connection that served a request before, and replication_connections_leased, _idle and _pending
+ * are the pool state, sampled every STATS_MILLIS.
+ *
+ * @author Zoltan Farkas
+ */
+final class PeerClient implements Closeable {
+
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private static final long STATS_MILLIS = 5000;
+
+  private static final MeasurementRecorderSource OPENED
+          = RecorderFactory.createScalableCountingRecorderSource("replication_connections_opened", "count",
+                  SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource REUSED
+          = RecorderFactory.createScalableCountingRecorderSource("replication_connections_reused", "count",
+                  SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource LEASED
+          = RecorderFactory.createScalableMinMaxAvgRecorderSource("replication_connections_leased", "connections",
+                  SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource IDLE
+          = RecorderFactory.createScalableMinMaxAvgRecorderSource("replication_connections_idle", "connections",
+                  SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource PENDING
+          = RecorderFactory.createScalableMinMaxAvgRecorderSource("replication_connections_pending", "requests",
+                  SAMPLE_MILLIS);
+
+  private final PoolingHttpClientConnectionManager connections;
+
+  private final Spf4JClient client;
+
+  private final ScheduledFuture<?> statsRecording;
+
+  /**
+   * @param maxConnectionsPerPeer the max number of connections to a peer.
+   */
+  PeerClient(final int maxConnectionsPerPeer) {
+    if (maxConnectionsPerPeer <= 0) {
+      throw new IllegalArgumentException("Invalid max connections per peer " + maxConnectionsPerPeer);
+    }
+    HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory = (route, config) -> {
+      OPENED.getRecorder(route.getTargetHost().getHostName()).record(1);
+      return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+    };
+    this.connections = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", SSLConnectionSocketFactory.getSocketFactory())
+            .build(), connectionFactory);
+    connections.setDefaultMaxPerRoute(maxConnectionsPerPeer);
+    connections.setMaxTotal(Integer.MAX_VALUE);
+    HttpRequestInterceptor reuseCounter = (request, context) -> {
+      HttpCoreContext ctx = HttpCoreContext.adapt(context);
+      HttpConnection connection = ctx.getConnection();
+      HttpHost host = ctx.getTargetHost();
+      // the request being sent is counted by the connection once it is written.
+      if (connection != null && host != null && connection.getMetrics().getRequestCount() > 0) {
+        REUSED.getRecorder(host.getHostName()).record(1);
+      }
+    };
+    ClientConfig config = new ClientConfig()
+            .connectorProvider(new ApacheConnectorProvider())
+            .property(ApacheClientProperties.CONNECTION_MANAGER, connections)
+            .register((ApacheHttpClientBuilderConfigurator) (builder) -> builder.addInterceptorLast(reuseCounter));
+    this.client = new Spf4JClient(ClientBuilder.newClient(config));
+    this.statsRecording = DefaultScheduler.instance().scheduleWithFixedDelay(this::recordStats,
+            STATS_MILLIS, STATS_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  Spf4JClient getClient() {
+    return client;
+  }
+
+  private void recordStats() {
+    for (HttpRoute route : connections.getRoutes()) {
+      String peer = route.getTargetHost().getHostName();
+      PoolStats stats = connections.getStats(route);
+      LEASED.getRecorder(peer).record(stats.getLeased());
+      IDLE.getRecorder(peer).record(stats.getAvailable());
+      PENDING.getRecorder(peer).record(stats.getPending());
+    }
+  }
+
+  @Override
+  public void close() {
+    statsRecording.cancel(false);
+    client.close();
+    connections.close();
+  }
+
+  @Override
+  public String toString() {
+    return "PeerClient{" + "connections=" + connections.getTotalStats() + '}';
+  }
+
+}
@@ -0,0 +1,281 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.cluster.Cluster;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.jaxrs.client.Spf4jWebTarget;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * Background anti-entropy: periodically compares the local manifest with the peer manifests
+ * (see {@link FileManifests}) and pulls the files missing locally, and the files whose local content differs
+ * (in size or checksum) from a more recent peer version. The copies of a file have the modification time of the
+ * original on every node (see {@link FileStore#storeFile(String, long)}), so a copy is never more recent than
+ * the original, and pulled copies keep it too. The max age of the pulled files must be less than the store
+ * retention, for files that expired (and are deleted) on a node not to be pulled back from a peer that did not
+ * delete them yet.
+ * Nodes that join the cluster will this way also get the files written before they started, and with a replication
+ * factor, nodes get the files of the streams the hash ring moved to them.
+ * Pulls are throttled to a configured byte rate, to not compete with live ingest.
+ *
+ * @author Zoltan Farkas
+ */
+final class PeerReconciler implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PeerReconciler.class);
+
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private final Cluster cluster;
+
+  private final FileStore localStore;
+
+  /** peer address -> peer root web target. */
+  private final Function<InetAddress, Spf4jWebTarget> peerTargets;
+
+  /** the files this node should store, only these are pulled. */
+  private final Predicate<String> owned;
+
+  private final long maxPullAgeMillis;
+
+  private final long maxBytesPerSecond;
+
+  private final int timeoutMillis;
+
+  private final AtomicBoolean running;
+
+  private final ScheduledFuture<?> schedule;
+
+  /** nanoTime of the first run that found missing files, since the last converged run. */
+  private long divergedSinceNanos;
+
+  private final MeasurementRecorder convergenceMillis;
+
+  private final MeasurementRecorder pulledFiles;
+
+  private final MeasurementRecorder pulledBytes;
+
+  PeerReconciler(final Cluster cluster, final FileStore localStore,
+          final Function<InetAddress, Spf4jWebTarget> peerTargets, final Predicate<String> owned,
+          final long intervalMillis, final long maxPullAgeMillis, final long maxBytesPerSecond,
+          final int timeoutMillis) {
+    this.cluster = cluster;
+    this.localStore = localStore;
+    this.peerTargets = peerTargets;
+    this.owned = owned;
+    this.maxPullAgeMillis = maxPullAgeMillis;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+    this.timeoutMillis = timeoutMillis;
+    this.running = new AtomicBoolean(false);
+    this.divergedSinceNanos = -1;
+    this.convergenceMillis = RecorderFactory.createScalableMinMaxAvgRecorder("replication_convergence_millis", "ms",
+            SAMPLE_MILLIS);
+    this.pulledFiles = RecorderFactory.createScalableCountingRecorder("replication_pulled_files", "count",
+            SAMPLE_MILLIS);
+    this.pulledBytes = RecorderFactory.createScalableCountingRecorder("replication_pulled_bytes", "bytes",
+            SAMPLE_MILLIS);
+    this.schedule = DefaultScheduler.instance().scheduleWithFixedDelay(() -> {
+      if (running.compareAndSet(false, true)) {
+        DefaultExecutor.INSTANCE.execute(() -> {
+          try {
+            reconcile();
+          } catch (IOException | TimeoutException | RuntimeException ex) {
+            LOG.warn("Failed to reconcile file store with peers", ex);
+          } finally {
+            running.set(false);
+          }
+        });
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * One reconciliation run.
+   * @return the number of files pulled from peers.
+   */
+  int reconcile() throws IOException, TimeoutException {
+    Set<InetAddress> peers = cluster.getClusterInfo().getPeerAddresses();
+    Map<String, String> localHashes = FileManifests.groupHashes(localStore);
+    Throttle throttle = new Throttle();
+    boolean diverged = false;
+    for (InetAddress peer : peers) {
+      Spf4jWebTarget peerTarget = peerTargets.apply(peer);
+      try {
+        Map<String, String> peerHashes;
+        try (Response response = peerTarget.path("fileManifests").request(MediaType.TEXT_PLAIN)
+                .withTimeout(timeoutMillis, TimeUnit.MILLISECONDS).get();
+             InputStream is = response.readEntity(InputStream.class)) {
+          if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            LOG.debug("Cannot get manifest from {}, status {}", peer, response.getStatus());
+            continue;
+          }
+          peerHashes = FileManifests.readGroupHashes(new InputStreamReader(is, StandardCharsets.UTF_8));
+        }
+        for (Map.Entry<String, String> groupHash : peerHashes.entrySet()) {
+          String group = groupHash.getKey();
+          if (groupHash.getValue().equals(localHashes.get(group))) {
+            continue;
+          }
+          if (reconcileGroup(peerTarget, group, throttle) > 0) {
+            diverged = true;
+          }
+        }
+      } catch (ProcessingException | WebApplicationException ex) {
+        LOG.debug("Failed to reconcile with {}", peer, ex);
+      }
+    }
+    long now = TimeSource.nanoTime();
+    if (diverged) {
+      if (divergedSinceNanos < 0) {
+        divergedSinceNanos = now;
+      }
+    } else if (divergedSinceNanos >= 0) {
+      convergenceMillis.record(TimeUnit.NANOSECONDS.toMillis(now - divergedSinceNanos));
+      divergedSinceNanos = -1;
+    }
+    int nrPulled = throttle.getNrFiles();
+    if (nrPulled > 0) {
+      LOG.info("Pulled {} files, {} bytes from peers", nrPulled, throttle.getNrBytes());
+    }
+    return nrPulled;
+  }
+
+  /**
+   * Pull the files of a group, missing locally or that differ from the peer files.
+   * @return the number of files missing locally or differing (pulled or not).
+   */
+  private int reconcileGroup(final Spf4jWebTarget peerTarget, final String group, final Throttle throttle)
+          throws IOException, TimeoutException {
+    List<FileManifests.Entry> peerEntries;
+    try (Response response = peerTarget.path("fileManifests").path(group).request(MediaType.TEXT_PLAIN)
+            .withTimeout(timeoutMillis, TimeUnit.MILLISECONDS).get();
+         InputStream is = response.readEntity(InputStream.class)) {
+      if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+        return 0;
+      }
+      peerEntries = FileManifests.readEntries(new InputStreamReader(is, StandardCharsets.UTF_8));
+    }
+    List<FileManifests.Entry> pulls = toPull(FileManifests.groupEntries(localStore, group), peerEntries,
+            System.currentTimeMillis() - maxPullAgeMillis);
+    int nrMissing = 0;
+    for (FileManifests.Entry entry : pulls) {
+      String filePath = group + '/' + entry.getName();
+      if (!owned.test(filePath)) {
+        continue;
+      }
+      nrMissing++;
+      try (Response response = peerTarget.path("files").path(filePath).request(MediaType.WILDCARD)
+              .withTimeout(timeoutMillis, TimeUnit.MILLISECONDS).noDefaultRetryPolicy().get()) {
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+          continue;
+        }
+        long size;
+        try (InputStream is = response.readEntity(InputStream.class);
+             OutputStream os = localStore.storeFile(filePath, entry.getLastModifiedMillis())) {
+          size = FileTransfers.store(is, os,
+                  ReplicatedFileStoreResource.crc32cHeader(response.getHeaderString(FileInfo.CRC32C_HEADER)));
+        }
+        pulledFiles.record(1);
+        pulledBytes.record(size);
+        throttle.acquire(size);
+      } catch (ProcessingException | WebApplicationException | ChecksumException ex) {
+        LOG.debug("Failed to pull {} from {}", filePath, peerTarget.getUri(), ex);
+      }
+    }
+    return nrMissing;
+  }
+
+  /**
+   * @return the peer entries to pull: the files missing locally, and the files that differ from the local file
+   * (see {@link FileManifests.Entry#differs}) and are a more recent version on the peer, except the files
+   * modified before oldestMillis.
+   */
+  static List<FileManifests.Entry> toPull(final List<FileManifests.Entry> localEntries,
+          final List<FileManifests.Entry> peerEntries, final long oldestMillis) {
+    Map<String, FileManifests.Entry> local = new HashMap<>(localEntries.size() * 2);
+    for (FileManifests.Entry entry : localEntries) {
+      local.put(entry.getName(), entry);
+    }
+    List<FileManifests.Entry> result = new ArrayList<>();
+    for (FileManifests.Entry entry : peerEntries) {
+      if (entry.getLastModifiedMillis() < oldestMillis) {
+        continue;
+      }
+      FileManifests.Entry localEntry = local.get(entry.getName());
+      if (localEntry == null || (localEntry.differs(entry)
+              && localEntry.getLastModifiedMillis() < entry.getLastModifiedMillis())) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void close() {
+    schedule.cancel(false);
+  }
+
+  /**
+   * Paces the pulls so that the pulled bytes per second are below the configured rate.
+   */
+  private final class Throttle {
+
+    private final long startNanos = TimeSource.nanoTime();
+
+    private long bytes = 0;
+
+    private int nrFiles = 0;
+
+    void acquire(final long nrBytes) throws IOException {
+      bytes += nrBytes;
+      nrFiles++;
+      long targetNanos = startNanos + bytes * 1_000_000_000L / maxBytesPerSecond;
+      long sleepNanos = targetNanos - TimeSource.nanoTime();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while throttling pulls");
+        }
+      }
+    }
+
+    int getNrFiles() {
+      return nrFiles;
+    }
+
+    long getNrBytes() {
+      return bytes;
+    }
+  }
+
+}
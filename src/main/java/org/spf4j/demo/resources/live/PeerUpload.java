@@ -0,0 +1,398 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+import org.spf4j.base.TimeSource;
+import org.spf4j.io.Streams;
+import org.spf4j.jaxrs.client.Spf4jInvocationBuilder;
+import org.spf4j.jaxrs.client.Spf4jWebTarget;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.MeasurementRecorderSource;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * The upload of one file to one peer. The ingest thread hands over chunks via a bounded queue,
+ * and never blocks on the peer; when the queue is full the peer is considered lagging, and the upload is abandoned.
+ * Uploads are done with the replication client, through one web target per peer, over pooled keep-alive
+ * connections (see {@link PeerClient} for the connection limit and the connection reuse metrics):
+ * replication_uploads and replication_in_flight are the per peer request counts.
+ *
+ * @author Zoltan Farkas
+ */
+final class PeerUpload implements Runnable {
+
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private static final MeasurementRecorderSource LAG_BYTES
+          = RecorderFactory.createScalableMinMaxAvgRecorderSource("replication_lag_bytes", "bytes", SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource QUEUE_DEPTH
+          = RecorderFactory.createScalableMinMaxAvgRecorderSource("replication_queue_depth", "chunks",
+                  SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource LAGGING
+          = RecorderFactory.createScalableCountingRecorderSource("replication_lagging", "count", SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource UPLOADS
+          = RecorderFactory.createScalableCountingRecorderSource("replication_uploads", "count", SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource BYTES_SENT
+          = RecorderFactory.createScalableCountingRecorderSource("replication_bytes_sent", "bytes", SAMPLE_MILLIS);
+
+  /**
+   * time from the end of the content (the EOF written to the request body) to the peer response: the flush of
+   * the last bytes, and the peer publishing the file, see replication_store_latency on the peer for the latter.
+   * Uploads that fail before the end of the content are not recorded.
+   */
+  private static final MeasurementRecorderSource WRITE_LATENCY
+          = RecorderFactory.createScalableQuantizedRecorderSource("replication_write_latency", "ms", SAMPLE_MILLIS,
+                  10, 0, 5, 10);
+
+  /** time from the start of the upload to the peer response, includes waiting for the publisher to send. */
+  private static final MeasurementRecorderSource UPLOAD_TIME
+          = RecorderFactory.createScalableQuantizedRecorderSource("replication_upload_time", "ms", SAMPLE_MILLIS,
+                  10, 0, 5, 10);
+
+  private static final MeasurementRecorderSource CONNECT_FAILURES
+          = RecorderFactory.createScalableCountingRecorderSource("replication_connect_failures", "count",
+                  SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource FAILED_RESPONSES
+          = RecorderFactory.createScalableCountingRecorderSource("replication_failed_responses", "count",
+                  SAMPLE_MILLIS);
+
+  private static final MeasurementRecorderSource IN_FLIGHT
+          = RecorderFactory.createScalableMinMaxAvgRecorderSource("replication_in_flight", "uploads",
+                  SAMPLE_MILLIS);
+
+  /** uploads in progress per peer. */
+  private static final ConcurrentMap<String, AtomicInteger> IN_FLIGHT_COUNTS = new ConcurrentHashMap<>();
+
+  private static final ChunkPool.Chunk EOF = ChunkPool.Chunk.wrap(new byte[0], 0);
+
+  private static final ChunkPool.Chunk ABORT = ChunkPool.Chunk.wrap(new byte[0], 0);
+
+  private final String peer;
+
+  private final Spf4jWebTarget target;
+
+  private final int timeoutMillis;
+
+  /** the modification time of the file, the copy on the peer keeps it. */
+  private final long lastModifiedMillis;
+
+  private final BlockingQueue<ChunkPool.Chunk> queue;
+
+  private final AtomicLong queuedBytes;
+
+  private final CompletableFuture<Integer> result;
+
+  private final MeasurementRecorder lagBytes;
+
+  private final MeasurementRecorder queueDepth;
+
+  /** when not null the content is read from this source, instead of being handed over chunk by chunk. */
+  @Nullable
+  private final ContentSource source;
+
+  private volatile boolean abandoned;
+
+  /** the nanos when all the content was written to the request body, 0 until then. */
+  private volatile long eofNanos;
+
+  /**
+   * the CRC32C of the content, compared with the checksum the peer computed while storing, -1 if not known.
+   * Known upfront for uploads from a source, sent as a header, and at finish for uploads handed over chunk by chunk,
+   * sent as a trailer of the body (see {@link FileInfo#CRC32C_TRAILER_HEADER}). Either way the peer verifies
+   * the content before publishing it.
+   */
+  private volatile long crc32c;
+
+  /**
+   * An upload where the content is handed over chunk by chunk with offer.
+   */
+  PeerUpload(final String peer, final Spf4jWebTarget target, final int timeoutMillis, final int maxQueuedChunks,
+          final long lastModifiedMillis) {
+    this(peer, target, timeoutMillis, maxQueuedChunks, null, -1, lastModifiedMillis);
+  }
+
+  /**
+   * An upload where the content is read from the source, used to re-send a file that is already available locally.
+   * @param crc32c the checksum of the content, sent to the peer to verify before publishing, -1 if not known.
+   */
+  PeerUpload(final String peer, final Spf4jWebTarget target, final int timeoutMillis, final ContentSource source,
+          final long crc32c, final long lastModifiedMillis) {
+    this(peer, target, timeoutMillis, 0, source, crc32c, lastModifiedMillis);
+  }
+
+  private PeerUpload(final String peer, final Spf4jWebTarget target, final int timeoutMillis, final int maxQueuedChunks,
+          @Nullable final ContentSource source, final long crc32c, final long lastModifiedMillis) {
+    this.peer = peer;
+    this.target = target;
+    this.timeoutMillis = timeoutMillis;
+    this.lastModifiedMillis = lastModifiedMillis;
+    this.source = source;
+    this.crc32c = crc32c;
+    this.queue = new ArrayBlockingQueue<>(maxQueuedChunks + 1);
+    this.queuedBytes = new AtomicLong();
+    this.result = new CompletableFuture<>();
+    this.lagBytes = LAG_BYTES.getRecorder(peer);
+    this.queueDepth = QUEUE_DEPTH.getRecorder(peer);
+    this.abandoned = false;
+  }
+
+  /**
+   * Enqueue a chunk for the peer, the chunk must not be modified afterwards.
+   * The chunk is retained while queued.
+   * @return false if the peer is lagging (or the upload was aborted) and the chunk was not enqueued.
+   */
+  boolean offer(final ChunkPool.Chunk chunk) {
+    if (abandoned) {
+      return false;
+    }
+    long lag = queuedBytes.addAndGet(chunk.length());
+    chunk.retain();
+    if (queue.remainingCapacity() <= 1 || !queue.offer(chunk)) {
+      chunk.release();
+      abandon(new IOException("Peer " + peer + " lagging " + lag + " bytes behind for " + target.getUri()));
+      LAGGING.getRecorder(peer).record(1);
+      return false;
+    }
+    if (abandoned) {
+      // abandoned while enqueueing, the chunk might have been enqueued after the queue was drained.
+      releaseQueued();
+      return false;
+    }
+    lagBytes.record(lag);
+    queueDepth.record(queue.size());
+    return true;
+  }
+
+  /**
+   * Signal the end of the file.
+   * @param contentCrc32c the checksum of the handed over content, sent after the content.
+   */
+  void finish(final long contentCrc32c) {
+    this.crc32c = contentCrc32c;
+    if (!abandoned) {
+      queue.offer(EOF);
+    }
+  }
+
+  /**
+   * Abandon the upload, the peer will see an incomplete upload.
+   */
+  void abandon(final Exception reason) {
+    abandoned = true;
+    releaseQueued();
+    queue.offer(ABORT);
+    result.completeExceptionally(reason);
+  }
+
+  /**
+   * Release the queued chunks, keeping the ABORT signal for the uploading thread.
+   */
+  private void releaseQueued() {
+    boolean aborted = false;
+    ChunkPool.Chunk chunk;
+    while ((chunk = queue.poll()) != null) {
+      // the sentinels are shared by all uploads, and never released.
+      if (chunk == ABORT) {
+        aborted = true;
+      } else if (chunk != EOF) {
+        chunk.release();
+      }
+    }
+    queuedBytes.set(0);
+    if (aborted) {
+      queue.offer(ABORT);
+    }
+  }
+
+  boolean isAbandoned() {
+    return abandoned;
+  }
+
+  String getPeer() {
+    return peer;
+  }
+
+  Spf4jWebTarget getTarget() {
+    return target;
+  }
+
+  long getLastModifiedMillis() {
+    return lastModifiedMillis;
+  }
+
+  /**
+   * @return the peer response code, on success.
+   */
+  CompletableFuture<Integer> getResult() {
+    return result;
+  }
+
+  @Override
+  public void run() {
+    UPLOADS.getRecorder(peer).record(1);
+    AtomicInteger inFlight = IN_FLIGHT_COUNTS.computeIfAbsent(peer, (p) -> new AtomicInteger());
+    MeasurementRecorder inFlightRecorder = IN_FLIGHT.getRecorder(peer);
+    inFlightRecorder.record(inFlight.incrementAndGet());
+    long startNanos = TimeSource.nanoTime();
+    try {
+      upload();
+    } finally {
+      long endNanos = TimeSource.nanoTime();
+      UPLOAD_TIME.getRecorder(peer).record(TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos));
+      long eof = eofNanos;
+      if (eof != 0) {
+        WRITE_LATENCY.getRecorder(peer).record(TimeUnit.NANOSECONDS.toMillis(endNanos - eof));
+      }
+      inFlightRecorder.record(inFlight.decrementAndGet());
+    }
+  }
+
+  private void upload() {
+    Spf4jInvocationBuilder request = target.request()
+            .withTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+            .noDefaultRetryPolicy();
+    request.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
+    request.header(FileInfo.LAST_MODIFIED_HEADER, lastModifiedMillis);
+    if (source == null) {
+      request.header(FileInfo.CRC32C_TRAILER_HEADER, true);
+    } else if (crc32c >= 0) {
+      request.header(FileInfo.CRC32C_HEADER, FileInfo.crc32cToString(crc32c));
+    }
+    StreamingOutput body = (os) -> {
+      if (source != null) {
+        try (InputStream is = source.open()) {
+          BYTES_SENT.getRecorder(peer).record(Streams.copy(is, os));
+        }
+        eofNanos = TimeSource.nanoTime();
+      } else {
+        try {
+          if (!writeQueued(os)) {
+            throw new IOException("Upload to " + peer + " abandoned " + target.getUri());
+          }
+          eofNanos = TimeSource.nanoTime();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while uploading to " + target.getUri());
+        }
+      }
+    };
+    try (Response response = request.post(Entity.entity(body, MediaType.APPLICATION_OCTET_STREAM_TYPE))) {
+      int responseCode = response.getStatus();
+      if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+        FAILED_RESPONSES.getRecorder(peer).record(1);
+        result.completeExceptionally(new WebApplicationException("Peer " + peer + " failed to store "
+                + target.getUri(), responseCode));
+      } else {
+        verifyChecksum(response.getHeaderString(FileInfo.CRC32C_HEADER), responseCode);
+      }
+    } catch (RuntimeException ex) {
+      if (isConnectFailure(ex)) {
+        CONNECT_FAILURES.getRecorder(peer).record(1);
+      }
+      Throwable cause = ex.getCause();
+      // client exceptions do not tell which peer failed. Abandoning releases the chunks still queued.
+      abandon(new IOException("Upload to peer " + peer + " failed " + target.getUri(),
+              cause instanceof IOException ? cause : ex));
+    }
+  }
+
+  private static boolean isConnectFailure(final Throwable ex) {
+    Throwable t = ex;
+    while (t != null) {
+      if (t instanceof ConnectException || t instanceof NoRouteToHostException || t instanceof UnknownHostException) {
+        return true;
+      }
+      t = t.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Completes the result, failing it when the peer stored content with a different checksum than the one sent.
+   * Peers that do not report a checksum are trusted.
+   */
+  private void verifyChecksum(@Nullable final String peerCrc32c, final int responseCode) {
+    long expected = crc32c;
+    if (peerCrc32c == null || expected < 0) {
+      result.complete(responseCode);
+      return;
+    }
+    long stored = FileInfo.parseCrc32c(peerCrc32c);
+    if (stored == expected) {
+      result.complete(responseCode);
+    } else {
+      result.completeExceptionally(new ChecksumException("Peer " + peer + " stored " + target.getUri()
+              + " with CRC32C " + peerCrc32c + ", expected " + FileInfo.crc32cToString(expected)));
+    }
+  }
+
+  /**
+   * write the queued chunks to os until EOF, followed by the CRC32C trailer, which the peer verifies the content
+   * against before publishing it.
+   * @return false if the upload was aborted.
+   */
+  private boolean writeQueued(final OutputStream os) throws IOException, InterruptedException {
+    MeasurementRecorder bytesSent = BYTES_SENT.getRecorder(peer);
+    while (true) {
+      ChunkPool.Chunk chunk = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+      if (chunk == null) {
+        throw new IOException("Timed out waiting for data to upload to " + target.getUri());
+      }
+      if (chunk == ABORT) {
+        return false;
+      }
+      if (chunk == EOF) {
+        long crc = crc32c;
+        if (crc < 0) {
+          throw new IOException("No checksum for the content of " + target.getUri());
+        }
+        os.write(new byte[] {(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc});
+        return true;
+      }
+      try {
+        os.write(chunk.array(), 0, chunk.length());
+        queuedBytes.addAndGet(-chunk.length());
+        bytesSent.record(chunk.length());
+      } finally {
+        chunk.release();
+      }
+    }
+  }
+
+  @FunctionalInterface
+  interface ContentSource {
+    InputStream open() throws IOException;
+  }
+
+  @Override
+  public String toString() {
+    return "PeerUpload{" + "peer=" + peer + ", uri=" + target.getUri() + ", abandoned=" + abandoned + '}';
+  }
+
+}
@@ -0,0 +1,81 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The media sequence information of a HLS media playlist, see https://tools.ietf.org/html/rfc8216 .
+ * @author Zoltan Farkas
+ */
+public final class PlaylistSummary {
+
+  private final long mediaSequence;
+
+  private final int nrSegments;
+
+  private final boolean ended;
+
+  public PlaylistSummary(final long mediaSequence, final int nrSegments, final boolean ended) {
+    this.mediaSequence = mediaSequence;
+    this.nrSegments = nrSegments;
+    this.ended = ended;
+  }
+
+  public static PlaylistSummary parse(final InputStream is) throws IOException {
+    long mediaSequence = 0;
+    int nrSegments = 0;
+    boolean ended = false;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (line.charAt(0) == '#') {
+        if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+          try {
+            mediaSequence = Long.parseLong(line.substring(22).trim());
+          } catch (NumberFormatException ex) {
+            throw new IOException("Invalid playlist line " + line, ex);
+          }
+        } else if (line.startsWith("#EXT-X-ENDLIST")) {
+          ended = true;
+        }
+      } else {
+        nrSegments++;
+      }
+    }
+    return new PlaylistSummary(mediaSequence, nrSegments, ended);
+  }
+
+  public long getMediaSequence() {
+    return mediaSequence;
+  }
+
+  public int getNrSegments() {
+    return nrSegments;
+  }
+
+  /**
+   * @return the media sequence number of the last segment in the playlist, mediaSequence - 1 if there is none.
+   */
+  public long getLastMediaSequence() {
+    return mediaSequence + nrSegments - 1;
+  }
+
+  public boolean isEnded() {
+    return ended;
+  }
+
+  @Override
+  public String toString() {
+    return "PlaylistSummary{" + "mediaSequence=" + mediaSequence + ", nrSegments=" + nrSegments
+            + ", ended=" + ended + '}';
+  }
+
+}
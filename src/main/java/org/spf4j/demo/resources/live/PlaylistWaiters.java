@@ -0,0 +1,219 @@
+
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import org.spf4j.concurrent.DefaultExecutor;
+
+/**
+ * Blocking playlist reload support (LL-HLS _HLS_msn), see:
+ * https://developer.apple.com/documentation/http_live_streaming/enabling_low-latency_hls
+ *
+ * Requests are parked as suspended AsyncResponses, (no thread is held) and are re-evaluated when the
+ * FileStore notifies that the playlist was written. The playlist is parsed once per stored version,
+ * not once per parked request, and the waiters of a playlist are dropped once none is left.
+ *
+ * @author Zoltan Farkas
+ */
+final class PlaylistWaiters implements FileStoreListener {
+
+  private final FileStore fileStore;
+
+  private final ConcurrentMap<String, PathWaiters> waiters;
+
+  PlaylistWaiters(final FileStore fileStore) {
+    this.fileStore = fileStore;
+    this.waiters = new ConcurrentHashMap<>();
+    fileStore.addListener(this);
+  }
+
+  /**
+   * Resume the async response with the response supplier result when the playlist contains the media sequence,
+   * (if msn &gt;= 0) and has been modified after changedSinceMillis (if changedSinceMillis &gt;= 0).
+   * When the timeout expires the current playlist is returned.
+   */
+  void await(final String filePath, final long msn, final long changedSinceMillis, final long timeoutMillis,
+          final AsyncResponse ar, final Callable<Response> response) {
+    Waiter waiter = new Waiter(msn, changedSinceMillis, ar, response);
+    PathWaiters pathWaiters = waiters.compute(filePath, (p, w) -> {
+      PathWaiters result = w == null ? new PathWaiters() : w;
+      result.waiters.add(waiter);
+      return result;
+    });
+    ar.setTimeoutHandler((a) -> {
+      remove(filePath, waiter);
+      waiter.resume();
+    });
+    ar.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    try {
+      Summary summary = pathWaiters.getSummary(filePath);
+      if (summary != null && msn > summary.playlist.getLastMediaSequence() + 2) {
+        throw new BadRequestException("Media sequence " + msn + " too far in the future for " + filePath
+                + ' ' + summary.playlist);
+      }
+      if (waiter.isSatisfied(summary)) {
+        remove(filePath, waiter);
+        waiter.resume();
+      }
+    } catch (IOException | RuntimeException ex) {
+      remove(filePath, waiter);
+      waiter.resume(ex);
+    }
+  }
+
+  @Override
+  public void fileStored(final String filePath) {
+    PathWaiters pathWaiters = waiters.get(filePath);
+    if (pathWaiters == null || pathWaiters.waiters.isEmpty()) {
+      return;
+    }
+    DefaultExecutor.INSTANCE.execute(() -> {
+      try {
+        Summary summary = pathWaiters.getSummary(filePath);
+        for (Waiter waiter : pathWaiters.waiters) {
+          if (waiter.isSatisfied(summary)) {
+            remove(filePath, waiter);
+            waiter.resume();
+          }
+        }
+      } catch (IOException | RuntimeException ex) {
+        for (Waiter waiter : pathWaiters.waiters) {
+          remove(filePath, waiter);
+          waiter.resume(ex);
+        }
+      }
+    });
+  }
+
+  /**
+   * Removes a waiter, and the waiters of the playlist when none is left.
+   */
+  private void remove(final String filePath, final Waiter waiter) {
+    waiters.computeIfPresent(filePath, (p, w) -> {
+      w.waiters.remove(waiter);
+      return w.waiters.isEmpty() ? null : w;
+    });
+  }
+
+  /**
+   * The waiters of a playlist, and the summary of its last parsed version.
+   */
+  private final class PathWaiters {
+
+    private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+
+    @Nullable
+    private volatile Summary current;
+
+    @Nullable
+    Summary getSummary(final String filePath) throws IOException {
+      FileInfo fileInfo = fileStore.getFileInfo(filePath);
+      if (fileInfo == null) {
+        return null;
+      }
+      Summary summary = current;
+      if (summary != null && summary.isOf(fileInfo)) {
+        return summary;
+      }
+      synchronized (this) {
+        summary = current;
+        if (summary != null && summary.isOf(fileInfo)) {
+          return summary;
+        }
+        // the file info is read before the content, a concurrent store only makes this version stale.
+        InputStream readFile = fileStore.readFile(filePath);
+        if (readFile == null) {
+          return null;
+        }
+        try (InputStream is = readFile) {
+          summary = new Summary(fileInfo, PlaylistSummary.parse(is));
+        }
+        current = summary;
+        return summary;
+      }
+    }
+
+  }
+
+  /**
+   * A playlist summary, and the version of the playlist it was parsed from.
+   */
+  private static final class Summary {
+
+    private final FileInfo source;
+
+    private final PlaylistSummary playlist;
+
+    Summary(final FileInfo source, final PlaylistSummary playlist) {
+      this.source = source;
+      this.playlist = playlist;
+    }
+
+    boolean isOf(final FileInfo fileInfo) {
+      return source.getLastModifiedMillis() == fileInfo.getLastModifiedMillis()
+              && source.getSize() == fileInfo.getSize() && source.getCrc32c() == fileInfo.getCrc32c();
+    }
+
+  }
+
+  private final class Waiter {
+
+    private final long msn;
+
+    private final long changedSinceMillis;
+
+    private final AsyncResponse ar;
+
+    private final Callable<Response> response;
+
+    private final AtomicBoolean done;
+
+    Waiter(final long msn, final long changedSinceMillis, final AsyncResponse ar,
+            final Callable<Response> response) {
+      this.msn = msn;
+      this.changedSinceMillis = changedSinceMillis;
+      this.ar = ar;
+      this.response = response;
+      this.done = new AtomicBoolean(false);
+    }
+
+    boolean isSatisfied(@Nullable final Summary summary) {
+      if (summary == null) {
+        return false;
+      }
+      PlaylistSummary playlist = summary.playlist;
+      if (msn >= 0 && !playlist.isEnded() && playlist.getLastMediaSequence() < msn) {
+        return false;
+      }
+      return changedSinceMillis < 0 || summary.source.getLastModifiedMillis() > changedSinceMillis;
+    }
+
+    void resume() {
+      if (done.compareAndSet(false, true)) {
+        try {
+          ar.resume(response.call());
+        } catch (Exception ex) {
+          ar.resume(ex);
+        }
+      }
+    }
+
+    void resume(final Throwable ex) {
+      if (done.compareAndSet(false, true)) {
+        ar.resume(ex);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,458 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultExecutor;
+
+/**
+ * Server side sliding window (or DVR window) playlists: publishers upload the whole media playlist every segment,
+ * which with a large -hls_list_size grows to hundreds of KB, while viewers only need the last few segments.
+ *
+ * The segments (media sequence, tags like EXTINF and EXT-X-DISCONTINUITY, uri) of the playlists that are viewed
+ * are kept in memory, up to maxSegments per stream, and refreshed when the publisher stores a new playlist.
+ * Windows of the last N segments are rendered on demand, with the media and discontinuity sequence adjusted,
+ * and the rendered bytes are cached until the next playlist (with the next segment) lands.
+ *
+ * EXT-X-KEY and EXT-X-MAP apply to all the segments that follow them, the first segment of a window carries
+ * the key and map in effect for it, even when the tags were written before an earlier segment.
+ * EXT-X-PROGRAM-DATE-TIME is rendered for every segment, extrapolated with the EXTINF durations from the last
+ * date written by the publisher, when there is one since the last discontinuity.
+ * EXT-X-PLAYLIST-TYPE is dropped: an EVENT or VOD playlist cannot have segments removed (RFC 8216 4.3.3.5),
+ * which a window does.
+ *
+ * @author Zoltan Farkas
+ */
+final class PlaylistWindows implements FileStoreListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PlaylistWindows.class);
+
+  private static final String KEY = "#EXT-X-KEY:";
+
+  private static final String MAP = "#EXT-X-MAP:";
+
+  private static final String PROGRAM_DATE_TIME = "#EXT-X-PROGRAM-DATE-TIME:";
+
+  private static final String PLAYLIST_TYPE = "#EXT-X-PLAYLIST-TYPE:";
+
+  private static final DateTimeFormatter PDT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+  /** playlists that are not viewed for this long are not tracked anymore. */
+  private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  private final FileStore fileStore;
+
+  private final int maxSegments;
+
+  /** playlist path -> segment index, only for the playlists that are viewed with a window. */
+  private final ConcurrentMap<String, Index> indexes;
+
+  private final AtomicLong nextSweepNanos;
+
+  PlaylistWindows(final FileStore fileStore, final int maxSegments) {
+    this.fileStore = fileStore;
+    this.maxSegments = maxSegments;
+    this.indexes = new ConcurrentHashMap<>();
+    this.nextSweepNanos = new AtomicLong(TimeSource.nanoTime() + IDLE_NANOS);
+    fileStore.addListener(this);
+  }
+
+  /**
+   * @param filePath the playlist path.
+   * @param window the number of segments, capped to maxSegments.
+   * @return the playlist with the last window segments, null if there is no such playlist.
+   */
+  @Nullable
+  Rendered render(final String filePath, final int window) throws IOException {
+    if (window <= 0) {
+      throw new IllegalArgumentException("Invalid window " + window + " for " + filePath);
+    }
+    FileInfo fileInfo = fileStore.getFileInfo(filePath);
+    if (fileInfo == null) {
+      indexes.remove(filePath);
+      return null;
+    }
+    Index index = indexes.computeIfAbsent(filePath, (p) -> new Index());
+    index.lastAccessNanos = TimeSource.nanoTime();
+    Segments segments = index.get(fileInfo, filePath);
+    if (segments == null) {
+      return null;
+    }
+    return segments.render(Math.min(window, maxSegments));
+  }
+
+  /**
+   * Refresh the segments of a viewed playlist as soon as it is stored, so that viewers do not wait for the parse.
+   */
+  @Override
+  public void fileStored(final String filePath) {
+    sweep();
+    Index index = indexes.get(filePath);
+    if (index == null) {
+      return;
+    }
+    DefaultExecutor.INSTANCE.execute(() -> {
+      try {
+        FileInfo fileInfo = fileStore.getFileInfo(filePath);
+        if (fileInfo == null) {
+          indexes.remove(filePath, index);
+        } else {
+          index.get(fileInfo, filePath);
+        }
+      } catch (IOException | RuntimeException ex) {
+        LOG.debug("Cannot index playlist {}", filePath, ex);
+      }
+    });
+  }
+
+  /**
+   * Drop the indexes of the playlists that are not viewed anymore, at most once every IDLE_NANOS.
+   */
+  private void sweep() {
+    long now = TimeSource.nanoTime();
+    long next = nextSweepNanos.get();
+    if (now - next < 0 || !nextSweepNanos.compareAndSet(next, now + IDLE_NANOS)) {
+      return;
+    }
+    indexes.values().removeIf((index) -> now - index.lastAccessNanos > IDLE_NANOS);
+  }
+
+  private static boolean hasTag(final List<String> tags, final String prefix) {
+    for (String tag : tags) {
+      if (tag.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int getNrIndexed() {
+    return indexes.size();
+  }
+
+  @Override
+  public String toString() {
+    return "PlaylistWindows{" + "maxSegments=" + maxSegments + ", indexed=" + indexes.size() + '}';
+  }
+
+  /**
+   * The segments of a playlist, re-parsed once per stored version of the playlist.
+   */
+  private final class Index {
+
+    @Nullable
+    private volatile Segments current;
+
+    private volatile long lastAccessNanos = TimeSource.nanoTime();
+
+    @Nullable
+    Segments get(final FileInfo fileInfo, final String filePath) throws IOException {
+      Segments segments = current;
+      if (segments != null && segments.isOf(fileInfo)) {
+        return segments;
+      }
+      synchronized (this) {
+        segments = current;
+        if (segments != null && segments.isOf(fileInfo)) {
+          return segments;
+        }
+        // the file info is read before the content, a concurrent store only makes this version stale.
+        InputStream is = fileStore.readFile(filePath);
+        if (is == null) {
+          return null;
+        }
+        try (InputStream in = is) {
+          segments = Segments.parse(in, fileInfo, maxSegments);
+        }
+        current = segments;
+        return segments;
+      }
+    }
+  }
+
+  private static final class Segment {
+
+    /** the tags of the segment, EXTINF last. */
+    private final List<String> tags;
+
+    private final boolean discontinuity;
+
+    private final String uri;
+
+    /** the EXT-X-KEY in effect for the segment, null if none. */
+    @Nullable
+    private final String key;
+
+    /** the EXT-X-MAP in effect for the segment, null if none. */
+    @Nullable
+    private final String map;
+
+    /** the program date time of the segment, -1 if not known. */
+    private final long dateTimeMillis;
+
+    Segment(final List<String> tags, final boolean discontinuity, final String uri,
+            @Nullable final String key, @Nullable final String map, final long dateTimeMillis) {
+      this.tags = tags;
+      this.discontinuity = discontinuity;
+      this.uri = uri;
+      this.key = key;
+      this.map = map;
+      this.dateTimeMillis = dateTimeMillis;
+    }
+
+    boolean hasTag(final String prefix) {
+      return PlaylistWindows.hasTag(tags, prefix);
+    }
+  }
+
+  /**
+   * An immutable version of the segments of a playlist, and the windows rendered from it.
+   */
+  static final class Segments {
+
+    private final FileInfo source;
+
+    /**
+     * the playlist tags, without the media sequence, discontinuity sequence and endlist, and without the segment
+     * tags written before the first segment.
+     */
+    private final List<String> header;
+
+    private final long mediaSequence;
+
+    private final long discontinuitySequence;
+
+    private final List<Segment> segments;
+
+    private final boolean ended;
+
+    private final ConcurrentMap<Integer, Rendered> rendered;
+
+    private Segments(final FileInfo source, final List<String> header, final long mediaSequence,
+            final long discontinuitySequence, final List<Segment> segments, final boolean ended) {
+      this.source = source;
+      this.header = header;
+      this.mediaSequence = mediaSequence;
+      this.discontinuitySequence = discontinuitySequence;
+      this.segments = segments;
+      this.ended = ended;
+      this.rendered = new ConcurrentHashMap<>(4);
+    }
+
+    /**
+     * Parse a media playlist, keeping the last maxSegments segments.
+     */
+    static Segments parse(final InputStream is, final FileInfo source, final int maxSegments) throws IOException {
+      List<String> header = new ArrayList<>();
+      long mediaSequence = 0;
+      long discontinuitySequence = 0;
+      boolean ended = false;
+      Deque<Segment> segments = new ArrayDeque<>();
+      List<String> tags = new ArrayList<>(2);
+      boolean discontinuity = false;
+      String key = null;
+      String map = null;
+      // the date time of the next segment, extrapolated from the last EXT-X-PROGRAM-DATE-TIME, -1 if not known.
+      long dateTimeMillis = -1;
+      long durationMillis = 0;
+      BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || "#EXTM3U".equals(line)) {
+          continue;
+        }
+        if (line.charAt(0) != '#') {
+          segments.addLast(new Segment(Collections.unmodifiableList(tags), discontinuity, line,
+                  key, map, dateTimeMillis));
+          if (dateTimeMillis >= 0) {
+            dateTimeMillis += durationMillis;
+          }
+          tags = new ArrayList<>(2);
+          discontinuity = false;
+          durationMillis = 0;
+          if (segments.size() > maxSegments) {
+            if (segments.removeFirst().discontinuity) {
+              discontinuitySequence++;
+            }
+            mediaSequence++;
+          }
+        } else if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+          mediaSequence += parseLong(line, 22);
+        } else if (line.startsWith("#EXT-X-DISCONTINUITY-SEQUENCE:")) {
+          discontinuitySequence += parseLong(line, 30);
+        } else if (line.startsWith("#EXT-X-ENDLIST")) {
+          ended = true;
+        } else if (line.startsWith("#EXT-X-DISCONTINUITY")) {
+          discontinuity = true;
+          // dates are not extrapolated over a discontinuity.
+          if (!hasTag(tags, PROGRAM_DATE_TIME)) {
+            dateTimeMillis = -1;
+          }
+          tags.add(line);
+        } else if (line.startsWith(KEY)) {
+          key = line;
+          tags.add(line);
+        } else if (line.startsWith(MAP)) {
+          map = line;
+          tags.add(line);
+        } else if (line.startsWith(PROGRAM_DATE_TIME)) {
+          dateTimeMillis = parseDateTime(line);
+          tags.add(line);
+        } else if (line.startsWith("#EXTINF:")) {
+          durationMillis = parseDurationMillis(line);
+          tags.add(line);
+        } else if (!tags.isEmpty() || !segments.isEmpty() || line.startsWith("#EXT-X-BYTERANGE:")) {
+          tags.add(line);
+        } else if (line.startsWith("#EXT") && !line.startsWith(PLAYLIST_TYPE)) {
+          header.add(line);
+        }
+      }
+      return new Segments(source, header, mediaSequence, discontinuitySequence, new ArrayList<>(segments), ended);
+    }
+
+    private static long parseDateTime(final String line) throws IOException {
+      try {
+        return OffsetDateTime.parse(line.substring(PROGRAM_DATE_TIME.length()).trim()).toInstant().toEpochMilli();
+      } catch (DateTimeParseException ex) {
+        throw new IOException("Invalid playlist line " + line, ex);
+      }
+    }
+
+    private static long parseDurationMillis(final String line) throws IOException {
+      int end = line.indexOf(',', 8);
+      try {
+        return Math.round(Double.parseDouble(line.substring(8, end < 0 ? line.length() : end).trim()) * 1000);
+      } catch (NumberFormatException ex) {
+        throw new IOException("Invalid playlist line " + line, ex);
+      }
+    }
+
+    private static long parseLong(final String line, final int from) throws IOException {
+      try {
+        return Long.parseLong(line.substring(from).trim());
+      } catch (NumberFormatException ex) {
+        throw new IOException("Invalid playlist line " + line, ex);
+      }
+    }
+
+    boolean isOf(final FileInfo fileInfo) {
+      return source.getLastModifiedMillis() == fileInfo.getLastModifiedMillis()
+              && source.getSize() == fileInfo.getSize() && source.getCrc32c() == fileInfo.getCrc32c();
+    }
+
+    Rendered render(final int window) {
+      return rendered.computeIfAbsent(Math.min(window, segments.size()), this::doRender);
+    }
+
+    private Rendered doRender(final int window) {
+      int first = segments.size() - window;
+      long discontinuities = discontinuitySequence;
+      for (int i = 0; i < first; i++) {
+        if (segments.get(i).discontinuity) {
+          discontinuities++;
+        }
+      }
+      StringBuilder sb = new StringBuilder(128 + 64 * window);
+      sb.append("#EXTM3U\n");
+      for (String tag : header) {
+        sb.append(tag).append('\n');
+      }
+      sb.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence + first).append('\n');
+      if (discontinuities > 0) {
+        sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuities).append('\n');
+      }
+      for (int i = first; i < segments.size(); i++) {
+        Segment segment = segments.get(i);
+        if (i == first) {
+          if (segment.key != null && !segment.hasTag(KEY)) {
+            sb.append(segment.key).append('\n');
+          }
+          if (segment.map != null && !segment.hasTag(MAP)) {
+            sb.append(segment.map).append('\n');
+          }
+        }
+        if (segment.dateTimeMillis >= 0 && !segment.hasTag(PROGRAM_DATE_TIME)) {
+          sb.append(PROGRAM_DATE_TIME).append(PDT_FORMAT.format(
+                  Instant.ofEpochMilli(segment.dateTimeMillis).atOffset(ZoneOffset.UTC))).append('\n');
+        }
+        for (String tag : segment.tags) {
+          sb.append(tag).append('\n');
+        }
+        sb.append(segment.uri).append('\n');
+      }
+      if (ended) {
+        sb.append("#EXT-X-ENDLIST\n");
+      }
+      return new Rendered(sb.toString().getBytes(StandardCharsets.UTF_8), source.getLastModifiedMillis());
+    }
+
+    @Override
+    public String toString() {
+      return "Segments{" + "mediaSequence=" + mediaSequence + ", nrSegments=" + segments.size()
+              + ", ended=" + ended + '}';
+    }
+  }
+
+  /**
+   * A rendered window playlist.
+   */
+  static final class Rendered {
+
+    private final byte[] content;
+
+    private final long crc32c;
+
+    private final long lastModifiedMillis;
+
+    Rendered(final byte[] content, final long lastModifiedMillis) {
+      this.content = content;
+      CRC32C crc = new CRC32C();
+      crc.update(content, 0, content.length);
+      this.crc32c = crc.getValue();
+      this.lastModifiedMillis = lastModifiedMillis;
+    }
+
+    /**
+     * @return the content, not to be modified.
+     */
+    byte[] getContent() {
+      return content;
+    }
+
+    long getCrc32c() {
+      return crc32c;
+    }
+
+    long getLastModifiedMillis() {
+      return lastModifiedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "Rendered{" + "size=" + content.length + ", crc32c=" + FileInfo.crc32cToString(crc32c) + '}';
+    }
+  }
+
+}
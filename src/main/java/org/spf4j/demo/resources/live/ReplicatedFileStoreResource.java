@@ -3,29 +3,54 @@ package org.spf4j.demo.resources.live;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
 import javax.annotation.security.PermitAll;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.glassfish.hk2.api.Immediate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.spf4j.base.CloseableIterable;
 import org.spf4j.base.ExecutionContexts;
+import org.spf4j.base.TimeSource;
 import org.spf4j.cluster.Cluster;
 import org.spf4j.cluster.ClusterInfo;
-import org.spf4j.io.Streams;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.jaxrs.client.Spf4jWebTarget;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
 
 /**
  * @author Zoltan Farkas
@@ -35,6 +60,28 @@ import org.spf4j.io.Streams;
 @Singleton
 @PermitAll
 public class ReplicatedFileStoreResource implements FileStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReplicatedFileStoreResource.class);
+
+  private static final int RETRY_TIMEOUT_MILLIS = 30000;
+
+  private static final long RETRY_BASE_DELAY_MILLIS = 1000;
+
+  private static final long NEGATIVE_READ_THROUGH_MILLIS = 1000;
+
+  private static final int VIRTUAL_NODES = 64;
+
+  /** the uploads of a stream in flight to a peer: a segment, its playlist and a retry. */
+  private static final int UPLOADS_PER_STREAM = 3;
+
+  /**
+   * time from the end of the body of a file replicated by a peer to the file being published locally,
+   * the part of the peer's replication_write_latency spent on this node.
+   */
+  private static final MeasurementRecorder STORE_LATENCY
+          = RecorderFactory.createScalableQuantizedRecorder("replication_store_latency", "ms", 60000,
+                  10, 0, 5, 10);
+
   private final Cluster cluster;
 
   private final int port;
@@ -43,19 +90,81 @@ public class ReplicatedFileStoreResource implements FileStore {
 
   private final FileStore localStore;
 
+  private final int maxQueuedChunks;
+
+  private final int writeQuorum;
+
+  private final int maxRetries;
+
+  private final PeerClient client;
+
+  private final int readThroughTimeoutMillis;
+
+  /** in progress (or recently failed) fetches of locally missing files from peers. */
+  private final CoalescedFetches<Boolean> readThroughs;
+
+  /** web targets per peer address, built once per peer. */
+  private final ConcurrentMap<InetAddress, Spf4jWebTarget> peerTargets;
+
+  private final PeerReconciler reconciler;
+
+  /** the number of nodes a stream is stored on, 0 for all nodes. */
+  private final int replicationFactor;
+
+  private volatile HashRing ring;
+
+  /** the streams placed by this node, the streams of segments are resolved against them. */
+  private final HlsStreams streams;
+
+  /**
+   * @param maxStreams the number of streams replicated concurrently, the connections to a peer are limited to
+   * the concurrent uploads of that many streams.
+   */
   @Inject
   public ReplicatedFileStoreResource(final Cluster cluster,
           @ConfigProperty(name = "servlet.port") final int port,
           @ConfigProperty(name = "servlet.protocol") final String protocol,
+          @ConfigProperty(name = "replication.maxQueuedChunks", defaultValue = "256") final int maxQueuedChunks,
+          @ConfigProperty(name = "replication.writeQuorum", defaultValue = "1") final int writeQuorum,
+          @ConfigProperty(name = "replication.maxRetries", defaultValue = "3") final int maxRetries,
+          @ConfigProperty(name = "replication.factor", defaultValue = "0") final int replicationFactor,
+          @ConfigProperty(name = "replication.maxStreams", defaultValue = "64") final int maxStreams,
+          @ConfigProperty(name = "replication.readThroughTimeoutMillis", defaultValue = "5000")
+          final int readThroughTimeoutMillis,
+          @ConfigProperty(name = "replication.reconcileIntervalMillis", defaultValue = "30000")
+          final long reconcileIntervalMillis,
+          @ConfigProperty(name = "replication.reconcileMaxAgeMillis", defaultValue = "600000")
+          final long reconcileMaxAgeMillis,
+          @ConfigProperty(name = "replication.reconcileMaxBytesPerSecond", defaultValue = "4194304")
+          final long reconcileMaxBytesPerSecond,
           @Named("local") final FileStore localStore) {
+    if (reconcileMaxAgeMillis >= localStore.getRetentionMillis()) {
+      throw new IllegalArgumentException("replication.reconcileMaxAgeMillis " + reconcileMaxAgeMillis
+              + " must be less than the retention of " + localStore + ", " + localStore.getRetentionMillis()
+              + " ms, expired files would be pulled back from the peers");
+    }
     this.cluster = cluster;
+    this.client = new PeerClient(maxStreams * UPLOADS_PER_STREAM);
+    this.peerTargets = new ConcurrentHashMap<>();
+    this.replicationFactor = replicationFactor;
+    this.ring = new HashRing(VIRTUAL_NODES);
+    this.streams = new HlsStreams();
+    this.reconciler = new PeerReconciler(cluster, localStore, this::peerRootTarget, this::isOwnedLocally,
+            reconcileIntervalMillis, reconcileMaxAgeMillis, reconcileMaxBytesPerSecond, readThroughTimeoutMillis);
     this.port = port;
     this.protocol = protocol;
+    this.maxQueuedChunks = maxQueuedChunks;
+    this.writeQuorum = writeQuorum;
+    this.maxRetries = maxRetries;
+    this.readThroughTimeoutMillis = readThroughTimeoutMillis;
+    this.readThroughs = new CoalescedFetches<>(NEGATIVE_READ_THROUGH_MILLIS);
     this.localStore = localStore;
   }
 
   @Override
   public void close() throws IOException {
+    reconciler.close();
+    client.close();
   }
 
   @Override
@@ -67,71 +176,394 @@ public class ReplicatedFileStoreResource implements FileStore {
     return list;
   }
 
+  /**
+   * Files this node owns, and are missing locally, are read through from the peers and stored locally.
+   * Files owned by other nodes are not served, reads are redirected to an owner (see {@link #locate(String)}).
+   */
   @Override
   public InputStream readFile(final String filePath) throws IOException {
-    return localStore.readFile(filePath);
+    InputStream is = localStore.readFile(filePath);
+    if (is == null && isOwnedLocally(filePath) && readThrough(filePath)) {
+      is = localStore.readFile(filePath);
+    }
+    return is;
+  }
+
+  /**
+   * Only uploads to this node can be followed.
+   */
+  @Override
+  @Nullable
+  public InputStream follow(final String filePath) throws IOException {
+    return localStore.follow(filePath);
+  }
+
+  @Override
+  public SeekableByteChannel readChannel(final String filePath) throws IOException {
+    SeekableByteChannel channel = localStore.readChannel(filePath);
+    if (channel == null && isOwnedLocally(filePath) && readThrough(filePath)) {
+      channel = localStore.readChannel(filePath);
+    }
+    return channel;
+  }
+
+  @Override
+  @Nullable
+  public OpenFile open(final String filePath) throws IOException {
+    OpenFile file = localStore.open(filePath);
+    if (file == null && isOwnedLocally(filePath) && readThrough(filePath)) {
+      file = localStore.open(filePath);
+    }
+    return file;
+  }
+
+  /**
+   * Only local files are prefetched, files missing locally are fetched from the peers when read.
+   */
+  @Override
+  public void prefetch(final String filePath) throws IOException {
+    localStore.prefetch(filePath);
+  }
+
+  @Override
+  public FileInfo getFileInfo(final String filePath) throws IOException {
+    FileInfo info = localStore.getFileInfo(filePath);
+    if (info == null && isOwnedLocally(filePath) && readThrough(filePath)) {
+      info = localStore.getFileInfo(filePath);
+    }
+    return info;
+  }
+
+  /**
+   * Reads of files owned by other nodes are redirected to the first of the owners, which are notified of
+   * the stores of the file, so that blocking playlist reloads resume as soon as the playlist is stored, and which
+   * keep a copy of the file, so that the content of the other streams is neither copied to this node nor
+   * fetched for every read. The node that ingests a stream serves its local copies.
+   * @return the base URI of an owner of the file, null when the file is stored or owned locally.
+   */
+  @Override
+  @Nullable
+  public URI locate(final String filePath) throws IOException {
+    if (isOwnedLocally(filePath) || localStore.getFileInfo(filePath) != null) {
+      return null;
+    }
+    Collection<InetAddress> owners = peerOwners(cluster.getClusterInfo(), filePath);
+    return owners.isEmpty() ? null : peerUri(owners.iterator().next());
+  }
+
+  /**
+   * Fetch a file this node owns, and is missing locally, from the peers, and store it locally. Concurrent reads
+   * of the file share one fetch, which tries the peers within one readThroughTimeoutMillis.
+   * The file is downloaded and stored before it is served, segments being small this costs the first reader one
+   * download, the stored copy is what every read serves, with its checksum and size known upfront.
+   * @return true if the file was fetched.
+   */
+  private boolean readThrough(final String filePath) throws IOException {
+    Boolean found = readThroughs.fetch(filePath, readThroughTimeoutMillis,
+            (deadlineNanos) -> fetchFromPeers(filePath, deadlineNanos, (response) -> {
+              try (InputStream is = response.readEntity(InputStream.class);
+                      OutputStream os = localStore.storeFile(filePath, lastModified(response))) {
+                FileTransfers.store(is, os, crc32cHeader(response.getHeaderString(FileInfo.CRC32C_HEADER)));
+              }
+              return Boolean.TRUE;
+            }));
+    return found != null;
+  }
+
+  /**
+   * Fetch from the peers that own the file first, the other peers are asked only when the owners do not
+   * have it, which happens while the ring rebalances. All the peers are asked within the deadline.
+   * @return the handler result for the first peer that has the file, null if no peer has it.
+   * @throws TimeoutException when the deadline passes before a peer has the file.
+   */
+  @Nullable
+  private <T> T fetchFromPeers(final String filePath, final long deadlineNanos, final PeerContentHandler<T> handler)
+          throws IOException, TimeoutException {
+    ClusterInfo clusterInfo = cluster.getClusterInfo();
+    Set<InetAddress> peers = new LinkedHashSet<>(peerOwners(clusterInfo, filePath));
+    peers.addAll(clusterInfo.getPeerAddresses());
+    for (InetAddress addr : peers) {
+      long timeoutNanos = deadlineNanos - TimeSource.nanoTime();
+      if (timeoutNanos <= 0) {
+        throw new TimeoutException("Timed out fetching " + filePath + " from " + peers);
+      }
+      Spf4jWebTarget target = peerTarget(addr, filePath);
+      try (Response response = target.request(MediaType.WILDCARD)
+              .withTimeout(timeoutNanos, TimeUnit.NANOSECONDS)
+              .noDefaultRetryPolicy()
+              .get()) {
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+          LOG.debug("{} not available at {}, status {}", filePath, addr, response.getStatus());
+          continue;
+        }
+        T result = handler.handle(response);
+        LOG.debug("Fetched {} from {}", filePath, addr);
+        return result;
+      } catch (ProcessingException | WebApplicationException | ChecksumException ex) {
+        LOG.debug("Failed to fetch {} from {}", filePath, addr, ex);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the peers that store the file: the replicas of its stream on the hash ring, without this node,
+   * or all peers when no replication factor is configured.
+   */
+  private Collection<InetAddress> peerOwners(final ClusterInfo clusterInfo, final String filePath) {
+    Set<InetAddress> peerAddresses = clusterInfo.getPeerAddresses();
+    if (replicationFactor <= 0) {
+      return peerAddresses;
+    }
+    List<InetAddress> owners = ring(clusterInfo).replicas(streams.streamOf(filePath), replicationFactor);
+    owners.retainAll(peerAddresses);
+    return owners;
+  }
+
+  /**
+   * @return true if this node is one of the nodes that store the file.
+   */
+  private boolean isOwnedLocally(final String filePath) {
+    if (replicationFactor <= 0) {
+      return true;
+    }
+    ClusterInfo clusterInfo = cluster.getClusterInfo();
+    Set<InetAddress> localAddresses = clusterInfo.getLocalAddresses();
+    for (InetAddress owner : ring(clusterInfo).replicas(streams.streamOf(filePath), replicationFactor)) {
+      if (localAddresses.contains(owner)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the ring of the current cluster members, derived from the previous ring when membership changed.
+   */
+  private HashRing ring(final ClusterInfo clusterInfo) {
+    HashRing current = ring;
+    HashRing updated = current.withMembers(clusterInfo.getAddresses());
+    if (updated != current) {
+      ring = updated;
+      LOG.info("Cluster membership changed, placing streams on {}", updated);
+    }
+    return updated;
+  }
+
+  /**
+   * @return the modification time of the original of a file downloaded from a peer, the time of the download
+   * if the peer does not send it.
+   */
+  private static long lastModified(final Response response) {
+    long lastModified = lastModifiedHeader(response.getHeaderString(FileInfo.LAST_MODIFIED_HEADER));
+    if (lastModified >= 0) {
+      return lastModified;
+    }
+    Date date = response.getLastModified();
+    return date == null ? System.currentTimeMillis() : date.getTime();
+  }
+
+  /**
+   * @return the modification time from a header value, -1 if missing or invalid.
+   */
+  static long lastModifiedHeader(@Nullable final String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the checksum from a header value, -1 if missing or invalid.
+   */
+  static long crc32cHeader(@Nullable final String value) {
+    return value == null ? -1 : FileInfo.parseCrc32c(value);
+  }
+
+  /**
+   * Read a file from the local store only, used by peers to read through.
+   * The CRC32C of the file is sent as a header when known, for the peer to verify the content before publishing it.
+   * The headers and the content are of the same version of the file, see {@link FileStore#open(String)}.
+   */
+  @Path("{path:.*}")
+  @GET
+  @Produces(MediaType.APPLICATION_OCTET_STREAM)
+  public Response readFileLocal(@PathParam("path") final String filePath) throws IOException {
+    OpenFile file = localStore.open(filePath);
+    if (file == null) {
+      throw new NotFoundException("Not found " + filePath);
+    }
+    FileInfo info = file.getInfo();
+    Response.ResponseBuilder bldr = Response.ok((StreamingOutput) (os) -> {
+      try (SeekableByteChannel ch = file.getChannel()) {
+        FileTransfers.transfer(ch, 0, info.getSize(), os);
+      }
+    });
+    if (info.hasCrc32c()) {
+      bldr.header(FileInfo.CRC32C_HEADER, FileInfo.crc32cToString(info.getCrc32c()));
+    }
+    return bldr.lastModified(new Date(info.getLastModifiedMillis()))
+            .header(FileInfo.LAST_MODIFIED_HEADER, info.getLastModifiedMillis()).build();
   }
 
+  /**
+   * Both files published on this node and replicated from peers are written to the local store.
+   */
+  @Override
+  public void addListener(final FileStoreListener listener) {
+    localStore.addListener(listener);
+  }
+
+  @Override
+  public void removeListener(final FileStoreListener listener) {
+    localStore.removeListener(listener);
+  }
+
+  /**
+   * Store a file replicated by a peer. When the peer sends the CRC32C of the content, as a header or as a trailer
+   * of the body for uploads streamed while the file is ingested, the content is verified before it is published,
+   * and rejected on mismatch. The checksum of the stored content is returned as a header,
+   * for the peer to verify uploads whose checksum was not known when sending the request.
+   * The file keeps the modification time of the original, when the peer sends it.
+   */
   @Path("{path:.*}")
   @POST
-  public void storeFileLocal(@PathParam("path") String filePath,
+  public Response storeFileLocal(@PathParam("path") String filePath,
+          @HeaderParam(FileInfo.CRC32C_HEADER) @Nullable final String crc32c,
+          @HeaderParam(FileInfo.CRC32C_TRAILER_HEADER) final boolean crc32cTrailer,
+          @HeaderParam(FileInfo.LAST_MODIFIED_HEADER) @Nullable final String lastModified,
           final InputStream is) throws IOException, TimeoutException {
-    try (OutputStream os = localStore.storeFile(filePath)) {
-      Streams.copy(is, os);
+    long lastModifiedMillis = lastModifiedHeader(lastModified);
+    long eofNanos;
+    try (OutputStream os = lastModifiedMillis < 0 ? localStore.storeFile(filePath)
+            : localStore.storeFile(filePath, lastModifiedMillis)) {
+      if (crc32cTrailer) {
+        FileTransfers.storeWithCrc32cTrailer(is, os);
+      } else {
+        FileTransfers.store(is, os, crc32cHeader(crc32c));
+      }
+      eofNanos = TimeSource.nanoTime();
+    } catch (ChecksumException ex) {
+      throw new BadRequestException("Corrupted upload of " + filePath, ex);
     }
+    STORE_LATENCY.record(TimeUnit.NANOSECONDS.toMillis(TimeSource.nanoTime() - eofNanos));
+    FileInfo info = localStore.getFileInfo(filePath);
+    Response.ResponseBuilder bldr = Response.noContent();
+    if (info != null && info.hasCrc32c()) {
+      bldr.header(FileInfo.CRC32C_HEADER, FileInfo.crc32cToString(info.getCrc32c()));
+    }
+    return bldr.build();
   }
 
 
+  /**
+   * Stores the file locally and replicates it to the peers that own its stream (all peers without a replication
+   * factor), the node ingesting a file always keeps a copy. Every peer gets its own upload with a bounded queue,
+   * so that the local write is never slowed down by a peer. Peers that fall behind are abandoned (lagging).
+   * Closing the returned stream waits for the local write and for writeQuorum peers to confirm, the other peers
+   * finish in the background, failed peer writes are retried from the local copy. A peer write that succeeds
+   * on retry before the deadline counts toward the quorum. The local and peer copies have the same modification
+   * time.
+   */
   @Override
-  public OutputStream storeFile(String filePath) throws IOException, TimeoutException {
-    OutputStream storeFile = localStore.storeFile(filePath);
-    BroadcastOutputStream bos = new BroadcastOutputStream(storeFile);
-    try {
-      ClusterInfo clusterInfo = cluster.getClusterInfo();
-      Set<InetAddress> peerAddresses = clusterInfo.getPeerAddresses();
-      for (InetAddress addr : peerAddresses) {
-        URI uri;
-        try {
-          uri = new URI(protocol, null, addr.getHostAddress(), port, "/files/" + filePath, null, null);
-        } catch (URISyntaxException ex) {
-          throw new RuntimeException(ex);
+  public OutputStream storeFile(final String filePath, final long lastModifiedMillis)
+          throws IOException, TimeoutException {
+    ClusterInfo clusterInfo = cluster.getClusterInfo();
+    peerTargets.keySet().retainAll(clusterInfo.getPeerAddresses());
+    Collection<InetAddress> peerAddresses = peerOwners(clusterInfo, filePath);
+    int timeoutMillis = ExecutionContexts.getTimeToDeadlineInt(TimeUnit.MILLISECONDS);
+    List<PeerUpload> uploads = new ArrayList<>(peerAddresses.size());
+    for (InetAddress addr : peerAddresses) {
+      uploads.add(new PeerUpload(addr.getHostAddress(), peerTarget(addr, filePath), timeoutMillis,
+              maxQueuedChunks, lastModifiedMillis));
+    }
+    OutputStream storeFile = localStore.storeFile(filePath, lastModifiedMillis);
+    List<CompletableFuture<Integer>> confirmations = new ArrayList<>(uploads.size());
+    for (PeerUpload upload : uploads) {
+      CompletableFuture<Integer> confirmation = new CompletableFuture<>();
+      confirmations.add(confirmation);
+      upload.getResult().whenComplete((code, ex) -> {
+        if (ex == null) {
+          confirmation.complete(code);
+        } else {
+          retry(filePath, upload, ex, 1, confirmation);
         }
-        final HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection();
-        conn.setConnectTimeout(5000);
-        conn.setReadTimeout(ExecutionContexts.getTimeToDeadlineInt(TimeUnit.MILLISECONDS));
-        conn.setRequestMethod("POST");
-        conn.setDoOutput(true);
-        conn.setChunkedStreamingMode(8192);
-        conn.connect();
-        OutputStream os = conn.getOutputStream();
-        bos.addStream(os);
-        bos.addCloseable(() -> {
-          int responseCode = conn.getResponseCode();
-          if (responseCode >= 300 || responseCode < 200) {
-            //todo handle response payload for extra debug
-            conn.disconnect();
-            throw new WebApplicationException(responseCode);
-          }
-        });
+      });
+      DefaultExecutor.INSTANCE.execute(upload);
+    }
+    return new AsyncFanOutOutputStream(storeFile, uploads, confirmations, writeQuorum,
+            TimeSource.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+  }
 
-      }
-    } catch (IOException ex) {
-      try {
-        bos.close();
-      } catch (IOException ex1) {
-        ex.addSuppressed(ex1);
-      }
-      throw ex;
-    } catch (RuntimeException ex) {
+  /**
+   * Re-send a file from the local copy, with exponential backoff.
+   * @param confirmation completed when a retry succeeds, failed when the peer is given up on.
+   */
+  private void retry(final String filePath, final PeerUpload failed, final Throwable failure, final int attempt,
+          final CompletableFuture<Integer> confirmation) {
+    if (attempt > maxRetries) {
+      LOG.warn("Failed to replicate {} to {} after {} attempts", filePath, failed.getPeer(), attempt, failure);
+      confirmation.completeExceptionally(failure);
+      return;
+    }
+    LOG.debug("Failed to replicate {} to {}, attempt {}", filePath, failed.getPeer(), attempt, failure);
+    DefaultScheduler.instance().schedule(() -> {
+      FileInfo info;
       try {
-        bos.close();
-      } catch (IOException ex1) {
-        ex.addSuppressed(ex1);
+        info = localStore.getFileInfo(filePath);
+      } catch (IOException ex) {
+        info = null;
       }
-      throw ex;
+      PeerUpload upload = new PeerUpload(failed.getPeer(), failed.getTarget(), RETRY_TIMEOUT_MILLIS,
+              () -> {
+                InputStream is = localStore.readFile(filePath);
+                if (is == null) {
+                  throw new NoSuchFileException(filePath, null, "no longer available for replication");
+                }
+                return is;
+              }, info == null ? -1 : info.getCrc32c(),
+              info == null ? failed.getLastModifiedMillis() : info.getLastModifiedMillis());
+      upload.getResult().whenComplete((code, ex) -> {
+        if (ex == null) {
+          confirmation.complete(code);
+        } else if (ex instanceof NoSuchFileException || ex.getCause() instanceof NoSuchFileException) {
+          LOG.debug("Replication of {} to {} abandoned", filePath, failed.getPeer(), ex);
+          confirmation.completeExceptionally(ex);
+        } else {
+          retry(filePath, upload, ex, attempt + 1, confirmation);
+        }
+      });
+      DefaultExecutor.INSTANCE.execute(upload);
+    }, RETRY_BASE_DELAY_MILLIS << (attempt - 1), TimeUnit.MILLISECONDS);
+  }
+
+  private Spf4jWebTarget peerTarget(final InetAddress addr, final String filePath) {
+    return peerRootTarget(addr).path("files").path(filePath);
+  }
+
+  private Spf4jWebTarget peerRootTarget(final InetAddress addr) {
+    return peerTargets.computeIfAbsent(addr, (a) -> client.getClient().target(peerUri(a)));
+  }
+
+  private URI peerUri(final InetAddress addr) {
+    try {
+      return new URI(protocol, null, addr.getHostAddress(), port, null, null, null);
+    } catch (URISyntaxException ex) {
+      throw new IllegalArgumentException("Invalid peer address " + addr, ex);
     }
+  }
+
+  @FunctionalInterface
+  private interface PeerContentHandler<T> {
 
-    return bos;
+    /**
+     * Consume a successful peer response.
+     */
+    T handle(Response response) throws IOException, TimeoutException;
   }
 
 }
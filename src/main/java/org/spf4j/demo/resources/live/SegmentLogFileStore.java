@@ -0,0 +1,793 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.CloseableIterable;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * A file store that appends the files of a stream (see {@link HlsNames#streamOf(String)}) to large, pre-allocated,
+ * memory mapped log files, instead of creating a file per segment. Files are served from an in memory offset index,
+ * and retention deletes whole logs, once their newest file expired, so the file system only sees
+ * a few large files per stream being created and deleted.
+ *
+ * A log file is a sequence of records: a header (magic, state, data length, CRC32C, last modified, sequence, path)
+ * followed by the data. The state is set to committed after the data and header are written, the index is rebuilt
+ * at startup from the committed records, the record with the highest sequence wins for a path.
+ * Every log is appended to by at most one writer at a time, concurrent writers of a stream get their own logs.
+ *
+ * Records are written to the page cache through the mapping: committed records survive a crash of the process,
+ * but without forceOnCommit an OS crash or power loss can lose the records written since the kernel last wrote
+ * the pages back, or leave a committed header with stale data. With forceOnCommit the record is forced to disk
+ * before and after it is marked committed, at the cost of two synchronous disk writes per stored file.
+ *
+ * Java has no supported way to unmap a buffer: the mapping of a deleted log is released only once the log,
+ * and the buffers readers sliced from it, are garbage collected. Until then the deleted log keeps using
+ * address space and disk space, reported as video_segment_log_retired_mapped_bytes.
+ *
+ * @author Zoltan Farkas
+ */
+public final class SegmentLogFileStore implements Closeable, FileStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentLogFileStore.class);
+
+  private static final int SAMPLE_MILLIS = 60000;
+
+  private static final String LOG_SUFFIX = ".seglog";
+
+  private static final int MAGIC = 0x53454731;
+
+  private static final int WRITING = 0;
+
+  private static final int COMMITTED = 1;
+
+  private static final int STATE_OFFSET = 4;
+
+  private static final int LENGTH_OFFSET = 8;
+
+  private static final int CRC_OFFSET = 12;
+
+  private static final int MODIFIED_OFFSET = 16;
+
+  private static final int SEQUENCE_OFFSET = 24;
+
+  private static final int PATH_OFFSET = 32;
+
+  /** logs with less free space than this are not appended to anymore. */
+  private static final int MIN_APPEND_BYTES = 4096;
+
+  /** the largest log, logs are mapped as a single buffer. */
+  private static final int MAX_LOG_BYTES = Integer.MAX_VALUE / 2;
+
+  /** tracks when the mappings of the deleted logs are garbage collected. */
+  private static final Cleaner MAPPINGS = Cleaner.create();
+
+  private final Path store;
+
+  private final int logBytes;
+
+  private final long retentionMillis;
+
+  private final boolean forceOnCommit;
+
+  /** file path -> location of the latest version, sorted so that folder listings are range reads. */
+  private final ConcurrentSkipListMap<String, Location> index;
+
+  /** stream -> logs. */
+  private final ConcurrentMap<String, StreamLogs> streams;
+
+  /** the streams with a stored playlist, the streams of segments are resolved against them. */
+  private final HlsStreams knownStreams;
+
+  private final AtomicLong logSequence;
+
+  private final AtomicLong recordSequence;
+
+  private final FileStoreListeners listeners;
+
+  private final ScheduledFuture<?> scheduleWithFixedDelay;
+
+  private final MeasurementRecorder cleanupDuration;
+
+  private final MeasurementRecorder logsDeleted;
+
+  private final MeasurementRecorder relocations;
+
+  /** the bytes of the deleted logs that are still mapped. */
+  private final AtomicLong retiredMappedBytes;
+
+  private final MeasurementRecorder retiredMapped;
+
+  public SegmentLogFileStore(final Path store, final long logBytes, final long retentionTime, final TimeUnit tu)
+          throws IOException {
+    this(store, logBytes, retentionTime, tu, false);
+  }
+
+  /**
+   * @param store the folder of the log files.
+   * @param logBytes the size logs are pre-allocated with, logs are larger only for files that do not fit.
+   * Capped to MAX_LOG_BYTES.
+   * @param forceOnCommit force every record to disk when committed.
+   */
+  public SegmentLogFileStore(final Path store, final long logBytes, final long retentionTime, final TimeUnit tu,
+          final boolean forceOnCommit) throws IOException {
+    if (logBytes <= 0) {
+      throw new IllegalArgumentException("Invalid log size " + logBytes);
+    }
+    if (logBytes > MAX_LOG_BYTES) {
+      LOG.warn("Log size {} capped to {}", logBytes, MAX_LOG_BYTES);
+    }
+    this.store = store.normalize();
+    this.logBytes = (int) Math.min(logBytes, MAX_LOG_BYTES);
+    this.retentionMillis = tu.toMillis(retentionTime);
+    this.forceOnCommit = forceOnCommit;
+    this.index = new ConcurrentSkipListMap<>();
+    this.streams = new ConcurrentHashMap<>();
+    this.knownStreams = new HlsStreams();
+    this.logSequence = new AtomicLong();
+    this.recordSequence = new AtomicLong();
+    this.listeners = new FileStoreListeners();
+    this.cleanupDuration = RecorderFactory.createScalableMinMaxAvgRecorder("video_segment_log_retention_duration",
+            "ms", SAMPLE_MILLIS);
+    this.logsDeleted = RecorderFactory.createScalableCountingRecorder("video_segment_logs_deleted", "count",
+            SAMPLE_MILLIS);
+    this.relocations = RecorderFactory.createScalableCountingRecorder("video_segment_log_relocations", "count",
+            SAMPLE_MILLIS);
+    this.retiredMappedBytes = new AtomicLong();
+    this.retiredMapped = RecorderFactory.createScalableMinMaxAvgRecorder("video_segment_log_retired_mapped_bytes",
+            "bytes", SAMPLE_MILLIS);
+    Files.createDirectories(this.store);
+    scan();
+    scheduleWithFixedDelay = DefaultScheduler.instance().scheduleWithFixedDelay(() -> {
+      try {
+        cleanup();
+      } catch (RuntimeException ex) {
+        LOG.error("Failured to cleanup logs", ex);
+      }
+    }, 1, 1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Maps the existing logs and rebuilds the index from their committed records, expired logs are deleted.
+   */
+  private void scan() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (Stream<Path> walk = Files.walk(store)) {
+      walk.filter(p -> p.getFileName().toString().endsWith(LOG_SUFFIX) && Files.isRegularFile(p))
+              .forEach(files::add);
+    }
+    long cutoff = System.currentTimeMillis() - retentionMillis;
+    for (Path file : files) {
+      String name = toFilePath(file);
+      name = name.substring(0, name.length() - LOG_SUFFIX.length());
+      int idx = name.lastIndexOf('.');
+      long seq;
+      try {
+        seq = Long.parseLong(name.substring(idx + 1));
+      } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+        LOG.warn("Ignoring unexpected file {}", file);
+        continue;
+      }
+      logSequence.accumulateAndGet(seq, Math::max);
+      String stream = name.substring(0, idx);
+      Log log;
+      try {
+        log = recover(file, stream);
+      } catch (IOException | RuntimeException ex) {
+        LOG.warn("Unable to recover {}, deleting it", file, ex);
+        Files.deleteIfExists(file);
+        continue;
+      }
+      if (log.newestMillis < cutoff) {
+        dropLog(log);
+        continue;
+      }
+      streams.computeIfAbsent(stream, StreamLogs::new).add(log);
+    }
+  }
+
+  private Log recover(final Path file, final String stream) throws IOException {
+    Log log = new Log(file, stream, map(file, Files.size(file)));
+    ByteBuffer buffer = log.buffer;
+    int pos = 0;
+    while (pos + PATH_OFFSET + 2 <= buffer.capacity() && buffer.getInt(pos) == MAGIC
+            && buffer.getInt(pos + STATE_OFFSET) == COMMITTED) {
+      int pathLength = buffer.getShort(pos + PATH_OFFSET);
+      int dataStart = pos + PATH_OFFSET + 2 + pathLength;
+      int length = buffer.getInt(pos + LENGTH_OFFSET);
+      if (pathLength <= 0 || length < 0 || (long) dataStart + length > buffer.capacity()) {
+        break;
+      }
+      byte[] pathBytes = new byte[pathLength];
+      ByteBuffer pathBuffer = buffer.duplicate();
+      pathBuffer.position(pos + PATH_OFFSET + 2);
+      pathBuffer.get(pathBytes);
+      String filePath = new String(pathBytes, StandardCharsets.UTF_8);
+      long sequence = buffer.getLong(pos + SEQUENCE_OFFSET);
+      recordSequence.accumulateAndGet(sequence, Math::max);
+      Location location = new Location(log, dataStart, length, buffer.getLong(pos + MODIFIED_OFFSET),
+              buffer.getInt(pos + CRC_OFFSET) & 0xFFFFFFFFL, sequence);
+      log.committed(filePath, location.lastModifiedMillis);
+      index.merge(filePath, location, (a, b) -> a.sequence > b.sequence ? a : b);
+      pos = dataStart + length;
+    }
+    // an incomplete record at the end (crash while writing) is overwritten by the next append.
+    log.position = pos;
+    return log;
+  }
+
+  private static MappedByteBuffer map(final Path file, final long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      if (raf.length() < size) {
+        raf.setLength(size);
+      }
+      // the mapping stays valid after the channel is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private Log newLog(final String stream, final int capacity) throws IOException {
+    long seq = logSequence.incrementAndGet();
+    Path file = store.resolve(stream + '.' + seq + LOG_SUFFIX);
+    Files.createDirectories(file.getParent());
+    MappedByteBuffer buffer;
+    try {
+      buffer = map(file, capacity);
+    } catch (FileNotFoundException ex) {
+      // folder removed by a concurrent cleanup.
+      Files.createDirectories(file.getParent());
+      buffer = map(file, capacity);
+    }
+    return new Log(file, stream, buffer);
+  }
+
+  /**
+   * Deletes the logs whose newest file expired, and drops their files from the index.
+   * The logs of a stream are removed once empty, and retired, so that a concurrent writer does not add a log
+   * to them, see {@link #storeFile(String, long)}.
+   */
+  void cleanup() {
+    long startNanos = TimeSource.nanoTime();
+    long cutoff = System.currentTimeMillis() - retentionMillis;
+    int nrDeleted = 0;
+    for (StreamLogs logs : streams.values()) {
+      for (Log log : logs.pollExpired(cutoff)) {
+        dropLog(log);
+        nrDeleted++;
+      }
+      streams.computeIfPresent(logs.stream, (k, v) -> v.retireIfEmpty() ? null : v);
+    }
+    logsDeleted.record(nrDeleted);
+    retiredMapped.record(retiredMappedBytes.get());
+    cleanupDuration.record(TimeUnit.NANOSECONDS.toMillis(TimeSource.nanoTime() - startNanos));
+  }
+
+  private void dropLog(final Log log) {
+    for (String filePath : log.getFilePaths()) {
+      index.computeIfPresent(filePath, (k, location) -> location.log == log ? null : location);
+    }
+    // readers still holding a slice of the mapping keep reading it until they are done,
+    // the mapping is released when the buffer and its slices are garbage collected.
+    long mappedBytes = log.buffer.capacity();
+    AtomicLong retired = retiredMappedBytes;
+    retired.addAndGet(mappedBytes);
+    MAPPINGS.register(log.buffer, () -> retired.addAndGet(-mappedBytes));
+    try {
+      Files.deleteIfExists(log.file);
+      Path parent = log.file.getParent();
+      if (!parent.equals(store)) {
+        Files.deleteIfExists(parent);
+      }
+    } catch (DirectoryNotEmptyException ex) {
+      // other streams in the folder.
+    } catch (IOException ex) {
+      LOG.warn("Unable to delete {}", log.file, ex);
+    }
+  }
+
+  private String toFilePath(final Path file) {
+    return store.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+  }
+
+  /**
+   * @return the normalized index key of filePath.
+   */
+  private String toKey(final String filePath) {
+    Path resolved = store.resolve(filePath).normalize();
+    if (!resolved.startsWith(store) || resolved.equals(store)) {
+      throw new IllegalArgumentException("Invalid Path: " + filePath);
+    }
+    return toFilePath(resolved);
+  }
+
+  /**
+   * Lists a folder from the in memory index, the disk is not accessed.
+   */
+  @Override
+  @Nullable
+  public CloseableIterable<String> list(final String path) {
+    String prefix = path.isEmpty() ? "" : toKey(path) + '/';
+    NavigableSet<String> names = new TreeSet<>();
+    String key = index.ceilingKey(prefix);
+    while (key != null && key.startsWith(prefix)) {
+      int idx = key.indexOf('/', prefix.length());
+      if (idx < 0) {
+        names.add(key.substring(prefix.length()));
+        key = index.higherKey(key);
+      } else {
+        names.add(key.substring(prefix.length(), idx));
+        // skip the rest of the folder: '0' is the character after '/'.
+        key = index.ceilingKey(key.substring(0, idx) + '0');
+      }
+    }
+    if (names.isEmpty() && !path.isEmpty()) {
+      return null;
+    }
+    return CloseableIterable.from(new ArrayList<>(names));
+  }
+
+  @Override
+  @Nullable
+  public InputStream readFile(final String filePath) {
+    SeekableByteChannel channel = readChannel(filePath);
+    return channel == null ? null : Channels.newInputStream(channel);
+  }
+
+  /**
+   * @return a channel over the mapped file content, the content is not copied.
+   */
+  @Override
+  @Nullable
+  public SeekableByteChannel readChannel(final String filePath) {
+    Location location = index.get(toKey(filePath));
+    return location == null ? null : location.channel();
+  }
+
+  /**
+   * The content and the info come from the same index location.
+   */
+  @Override
+  @Nullable
+  public OpenFile open(final String filePath) {
+    Location location = index.get(toKey(filePath));
+    return location == null ? null : new OpenFile(location.channel(), location.info());
+  }
+
+  @Override
+  @Nullable
+  public FileInfo getFileInfo(final String filePath) {
+    Location location = index.get(toKey(filePath));
+    return location == null ? null : location.info();
+  }
+
+  @Override
+  public OutputStream storeFile(final String filePath) throws IOException {
+    return storeFile(filePath, System.currentTimeMillis());
+  }
+
+  @Override
+  public OutputStream storeFile(final String filePath, final long lastModifiedMillis) throws IOException {
+    String key = toKey(filePath);
+    String stream = knownStreams.streamOf(key);
+    byte[] pathBytes = key.getBytes(StandardCharsets.UTF_8);
+    int headerBytes = PATH_OFFSET + 2 + pathBytes.length;
+    StreamLogs logs = streams.computeIfAbsent(stream, StreamLogs::new);
+    Log log = logs.acquire(headerBytes + MIN_APPEND_BYTES);
+    if (log == null) {
+      log = newLog(stream, Math.max(logBytes, headerBytes + MIN_APPEND_BYTES));
+      // the logs can be retired by a concurrent cleanup, in which case the new log goes to their replacement.
+      while (!logs.addAcquired(log)) {
+        logs = streams.computeIfAbsent(stream, StreamLogs::new);
+      }
+    }
+    return new LogOutputStream(filePath, key, pathBytes, logs, log, lastModifiedMillis);
+  }
+
+  @Override
+  public long getRetentionMillis() {
+    return retentionMillis;
+  }
+
+  @Override
+  public void addListener(final FileStoreListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(final FileStoreListener listener) {
+    listeners.remove(listener);
+  }
+
+  @Override
+  @PreDestroy
+  public void close() {
+    scheduleWithFixedDelay.cancel(true);
+  }
+
+  @Override
+  public String toString() {
+    return "SegmentLogFileStore{" + "store=" + store + ", logBytes=" + logBytes
+            + ", retentionMillis=" + retentionMillis + '}';
+  }
+
+  /**
+   * A log file, appended to only by the writer that acquired it.
+   */
+  private static final class Log {
+
+    private final Path file;
+
+    private final String stream;
+
+    private final MappedByteBuffer buffer;
+
+    /** the append position, written by the writer that acquired the log. */
+    private volatile int position;
+
+    /** the paths of the committed records, guarded by this. */
+    private final List<String> filePaths;
+
+    private volatile long newestMillis;
+
+    Log(final Path file, final String stream, final MappedByteBuffer buffer) {
+      this.file = file;
+      this.stream = stream;
+      this.buffer = buffer;
+      this.position = 0;
+      this.filePaths = new ArrayList<>();
+      this.newestMillis = 0;
+    }
+
+    synchronized void committed(final String filePath, final long lastModifiedMillis) {
+      filePaths.add(filePath);
+      if (lastModifiedMillis > newestMillis) {
+        newestMillis = lastModifiedMillis;
+      }
+    }
+
+    synchronized List<String> getFilePaths() {
+      return new ArrayList<>(filePaths);
+    }
+
+    int remaining() {
+      return buffer.capacity() - position;
+    }
+
+    @Override
+    public String toString() {
+      return "Log{" + "file=" + file + ", position=" + position + '}';
+    }
+  }
+
+  /**
+   * The logs of a stream, the ones not acquired by a writer and with space left can be appended to.
+   */
+  private static final class StreamLogs {
+
+    private final String stream;
+
+    private final List<Log> logs;
+
+    private final Deque<Log> appendable;
+
+    /** removed from the streams, no logs can be added anymore. */
+    private boolean retired;
+
+    StreamLogs(final String stream) {
+      this.stream = stream;
+      this.logs = new ArrayList<>(2);
+      this.appendable = new ArrayDeque<>(2);
+      this.retired = false;
+    }
+
+    synchronized void add(final Log log) {
+      logs.add(log);
+      if (log.remaining() >= MIN_APPEND_BYTES) {
+        appendable.addLast(log);
+      }
+    }
+
+    /**
+     * @return false if retired, the log was not added.
+     */
+    synchronized boolean addAcquired(final Log log) {
+      if (retired) {
+        return false;
+      }
+      logs.add(log);
+      return true;
+    }
+
+    /**
+     * @return a log with at least minBytes free, exclusive to the caller until released.
+     */
+    @Nullable
+    synchronized Log acquire(final int minBytes) {
+      Iterator<Log> it = appendable.iterator();
+      while (it.hasNext()) {
+        Log log = it.next();
+        if (log.remaining() >= minBytes) {
+          it.remove();
+          return log;
+        }
+      }
+      return null;
+    }
+
+    synchronized void release(final Log log) {
+      if (log.remaining() >= MIN_APPEND_BYTES && logs.contains(log)) {
+        appendable.addFirst(log);
+      }
+    }
+
+    /**
+     * Removes the logs that are not being written to, and whose newest file is older than cutoffMillis.
+     */
+    synchronized List<Log> pollExpired(final long cutoffMillis) {
+      List<Log> result = new ArrayList<>(1);
+      Iterator<Log> it = logs.iterator();
+      while (it.hasNext()) {
+        Log log = it.next();
+        boolean idle = log.remaining() < MIN_APPEND_BYTES || appendable.contains(log);
+        if (idle && log.newestMillis < cutoffMillis) {
+          it.remove();
+          appendable.remove(log);
+          result.add(log);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return true if there are no logs, in which case no log can be added anymore.
+     */
+    synchronized boolean retireIfEmpty() {
+      if (logs.isEmpty()) {
+        retired = true;
+      }
+      return retired;
+    }
+
+  }
+
+  private static final class Location {
+
+    private final Log log;
+
+    private final int offset;
+
+    private final int length;
+
+    private final long lastModifiedMillis;
+
+    private final long crc32c;
+
+    private final long sequence;
+
+    Location(final Log log, final int offset, final int length, final long lastModifiedMillis,
+            final long crc32c, final long sequence) {
+      this.log = log;
+      this.offset = offset;
+      this.length = length;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.crc32c = crc32c;
+      this.sequence = sequence;
+    }
+
+    /**
+     * @return a channel over the mapped content, the content is not copied.
+     */
+    SeekableByteChannel channel() {
+      ByteBuffer content = log.buffer.duplicate();
+      content.position(offset);
+      content.limit(offset + length);
+      return new ByteBufferChannel(content.slice());
+    }
+
+    FileInfo info() {
+      return new FileInfo(length, lastModifiedMillis, crc32c);
+    }
+  }
+
+  /**
+   * Appends a record to an acquired log. A file that outgrows the log is moved to a new, larger log.
+   * The record is written as WRITING, and committed on close; aborted records are rewound.
+   */
+  private final class LogOutputStream extends OutputStream implements Abortable {
+
+    private final String filePath;
+
+    private final String key;
+
+    private final byte[] pathBytes;
+
+    private final StreamLogs logs;
+
+    private final long lastModifiedMillis;
+
+    private Log log;
+
+    private int recordStart;
+
+    private ByteBuffer out;
+
+    private final CRC32C crc;
+
+    private boolean closed;
+
+    LogOutputStream(final String filePath, final String key, final byte[] pathBytes, final StreamLogs logs,
+            final Log log, final long lastModifiedMillis) {
+      this.filePath = filePath;
+      this.key = key;
+      this.pathBytes = pathBytes;
+      this.logs = logs;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.crc = new CRC32C();
+      this.closed = false;
+      startRecord(log);
+    }
+
+    private void startRecord(final Log plog) {
+      this.log = plog;
+      this.recordStart = plog.position;
+      ByteBuffer buffer = plog.buffer;
+      buffer.putInt(recordStart + STATE_OFFSET, WRITING);
+      buffer.putShort(recordStart + PATH_OFFSET, (short) pathBytes.length);
+      out = buffer.duplicate();
+      out.position(recordStart + PATH_OFFSET + 2);
+      out.put(pathBytes);
+      buffer.putInt(recordStart, MAGIC);
+    }
+
+    private int dataStart() {
+      return recordStart + PATH_OFFSET + 2 + pathBytes.length;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      ensureCapacity(1);
+      out.put((byte) b);
+      crc.update(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      ensureCapacity(len);
+      out.put(b, off, len);
+      crc.update(b, off, len);
+    }
+
+    private void ensureCapacity(final int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed for " + filePath);
+      }
+      if (out.remaining() >= len) {
+        return;
+      }
+      int dataStart = dataStart();
+      int written = out.position() - dataStart;
+      long needed = (long) PATH_OFFSET + 2 + pathBytes.length + written + len;
+      if (needed > Integer.MAX_VALUE / 2) {
+        throw new IOException("File too large " + filePath + ", " + needed + " bytes");
+      }
+      Log newLog = newLog(log.stream, (int) Math.max(logBytes, needed * 2));
+      // logs with an acquired log are not retired.
+      logs.addAcquired(newLog);
+      ByteBuffer data = log.buffer.duplicate();
+      data.position(dataStart);
+      data.limit(dataStart + written);
+      Log oldLog = log;
+      rewind();
+      startRecord(newLog);
+      out.put(data);
+      relocations.record(1);
+      logs.release(oldLog);
+    }
+
+    /**
+     * Discards the current record, the log position is still at the record start.
+     */
+    private void rewind() {
+      log.buffer.putInt(recordStart, 0);
+    }
+
+    @Override
+    public void abort(final Exception reason) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      rewind();
+      logs.release(log);
+      LOG.debug("Aborted writing {}", filePath, reason);
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      int dataStart = dataStart();
+      int length = out.position() - dataStart;
+      long crc32c = crc.getValue();
+      long sequence = recordSequence.incrementAndGet();
+      ByteBuffer buffer = log.buffer;
+      buffer.putInt(recordStart + LENGTH_OFFSET, length);
+      buffer.putInt(recordStart + CRC_OFFSET, (int) crc32c);
+      buffer.putLong(recordStart + MODIFIED_OFFSET, lastModifiedMillis);
+      buffer.putLong(recordStart + SEQUENCE_OFFSET, sequence);
+      int end = dataStart + length;
+      if (end + 4 <= buffer.capacity()) {
+        buffer.putInt(end, 0); // no stale record after this one.
+      }
+      if (forceOnCommit) {
+        // the record is on disk before it is committed.
+        log.buffer.force();
+      }
+      buffer.putInt(recordStart + STATE_OFFSET, COMMITTED);
+      if (forceOnCommit) {
+        log.buffer.force();
+      }
+      log.position = end;
+      log.committed(key, lastModifiedMillis);
+      index.put(key, new Location(log, dataStart, length, lastModifiedMillis, crc32c, sequence));
+      logs.release(log);
+      listeners.fileStored(filePath);
+    }
+  }
+
+  /** for tests. */
+  int getNrLogs() {
+    int result = 0;
+    for (Map.Entry<String, StreamLogs> entry : streams.entrySet()) {
+      synchronized (entry.getValue()) {
+        result += entry.getValue().logs.size();
+      }
+    }
+    return result;
+  }
+
+  /** for tests. */
+  long getRetiredMappedBytes() {
+    return retiredMappedBytes.get();
+  }
+
+}
@@ -0,0 +1,152 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * Warms the segments a viewer is about to request: live viewers of a playlist request its last segments next.
+ * The last segments of a playlist are prefetched (see {@link FileStore#prefetch(String)}) after the playlist is read,
+ * so that a node serving a segment for the first time does not wait for the disk.
+ *
+ * Only the tail of the playlist (TAIL_BYTES) is read to find its last segments, a playlist is looked at
+ * at most once every PLAYLIST_RECENT_NANOS, and a segment is prefetched at most once every RECENT_NANOS.
+ * Stored files are not prefetched: a segment stored on this node, published or replicated, was just written
+ * and is still in the page cache.
+ *
+ * @author Zoltan Farkas
+ */
+final class SegmentPrefetcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentPrefetcher.class);
+
+  private static final long RECENT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private static final long PLAYLIST_RECENT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final int MAX_RECENT = 4096;
+
+  /** the segment lines are short, the tail of a playlist has more segments than are prefetched. */
+  private static final int TAIL_BYTES = 4096;
+
+  private static final MeasurementRecorder PREFETCHED
+          = RecorderFactory.createScalableCountingRecorder("video_prefetched_segments", "count", 60000);
+
+  private final FileStore fileStore;
+
+  private final int nrSegments;
+
+  /** playlist or segment path -> nanos of the last prefetch. */
+  private final ConcurrentMap<String, Long> recent;
+
+  /**
+   * @param nrSegments the number of segments at the end of a playlist to prefetch.
+   */
+  SegmentPrefetcher(final FileStore fileStore, final int nrSegments) {
+    this.fileStore = fileStore;
+    this.nrSegments = nrSegments;
+    this.recent = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Prefetch the last segments of a playlist that was just read.
+   */
+  void playlistRead(final String playlistPath) {
+    if (markRecent(playlistPath, PLAYLIST_RECENT_NANOS)) {
+      DefaultExecutor.INSTANCE.execute(() -> prefetchLast(playlistPath));
+    }
+  }
+
+  private void prefetchLast(final String playlistPath) {
+    try {
+      List<String> uris = lastSegments(playlistPath);
+      int dirEnd = playlistPath.lastIndexOf('/') + 1;
+      for (String uri : uris) {
+        // only segments next to the playlist are local files.
+        if (uri.indexOf('/') < 0 && uri.indexOf(':') < 0) {
+          prefetch(playlistPath.substring(0, dirEnd) + uri);
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      LOG.debug("Cannot prefetch the segments of {}", playlistPath, ex);
+    }
+  }
+
+  private List<String> lastSegments(final String playlistPath) throws IOException {
+    SeekableByteChannel channel = fileStore.readChannel(playlistPath);
+    if (channel == null) {
+      return new ArrayList<>(0);
+    }
+    try (SeekableByteChannel ch = channel) {
+      long from = Math.max(0, ch.size() - TAIL_BYTES);
+      ByteBuffer tail = ByteBuffer.allocate((int) (ch.size() - from));
+      ch.position(from);
+      while (tail.hasRemaining() && ch.read(tail) >= 0) {
+        // read the whole tail.
+      }
+      String content = new String(tail.array(), 0, tail.position(), StandardCharsets.UTF_8);
+      // the first line of a tail is likely partial.
+      return lastUris(from == 0 ? content : content.substring(content.indexOf('\n') + 1), nrSegments);
+    }
+  }
+
+  /**
+   * @return the uris of the last n segments of a playlist (or of a playlist tail starting with a full line).
+   */
+  static List<String> lastUris(final String playlist, final int n) {
+    Deque<String> uris = new ArrayDeque<>(n + 1);
+    for (String line : playlist.split("\n")) {
+      String uri = line.trim();
+      if (!uri.isEmpty() && uri.charAt(0) != '#') {
+        uris.addLast(uri);
+        if (uris.size() > n) {
+          uris.removeFirst();
+        }
+      }
+    }
+    return new ArrayList<>(uris);
+  }
+
+  private void prefetch(final String segmentPath) throws IOException {
+    if (markRecent(segmentPath, RECENT_NANOS)) {
+      fileStore.prefetch(segmentPath);
+      PREFETCHED.record(1);
+    }
+  }
+
+  /**
+   * @return false if the path was marked in the last recentNanos.
+   */
+  private boolean markRecent(final String path, final long recentNanos) {
+    long now = TimeSource.nanoTime();
+    Long last = recent.get(path);
+    if (last != null && now - last < recentNanos) {
+      return false;
+    }
+    recent.put(path, now);
+    if (recent.size() > MAX_RECENT) {
+      recent.values().removeIf((nanos) -> now - nanos >= RECENT_NANOS);
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "SegmentPrefetcher{" + "nrSegments=" + nrSegments + ", recent=" + recent.size() + '}';
+  }
+
+}
@@ -0,0 +1,107 @@
+package org.spf4j.demo.resources.live;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseBroadcaster;
+import javax.ws.rs.sse.SseEventSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.concurrent.DefaultExecutor;
+
+/**
+ * Server sent events for every file stored in a stream: a "playlist" or "segment" event with the file name as data.
+ *
+ * Segments are attributed to the longest subscribed stream their name starts with, so that the segments of
+ * a stream with a name that ends in a digit ("cam1", "cam10.ts") reach its subscribers.
+ * Subscribers of a stream share a broadcaster, idle subscribers hold no thread. Broadcasters are created
+ * on the first subscription of a stream, and closed with the last one. Sinks are registered while holding the
+ * stream entry, so that a sink is never registered with a broadcaster that is being closed.
+ *
+ * @author Zoltan Farkas
+ */
+final class StreamEvents implements FileStoreListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StreamEvents.class);
+
+  private final ConcurrentMap<String, Subscribers> streams;
+
+  private volatile Sse sse;
+
+  StreamEvents(final FileStore fileStore) {
+    this.streams = new ConcurrentHashMap<>();
+    fileStore.addListener(this);
+  }
+
+  /**
+   * @param stream the stream, "group/name".
+   */
+  void subscribe(final String stream, final SseEventSink sink, final Sse psse) {
+    this.sse = psse;
+    streams.compute(stream, (k, s) -> {
+      Subscribers result = s;
+      if (result == null) {
+        SseBroadcaster broadcaster = psse.newBroadcaster();
+        Subscribers subscribers = new Subscribers(broadcaster);
+        broadcaster.onClose((closed) -> unsubscribe(stream, subscribers));
+        broadcaster.onError((failed, ex) -> LOG.debug("Failed to send event to {} subscriber", stream, ex));
+        result = subscribers;
+      }
+      result.broadcaster.register(sink);
+      result.count++;
+      return result;
+    });
+  }
+
+  /**
+   * Called when a sink of subscribers is closed, the broadcaster is closed with its last sink.
+   * Sinks of a broadcaster that was already replaced do not affect the current subscribers of the stream.
+   */
+  private void unsubscribe(final String stream, final Subscribers subscribers) {
+    boolean[] last = new boolean[1];
+    streams.computeIfPresent(stream, (k, s) -> {
+      if (s != subscribers) {
+        return s;
+      }
+      if (--s.count <= 0) {
+        last[0] = true;
+        return null;
+      }
+      return s;
+    });
+    if (last[0]) {
+      // closed outside of the map update, closing notifies the onClose listener of the remaining sinks.
+      subscribers.broadcaster.close();
+    }
+  }
+
+  @Override
+  public void fileStored(final String filePath) {
+    Subscribers subscribers = streams.get(HlsNames.streamOf(filePath, streams::containsKey));
+    if (subscribers == null) {
+      return;
+    }
+    OutboundSseEvent event = sse.newEventBuilder()
+            .name(HlsNames.isPlaylist(filePath) ? "playlist" : "segment")
+            .mediaType(MediaType.TEXT_PLAIN_TYPE)
+            .data(String.class, filePath.substring(filePath.lastIndexOf('/') + 1))
+            .build();
+    DefaultExecutor.INSTANCE.execute(() -> subscribers.broadcaster.broadcast(event));
+  }
+
+  private static final class Subscribers {
+
+    private final SseBroadcaster broadcaster;
+
+    /** guarded by the streams map compute. */
+    private int count;
+
+    Subscribers(final SseBroadcaster broadcaster) {
+      this.broadcaster = broadcaster;
+      this.count = 0;
+    }
+  }
+
+}
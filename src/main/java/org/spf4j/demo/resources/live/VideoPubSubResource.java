@@ -4,24 +4,49 @@ import com.google.common.collect.Iterables;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
 import javax.annotation.security.PermitAll;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.spf4j.base.CloseableIterable;
-import org.spf4j.io.Streams;
+import org.spf4j.base.ExecutionContexts;
 import org.spf4j.jaxrs.Timeout;
 
 /**
@@ -32,11 +57,52 @@ import org.spf4j.jaxrs.Timeout;
 @PermitAll
 public class VideoPubSubResource {
 
+  private static final Logger LOG = LoggerFactory.getLogger(VideoPubSubResource.class);
+
+  /**
+   * Grizzly servlet request attributes: setting SEND_FILE (a java.io.File) sends the region of the file given
+   * by the offset and length attributes with sendfile, after the response headers, when SEND_FILE_ENABLED is true.
+   */
+  private static final String SEND_FILE_ENABLED = "org.glassfish.grizzly.http.SEND_FILE_ENABLED";
+
+  private static final String SEND_FILE = "org.glassfish.grizzly.http.SEND_FILE";
+
+  private static final String SEND_FILE_START_OFFSET = "org.glassfish.grizzly.http.SEND_FILE_START_OFFSET";
+
+  private static final String SEND_FILE_WRITE_LEN = "org.glassfish.grizzly.http.SEND_FILE_WRITE_LEN";
+
   private final FileStore fileStore;
 
+  private final PlaylistWaiters playlistWaiters;
+
+  private final StreamEvents streamEvents;
+
+  private final PlaylistWindows playlistWindows;
+
+  private final int defaultWindow;
+
+  @Nullable
+  private final SegmentPrefetcher prefetcher;
+
+  /**
+   * @param defaultWindow the number of segments of the playlists served when no window is requested,
+   * 0 to serve the playlists as uploaded by the publisher.
+   * @param maxWindow the maximum number of segments of a window (DVR) playlist.
+   * @param prefetchSegments the number of segments at the end of a viewed playlist to prefetch, 0 (the default)
+   * to disable. Worth enabling when segments are not served from the page cache, like the segments of
+   * a playlist read for the first time on this node.
+   */
   @Inject
-  public VideoPubSubResource(@Named("replicated") final FileStore fileStore) {
+  public VideoPubSubResource(@Named("replicated") final FileStore fileStore,
+          @ConfigProperty(name = "video.playlist.window", defaultValue = "0") final int defaultWindow,
+          @ConfigProperty(name = "video.playlist.maxWindow", defaultValue = "1000") final int maxWindow,
+          @ConfigProperty(name = "video.prefetch.segments", defaultValue = "0") final int prefetchSegments) {
     this.fileStore = fileStore;
+    this.playlistWaiters = new PlaylistWaiters(fileStore);
+    this.streamEvents = new StreamEvents(fileStore);
+    this.playlistWindows = new PlaylistWindows(fileStore, maxWindow);
+    this.defaultWindow = defaultWindow;
+    this.prefetcher = prefetchSegments > 0 ? new SegmentPrefetcher(fileStore, prefetchSegments) : null;
   }
 
   @GET
@@ -57,6 +123,9 @@ public class VideoPubSubResource {
 
   /**
    * to publish: ffmpeg -i OperationWetBoss.m4v -c:v h264 -hls_flags independent_segments -hls_list_size 10000  -hls_time 10 http://localhost:8080/video/test/testStream.m3u8
+   *
+   * The upload body is read without blocking (see {@link NonBlockingIngest}), a publisher does not hold a
+   * worker thread while its chunked upload is in progress.
    */
   @Path("{group}/{stream}")
   @PUT
@@ -65,10 +134,9 @@ public class VideoPubSubResource {
   public void put(
           @PathParam("group") final String group,
           @PathParam("stream") final String stream,
-          InputStream is) throws IOException, TimeoutException {
-    try (OutputStream os = fileStore.storeFile(group + '/' + stream)) {
-      Streams.copy(is, os);
-    }
+          @Context final HttpServletRequest request,
+          @Suspended final AsyncResponse ar) throws IOException, TimeoutException {
+    ingest(group + '/' + stream, request, ar);
   }
 
   @Path("{group}/{stream}")
@@ -78,49 +146,332 @@ public class VideoPubSubResource {
   public void post(
           @PathParam("group") final String group,
           @PathParam("stream") final String stream,
-          InputStream is) throws IOException, TimeoutException {
-    try (OutputStream os = fileStore.storeFile(group + '/' + stream)) {
-      Streams.copy(is, os);
+          @Context final HttpServletRequest request,
+          @Suspended final AsyncResponse ar) throws IOException, TimeoutException {
+    ingest(group + '/' + stream, request, ar);
+  }
+
+  private void ingest(final String filePath, final HttpServletRequest request, final AsyncResponse ar)
+          throws IOException, TimeoutException {
+    OutputStream os = fileStore.storeFile(filePath);
+    NonBlockingIngest ingest;
+    try {
+      ingest = NonBlockingIngest.start(request.getInputStream(), os);
+    } catch (IOException | RuntimeException ex) {
+      Abortable.abort(os, ex);
+      throw ex;
     }
+    ar.setTimeoutHandler((a) -> ingest.abort(new TimeoutException("Upload of " + filePath + " timed out")));
+    ar.setTimeout(ExecutionContexts.getTimeToDeadlineInt(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    ingest.getResult().whenComplete((nrBytes, ex) -> {
+      if (ex == null) {
+        ar.resume(Response.noContent().build());
+      } else if (ex instanceof WriteQuorumException) {
+        // published on this node, replication to the peers continues in the background.
+        LOG.warn("Upload of {} is not confirmed by the write quorum yet", filePath, ex);
+        ar.resume(Response.accepted().build());
+      } else {
+        ar.resume(ex);
+      }
+    });
   }
 
+  /**
+   * Subscribe to the changes of a stream: a "playlist" or "segment" event is sent, with the file name as data,
+   * every time a file of the stream is stored on this node (published here or replicated from a peer).
+   * @param stream the stream name, the playlist name without the .m3u8 extension.
+   */
+  @Path("{group}/{stream}/events")
+  @GET
+  @Produces(MediaType.SERVER_SENT_EVENTS)
+  public void events(
+          @PathParam("group") final String group,
+          @PathParam("stream") final String stream,
+          @Context final SseEventSink sink,
+          @Context final Sse sse) {
+    streamEvents.subscribe(group + '/' + stream, sink, sse);
+  }
+
+  /**
+   * Get a playlist or a segment.
+   *
+   * Playlist requests can block until the playlist contains a media sequence (LL-HLS _HLS_msn) or
+   * until it is modified after a point in time (changedSince, millis since epoch). Blocked requests do not hold
+   * a worker thread and are resumed when the playlist is stored, or with the current playlist on timeout.
+   *
+   * Playlist requests with a window (number of segments) get a playlist with the last window segments of the
+   * uploaded playlist, rendered by the server (see {@link PlaylistWindows}), a large window gives a DVR playlist.
+   * Window playlists have a strong ETag, but no range support. window=0 returns the playlist as uploaded.
+   *
+   * Viewers of a playlist request its last segments next, these are prefetched (see {@link SegmentPrefetcher}).
+   *
+   * Segment requests with follow=true, for a segment that is still being uploaded, stream the segment as it is
+   * written instead of waiting for the upload to complete.
+   *
+   * Requests for the files of streams stored on other nodes of the cluster are redirected (307) to a node that
+   * stores them (see {@link FileStore#locate(String)}). Redirected requests are marked with redirected=true, and
+   * are not redirected again, so that nodes that disagree on the placement of a stream do not redirect in a loop.
+   */
   @Path("{group}/{stream}")
   @GET
   @Timeout(value = 15, unit = TimeUnit.SECONDS)
-  public Response get(
+  public void get(
           @PathParam("group") final String group,
-          @PathParam("stream") final String stream) {
-    Response.ResponseBuilder bldr = Response.ok();
+          @PathParam("stream") final String stream,
+          @QueryParam("_HLS_msn") @Nullable final Long msn,
+          @QueryParam("_HLS_part") @Nullable final Integer part,
+          @QueryParam("changedSince") @Nullable final Long changedSince,
+          @QueryParam("follow") final boolean follow,
+          @QueryParam("window") @Nullable final Integer window,
+          @HeaderParam("Range") @Nullable final String range,
+          @HeaderParam("If-Range") @Nullable final String ifRange,
+          @HeaderParam("If-None-Match") @Nullable final String ifNoneMatch,
+          @QueryParam("redirected") final boolean redirected,
+          @Context final UriInfo uriInfo,
+          @Context final HttpServletRequest request,
+          @Suspended final AsyncResponse ar) throws IOException, TimeoutException {
+    String contentType;
     if (stream.endsWith(".m3u8")) {
-      bldr.type("application/vnd.apple.mpegurl");
+      contentType = "application/vnd.apple.mpegurl";
     } else if (!stream.endsWith(".ts")) {
       throw new NotFoundException();
     } else {
-       bldr.type("video/MP2T");
+      contentType = "video/MP2T";
+    }
+    String filePath = group + '/' + stream;
+    if (follow && range == null && stream.endsWith(".ts")) {
+      InputStream is = fileStore.follow(filePath);
+      if (is != null) {
+        ar.resume(Response.ok((StreamingOutput) (os) -> {
+          try (InputStream in = is) {
+            in.transferTo(os);
+          }
+        }, contentType).build());
+        return;
+      }
+    }
+    URI owner = redirected ? null : fileStore.locate(filePath);
+    if (owner != null) {
+      ar.resume(Response.temporaryRedirect(uriInfo.getRequestUriBuilder()
+              .scheme(owner.getScheme()).host(owner.getHost()).port(owner.getPort())
+              .replaceQueryParam("redirected", true)
+              .build()).build());
+      return;
+    }
+    if (!stream.endsWith(".m3u8")) {
+      ar.resume(fileResponse(filePath, contentType, range, ifRange, ifNoneMatch, request));
+      return;
+    }
+    int nrSegments = window == null ? defaultWindow : window;
+    if (nrSegments < 0) {
+      throw new BadRequestException("Invalid window " + window);
+    }
+    if (msn == null && changedSince == null) {
+      ar.resume(playlistResponse(filePath, contentType, nrSegments, range, ifRange, ifNoneMatch));
+      return;
+    }
+    if (part != null && msn == null) {
+      throw new BadRequestException("_HLS_part without _HLS_msn");
+    }
+    // without partial segments, a part of segment msn is available once the segment is.
+    playlistWaiters.await(filePath, msn == null ? -1 : msn, changedSince == null ? -1 : changedSince,
+            ExecutionContexts.getTimeToDeadlineInt(TimeUnit.MILLISECONDS), ar,
+            () -> playlistResponse(filePath, contentType, nrSegments, null, null, null));
+  }
+
+  private Response playlistResponse(final String filePath, final String contentType, final int window,
+          @Nullable final String range, @Nullable final String ifRange, @Nullable final String ifNoneMatch)
+          throws IOException {
+    if (prefetcher != null) {
+      prefetcher.playlistRead(filePath);
+    }
+    if (window == 0) {
+      return fileResponse(filePath, contentType, range, ifRange, ifNoneMatch, null);
+    }
+    PlaylistWindows.Rendered playlist = playlistWindows.render(filePath, window);
+    if (playlist == null) {
+      throw new NotFoundException("No stream " + filePath);
+    }
+    String etag = '"' + FileInfo.crc32cToString(playlist.getCrc32c()) + '"';
+    if (ifNoneMatch != null && matchesAny(ifNoneMatch, etag)) {
+      return Response.notModified()
+              .header(HttpHeaders.ETAG, etag)
+              .build();
     }
-    return bldr.entity(new FileStream(group, stream, fileStore)).build();
+    byte[] content = playlist.getContent();
+    return Response.ok(content, contentType)
+            .header(HttpHeaders.CONTENT_LENGTH, content.length)
+            .header(HttpHeaders.ETAG, etag)
+            .lastModified(new Date(playlist.getLastModifiedMillis()))
+            .build();
   }
 
+  /**
+   * Files with a known CRC32C get it as a strong ETag, computed at ingest, so that clients can revalidate
+   * with If-None-Match and resume with an If-Range ETag, without the content being read.
+   * The file is opened once (see {@link FileStore#open(String)}): the headers and the body are of the same version
+   * of the file, also when a playlist is replaced while it is sent.
+   * Whole files and single ranges of files stored on disk are sent by the container with sendfile, when the request
+   * is given and the container supports it: the content is not copied through the java heap.
+   * @param sendFileRequest the request, for files that are never replaced (segments), null to stream the content.
+   */
+  private Response fileResponse(final String filePath, final String contentType,
+          @Nullable final String range, @Nullable final String ifRange, @Nullable final String ifNoneMatch,
+          @Nullable final HttpServletRequest sendFileRequest) throws IOException {
+    OpenFile file = fileStore.open(filePath);
+    if (file == null) {
+      throw new NotFoundException("No stream " + filePath);
+    }
+    FileInfo fileInfo = file.getInfo();
+    String etag = fileInfo.hasCrc32c() ? '"' + FileInfo.crc32cToString(fileInfo.getCrc32c()) + '"' : null;
+    if (etag != null && ifNoneMatch != null && matchesAny(ifNoneMatch, etag)) {
+      file.close();
+      return Response.notModified()
+              .header(HttpHeaders.ETAG, etag)
+              .build();
+    }
+    long size = fileInfo.getSize();
+    HttpServletRequest sendFile = sendFileRequest != null && file.getFile() != null
+            && Boolean.TRUE.equals(sendFileRequest.getAttribute(SEND_FILE_ENABLED)) ? sendFileRequest : null;
+    List<ByteRange> ranges = null;
+    if (range != null && (ifRange == null || matchesIfRange(ifRange, etag, fileInfo))) {
+      ranges = ByteRange.parse(range, size);
+    }
+    Response.ResponseBuilder bldr;
+    if (ranges == null) {
+      bldr = Response.ok(new FileStream(file, 0, size, sendFile), contentType)
+              .header(HttpHeaders.CONTENT_LENGTH, size);
+    } else if (ranges.isEmpty()) {
+      file.close();
+      bldr = Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+              .header("Content-Range", "bytes */" + size);
+    } else if (ranges.size() == 1) {
+      ByteRange br = ranges.get(0);
+      bldr = Response.status(Response.Status.PARTIAL_CONTENT)
+              .entity(new FileStream(file, br.getFirst(), br.getLength(), sendFile))
+              .type(contentType)
+              .header("Content-Range", br.toContentRange(size))
+              .header(HttpHeaders.CONTENT_LENGTH, br.getLength());
+    } else {
+      String boundary = UUID.randomUUID().toString();
+      bldr = Response.status(Response.Status.PARTIAL_CONTENT)
+              .entity(new FileRangesStream(file, ranges, contentType, boundary))
+              .type("multipart/byteranges; boundary=" + boundary);
+    }
+    if (etag != null) {
+      bldr.header(HttpHeaders.ETAG, etag);
+    }
+    return bldr.header("Accept-Ranges", "bytes")
+            .lastModified(new Date(fileInfo.getLastModifiedMillis()))
+            .build();
+  }
+
+  /**
+   * @param ifNoneMatch a If-None-Match header value: "*" or a list of entity tags, weak tags compare weakly.
+   */
+  private static boolean matchesAny(final String ifNoneMatch, final String etag) {
+    for (String tag : ifNoneMatch.split(",")) {
+      String t = tag.trim();
+      if (t.startsWith("W/")) {
+        t = t.substring(2);
+      }
+      if ("*".equals(t) || etag.equals(t)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * If-Range with an entity tag needs a strong match, otherwise it is a date.
+   */
+  private static boolean matchesIfRange(final String ifRange, @Nullable final String etag,
+          final FileInfo fileInfo) {
+    String value = ifRange.trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      return value.equals(etag);
+    }
+    return matchesLastModified(value, fileInfo);
+  }
+
+  /**
+   * If-Range with a date is a match only if it is exactly the Last-Modified we send.
+   */
+  private static boolean matchesLastModified(final String ifRange, final FileInfo fileInfo) {
+    try {
+      long ifRangeSeconds = ZonedDateTime.parse(ifRange.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+              .toEpochSecond();
+      return ifRangeSeconds == TimeUnit.MILLISECONDS.toSeconds(fileInfo.getLastModifiedMillis());
+    } catch (DateTimeParseException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Streams a range of an opened file, and closes it. With a send file request the range is sent by the container,
+   * from the file system file of the opened file.
+   */
   private static class FileStream implements StreamingOutput {
 
-    private final FileStore fileStore;
-    private final String group;
-    private final String stream;
+    private final OpenFile file;
+    private final long position;
+    private final long count;
+    @Nullable
+    private final HttpServletRequest sendFileRequest;
 
-    public FileStream(String group, String stream, FileStore fileStore) {
-      this.group = group;
-      this.stream = stream;
-      this.fileStore = fileStore;
+    FileStream(final OpenFile file, final long position, final long count,
+            @Nullable final HttpServletRequest sendFileRequest) {
+      this.file = file;
+      this.position = position;
+      this.count = count;
+      this.sendFileRequest = sendFileRequest;
     }
 
     @Override
     public void write(OutputStream os) throws IOException {
-      InputStream readFile = fileStore.readFile(group + '/' + stream);
-      if (readFile == null) {
-        throw new NotFoundException("No stream " + group + '/' + stream);
+      try (OpenFile f = file) {
+        if (sendFileRequest == null) {
+          FileTransfers.transfer(f.getChannel(), position, count, os);
+        } else {
+          // the offset and length are read when the file is set.
+          sendFileRequest.setAttribute(SEND_FILE_START_OFFSET, position);
+          sendFileRequest.setAttribute(SEND_FILE_WRITE_LEN, count);
+          sendFileRequest.setAttribute(SEND_FILE, f.getFile().toFile());
+        }
       }
-      try (InputStream is = readFile) {
-        Streams.copy(is, os);
+    }
+  }
+
+  /**
+   * multipart/byteranges body, see https://tools.ietf.org/html/rfc7233#appendix-A .
+   */
+  private static class FileRangesStream implements StreamingOutput {
+
+    private final OpenFile file;
+    private final List<ByteRange> ranges;
+    private final String contentType;
+    private final String boundary;
+
+    FileRangesStream(final OpenFile file, final List<ByteRange> ranges, final String contentType,
+            final String boundary) {
+      this.file = file;
+      this.ranges = ranges;
+      this.contentType = contentType;
+      this.boundary = boundary;
+    }
+
+    @Override
+    public void write(OutputStream os) throws IOException {
+      long size = file.getInfo().getSize();
+      try (OpenFile f = file) {
+        SeekableByteChannel ch = f.getChannel();
+        for (ByteRange br : ranges) {
+          os.write(("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                  + "\r\nContent-Range: " + br.toContentRange(size) + "\r\n\r\n")
+                  .getBytes(StandardCharsets.US_ASCII));
+          FileTransfers.transfer(ch, br.getFirst(), br.getLength(), os);
+        }
+        os.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
       }
     }
   }
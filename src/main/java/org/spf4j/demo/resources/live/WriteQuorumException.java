@@ -0,0 +1,19 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+
+/**
+ * A partially successful replicated write: the file is stored and published locally, but the write quorum of peers
+ * did not confirm it in time. Failed peers keep being retried in the background.
+ *
+ * @author Zoltan Farkas
+ */
+public final class WriteQuorumException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public WriteQuorumException(final String message, final Throwable cause) {
+    super(message, cause);
+  }
+
+}
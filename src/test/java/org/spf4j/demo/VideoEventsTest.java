@@ -0,0 +1,45 @@
+package org.spf4j.demo;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.sse.InboundSseEvent;
+import javax.ws.rs.sse.SseEventSource;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class VideoEventsTest extends ServiceIntegrationBase {
+
+  @Test(timeout = 30000)
+  public void testStreamEvents() throws InterruptedException {
+    BlockingQueue<InboundSseEvent> received = new LinkedBlockingQueue<>();
+    try (SseEventSource source = SseEventSource.target(getTarget().path("video/eventsTest/stream/events")).build()) {
+      source.register(received::add);
+      source.open();
+      // the subscription is registered asynchronously, publish segments until one is notified.
+      InboundSseEvent event = null;
+      for (int i = 0; event == null; i++) {
+        Response response = getTarget().path("video/eventsTest/stream" + i + ".ts").request()
+                .put(Entity.entity(new byte[] {1, 2, 3}, "video/MP2T"));
+        Assert.assertEquals(204, response.getStatus());
+        event = received.poll(500, TimeUnit.MILLISECONDS);
+      }
+      Assert.assertEquals("segment", event.getName());
+      Assert.assertTrue(event.readData().matches("stream\\d+\\.ts"));
+      Response response = getTarget().path("video/eventsTest/stream.m3u8").request()
+              .put(Entity.entity("#EXTM3U\n", "application/vnd.apple.mpegurl"));
+      Assert.assertEquals(204, response.getStatus());
+      do {
+        event = received.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(event);
+      } while (!"playlist".equals(event.getName()));
+      Assert.assertEquals("stream.m3u8", event.readData());
+    }
+  }
+
+}
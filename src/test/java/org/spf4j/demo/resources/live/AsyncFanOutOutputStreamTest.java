@@ -0,0 +1,83 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.spf4j.base.TimeSource;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class AsyncFanOutOutputStreamTest {
+
+  @Test
+  public void testQuorumMet() {
+    CompletableFuture<Integer> f1 = new CompletableFuture<>();
+    CompletableFuture<Integer> f2 = new CompletableFuture<>();
+    CompletableFuture<Integer> f3 = new CompletableFuture<>();
+    CompletableFuture<Void> quorum = AsyncFanOutOutputStream.quorum(Arrays.asList(f1, f2, f3), 2);
+    f1.completeExceptionally(new IOException("peer 1 down"));
+    f2.complete(204);
+    Assert.assertFalse(quorum.isDone());
+    f3.complete(204);
+    Assert.assertTrue(quorum.isDone());
+    Assert.assertFalse(quorum.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testRetriedConfirmationCounts() throws IOException {
+    CompletableFuture<Integer> f1 = new CompletableFuture<>();
+    CompletableFuture<Integer> f2 = new CompletableFuture<>();
+    ByteArrayOutputStream local = new ByteArrayOutputStream();
+    AsyncFanOutOutputStream os = new AsyncFanOutOutputStream(local, Collections.emptyList(),
+            Arrays.asList(f1, f2), 2, TimeSource.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+    os.write(new byte[] {1, 2, 3});
+    f1.complete(204);
+    // the first upload to peer 2 failed, the retry succeeds while close waits.
+    CompletableFuture.runAsync(() -> f2.complete(204), CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+    os.close();
+    Assert.assertArrayEquals(new byte[] {1, 2, 3}, local.toByteArray());
+  }
+
+  @Test
+  public void testPartialSuccess() throws IOException {
+    CompletableFuture<Integer> f1 = new CompletableFuture<>();
+    CompletableFuture<Integer> f2 = new CompletableFuture<>();
+    ByteArrayOutputStream local = new ByteArrayOutputStream();
+    AsyncFanOutOutputStream os = new AsyncFanOutOutputStream(local, Collections.emptyList(),
+            Arrays.asList(f1, f2), 2, TimeSource.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+    os.write(new byte[] {1, 2, 3});
+    f1.completeExceptionally(new IOException("peer 1 given up"));
+    try {
+      os.close();
+      Assert.fail();
+    } catch (WriteQuorumException ex) {
+      // stored locally.
+      Assert.assertArrayEquals(new byte[] {1, 2, 3}, local.toByteArray());
+    }
+  }
+
+  @Test
+  public void testQuorumNotMet() throws InterruptedException {
+    CompletableFuture<Integer> f1 = new CompletableFuture<>();
+    CompletableFuture<Integer> f2 = new CompletableFuture<>();
+    CompletableFuture<Integer> f3 = new CompletableFuture<>();
+    CompletableFuture<Void> quorum = AsyncFanOutOutputStream.quorum(Arrays.asList(f1, f2, f3), 2);
+    f1.completeExceptionally(new IOException("peer 1 down"));
+    Assert.assertFalse(quorum.isDone());
+    f2.completeExceptionally(new IOException("peer 2 down"));
+    try {
+      quorum.get();
+      Assert.fail();
+    } catch (ExecutionException ex) {
+      Assert.assertEquals(2, ex.getCause().getSuppressed().length);
+    }
+  }
+
+}
@@ -0,0 +1,44 @@
+package org.spf4j.demo.resources.live;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class ByteRangeTest {
+
+  @Test
+  public void testSingleRanges() {
+    Assert.assertEquals(Collections.singletonList(new ByteRange(0, 99)), ByteRange.parse("bytes=0-99", 1000));
+    Assert.assertEquals(Collections.singletonList(new ByteRange(500, 999)), ByteRange.parse("bytes=500-", 1000));
+    Assert.assertEquals(Collections.singletonList(new ByteRange(900, 999)), ByteRange.parse("bytes=-100", 1000));
+    Assert.assertEquals(Collections.singletonList(new ByteRange(0, 999)), ByteRange.parse("bytes=-2000", 1000));
+    Assert.assertEquals(Collections.singletonList(new ByteRange(990, 999)), ByteRange.parse("bytes=990-2000", 1000));
+  }
+
+  @Test
+  public void testMultipleRanges() {
+    Assert.assertEquals(Arrays.asList(new ByteRange(0, 9), new ByteRange(20, 29)),
+            ByteRange.parse("bytes=20-29, 0-9", 1000));
+    Assert.assertEquals(Collections.singletonList(new ByteRange(0, 29)),
+            ByteRange.parse("bytes=0-10,5-20,21-29", 1000));
+  }
+
+  @Test
+  public void testUnsatisfiable() {
+    Assert.assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    Assert.assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+  }
+
+  @Test
+  public void testInvalid() {
+    Assert.assertNull(ByteRange.parse("items=0-10", 1000));
+    Assert.assertNull(ByteRange.parse("bytes=10-5", 1000));
+    Assert.assertNull(ByteRange.parse("bytes=a-5", 1000));
+    Assert.assertNull(ByteRange.parse("bytes=5", 1000));
+  }
+
+}
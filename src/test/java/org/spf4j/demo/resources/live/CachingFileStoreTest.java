@@ -0,0 +1,152 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class CachingFileStoreTest {
+
+  @Test
+  public void testCachedOnWriteAndEvicted() throws IOException, TimeoutException {
+    Path folder = Files.createTempDirectory("test");
+    try (CachingFileStore store = new CachingFileStore(new FSFileStore(folder, 10, TimeUnit.SECONDS), 100, 60)) {
+      try (OutputStream os = store.storeFile("grp/s1.ts")) {
+        os.write(new byte[50]);
+      }
+      Assert.assertEquals(50, store.getCachedBytes());
+      try (InputStream is = store.readFile("grp/s1.ts")) {
+        Assert.assertEquals(50, is.readAllBytes().length);
+      }
+      try (OutputStream os = store.storeFile("grp/s2.ts")) {
+        os.write(new byte[60]);
+      }
+      Assert.assertEquals(60, store.getCachedBytes());
+      // evicted, read from the wrapped store and cached again.
+      try (InputStream is = store.readFile("grp/s1.ts")) {
+        Assert.assertEquals(50, is.readAllBytes().length);
+      }
+      Assert.assertEquals(50, store.getCachedBytes());
+    }
+  }
+
+  @Test
+  public void testInvalidatedOnDelete() throws IOException, TimeoutException {
+    Path folder = Files.createTempDirectory("test");
+    FSFileStore fsStore = new FSFileStore(folder, 10, TimeUnit.SECONDS, 60, Long.MAX_VALUE, 0);
+    try (CachingFileStore store = new CachingFileStore(fsStore, 100, 60)) {
+      List<String> deleted = new ArrayList<>();
+      store.addListener(new FileStoreListener() {
+        @Override
+        public void fileStored(final String filePath) {
+        }
+
+        @Override
+        public void fileDeleted(final String filePath) {
+          deleted.add(filePath);
+        }
+      });
+      try (OutputStream os = store.storeFile("grp/s1.ts")) {
+        os.write(new byte[50]);
+      }
+      Assert.assertEquals(50, store.getCachedBytes());
+      // over the group quota, s1 is deleted by the wrapped store.
+      try (OutputStream os = store.storeFile("grp/s2.ts")) {
+        os.write(new byte[40]);
+      }
+      Assert.assertEquals(Collections.singletonList("grp/s1.ts"), deleted);
+      Assert.assertEquals(40, store.getCachedBytes());
+      Assert.assertNull(store.readFile("grp/s1.ts"));
+      Assert.assertNull(store.getFileInfo("grp/s1.ts"));
+    }
+  }
+
+  @Test
+  public void testLargeFilesNotCached() throws IOException, TimeoutException {
+    try (CachingFileStore store = new CachingFileStore(
+            new FSFileStore(Files.createTempDirectory("test"), 10, TimeUnit.SECONDS), 100, 60)) {
+      try (OutputStream os = store.storeFile("grp/s1.ts")) {
+        os.write(new byte[70]);
+      }
+      Assert.assertEquals(0, store.getCachedBytes());
+      try (InputStream is = store.readFile("grp/s1.ts")) {
+        Assert.assertEquals(70, is.readAllBytes().length);
+      }
+      Assert.assertEquals(0, store.getCachedBytes());
+    }
+  }
+
+  @Test
+  public void testPrefetch() throws IOException, TimeoutException {
+    Path folder = Files.createTempDirectory("test");
+    try (FSFileStore fsStore = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      try (OutputStream os = fsStore.storeFile("grp/s1.ts")) {
+        os.write(new byte[50]);
+      }
+      try (OutputStream os = fsStore.storeFile("grp/s2.ts")) {
+        os.write(new byte[70]);
+      }
+      CachingFileStore store = new CachingFileStore(fsStore, 100, 60);
+      store.prefetch("grp/s1.ts");
+      Assert.assertEquals(50, store.getCachedBytes());
+      store.prefetch("grp/s1.ts");
+      store.prefetch("grp/s2.ts");
+      store.prefetch("grp/s3.ts");
+      Assert.assertEquals(50, store.getCachedBytes());
+      try (InputStream is = store.readFile("grp/s1.ts")) {
+        Assert.assertEquals(50, is.readAllBytes().length);
+      }
+      Assert.assertEquals(50, store.getCachedBytes());
+    }
+  }
+
+  @Test
+  public void testCachedOnRead() throws IOException, TimeoutException {
+    Path folder = Files.createTempDirectory("test");
+    try (FSFileStore fsStore = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      try (OutputStream os = fsStore.storeFile("grp/s1.ts")) {
+        os.write(new byte[] {1, 2, 3});
+      }
+      CachingFileStore store = new CachingFileStore(fsStore, 100, 60);
+      try (InputStream is = store.readFile("grp/s1.ts")) {
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, is.readAllBytes());
+      }
+      Assert.assertEquals(3, store.getCachedBytes());
+      Assert.assertEquals(3, store.getFileInfo("grp/s1.ts").getSize());
+    }
+  }
+
+  @Test
+  public void testNotCachedOnReadWhileAnyWriterIsOpen() throws IOException, TimeoutException {
+    Path folder = Files.createTempDirectory("test");
+    try (FSFileStore fsStore = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      try (OutputStream os = fsStore.storeFile("grp/s1.ts")) {
+        os.write(new byte[] {1, 2, 3});
+      }
+      CachingFileStore store = new CachingFileStore(fsStore, 100, 60);
+      OutputStream first = store.storeFile("grp/s1.ts");
+      try (OutputStream second = store.storeFile("grp/s1.ts")) {
+        first.write(4);
+        Abortable.abort(first, new IOException("test"));
+        try (InputStream is = store.readFile("grp/s1.ts")) {
+          Assert.assertArrayEquals(new byte[] {1, 2, 3}, is.readAllBytes());
+        }
+        Assert.assertEquals(0, store.getCachedBytes());
+        second.write(new byte[] {5, 6});
+      }
+      Assert.assertEquals(2, store.getCachedBytes());
+    }
+  }
+
+}
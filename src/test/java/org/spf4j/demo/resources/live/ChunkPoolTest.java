@@ -0,0 +1,50 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Zoltan Farkas
+ */
+public class ChunkPoolTest {
+
+  @Test
+  public void testReuse() throws IOException {
+    ChunkPool pool = new ChunkPool(4, 2);
+    ChunkPool.Chunk chunk = pool.take();
+    Assert.assertTrue(chunk.isAllocated());
+    Assert.assertEquals(4, chunk.fill(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5})));
+    chunk.retain();
+    chunk.release();
+    Assert.assertEquals(0, pool.getNrPooled());
+    chunk.release();
+    Assert.assertEquals(1, pool.getNrPooled());
+    ChunkPool.Chunk reused = pool.take();
+    Assert.assertSame(chunk, reused);
+    Assert.assertFalse(reused.isAllocated());
+    Assert.assertEquals(0, reused.length());
+  }
+
+  @Test
+  public void testStoreToSink() throws IOException {
+    byte[] content = new byte[200 * 1024];
+    content[content.length - 1] = 7;
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    int[] chunks = new int[1];
+    class Sink extends ByteArrayOutputStream implements ChunkSink {
+      @Override
+      public void write(final ChunkPool.Chunk chunk) {
+        chunks[0]++;
+        bos.write(chunk.array(), 0, chunk.length());
+      }
+    }
+    Assert.assertEquals(content.length, FileTransfers.store(new ByteArrayInputStream(content), new Sink()));
+    Assert.assertArrayEquals(content, bos.toByteArray());
+    Assert.assertTrue(chunks[0] > 0);
+  }
+
+}
@@ -0,0 +1,133 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class CoalescedFetchesTest {
+
+  @Test
+  public void testConcurrentFetchesCoalesced() throws Exception {
+    CoalescedFetches<String> fetches = new CoalescedFetches<>(1000);
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      Future<String> leader = exec.submit(() -> fetches.fetch("grp/s0.ts", 10000, (deadline) -> {
+        calls.incrementAndGet();
+        started.countDown();
+        await(release);
+        return "content";
+      }));
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      List<Future<String>> waiters = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        waiters.add(exec.submit(() -> fetches.fetch("grp/s0.ts", 10000, (deadline) -> {
+          calls.incrementAndGet();
+          return "other";
+        })));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      Assert.assertEquals("content", leader.get(10, TimeUnit.SECONDS));
+      for (Future<String> waiter : waiters) {
+        Assert.assertEquals("content", waiter.get(10, TimeUnit.SECONDS));
+      }
+      Assert.assertEquals(1, calls.get());
+      // found files are not remembered, the next read fetches again.
+      Assert.assertEquals("again", fetches.fetch("grp/s0.ts", 10000, (deadline) -> "again"));
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testNotFoundRemembered() throws Exception {
+    CoalescedFetches<String> fetches = new CoalescedFetches<>(200);
+    AtomicInteger calls = new AtomicInteger();
+    CoalescedFetches.Fetcher<String> notFound = (deadline) -> {
+      calls.incrementAndGet();
+      return null;
+    };
+    Assert.assertNull(fetches.fetch("grp/missing.ts", 1000, notFound));
+    Assert.assertNull(fetches.fetch("grp/missing.ts", 1000, notFound));
+    Assert.assertEquals(1, calls.get());
+    long deadline = System.currentTimeMillis() + 10000;
+    while (calls.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+      Assert.assertNull(fetches.fetch("grp/missing.ts", 1000, notFound));
+    }
+    Assert.assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testWaitersWaitForTheFetchDeadline() throws Exception {
+    CoalescedFetches<String> fetches = new CoalescedFetches<>(1000);
+    CountDownLatch started = new CountDownLatch(1);
+    ExecutorService exec = Executors.newFixedThreadPool(2);
+    try {
+      // the fetch has 2 seconds, for 2 slow attempts of 700 ms.
+      Future<String> leader = exec.submit(() -> fetches.fetch("grp/s1.ts", 2000, (deadline) -> {
+        started.countDown();
+        sleep(1400);
+        return "content";
+      }));
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      // a waiter with a shorter timeout of its own still gets the result of the fetch.
+      Assert.assertEquals("content", fetches.fetch("grp/s1.ts", 100, (deadline) -> "other"));
+      Assert.assertEquals("content", leader.get(10, TimeUnit.SECONDS));
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedFetch() throws Exception {
+    CoalescedFetches<String> fetches = new CoalescedFetches<>(1000);
+    try {
+      fetches.fetch("grp/s2.ts", 1000, (deadline) -> {
+        throw new IOException("peer down");
+      });
+      Assert.fail();
+    } catch (IOException ex) {
+      // expected
+    }
+    try {
+      // failures are remembered as well.
+      fetches.fetch("grp/s2.ts", 1000, (deadline) -> "content");
+      Assert.fail();
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+
+  private static void await(final CountDownLatch latch) throws InterruptedIOException {
+    try {
+      latch.await();
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private static void sleep(final long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException();
+    }
+  }
+
+}
@@ -1,12 +1,24 @@
 package org.spf4j.demo.resources.live;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
 import org.junit.Assert;
 import org.junit.Test;
+import org.spf4j.base.CloseableIterable;
 
 /**
  *
@@ -36,4 +48,300 @@ public class FSFileStoreTest {
     store.close();
   }
 
+  @Test
+  public void testReadChannel() throws IOException {
+    try (FSFileStore store = new FSFileStore(Files.createTempDirectory("test"), 10, TimeUnit.SECONDS)) {
+      try (OutputStream storeFile = store.storeFile("grp/someFile.ts")) {
+        storeFile.write(new byte[] {1, 2, 3});
+      }
+      try (SeekableByteChannel ch = store.readChannel("grp/someFile.ts")) {
+        Assert.assertTrue(ch instanceof FileChannel);
+        Assert.assertEquals(3, ch.size());
+        ByteBuffer buff = ByteBuffer.allocate(3);
+        ch.position(1).read(buff);
+        Assert.assertEquals(2, buff.get(0));
+        Assert.assertEquals(3, buff.get(1));
+      }
+      Assert.assertNull(store.readChannel("grp/nonExistent.ts"));
+    }
+  }
+
+  @Test
+  public void testStoreNotification() throws IOException {
+    try (FSFileStore store = new FSFileStore(Files.createTempDirectory("test"), 10, TimeUnit.SECONDS)) {
+      List<String> stored = new ArrayList<>();
+      store.addListener(stored::add);
+      try (OutputStream storeFile = store.storeFile("grp/stream.m3u8")) {
+        storeFile.write(76);
+        Assert.assertTrue(stored.isEmpty());
+      }
+      Assert.assertEquals(Collections.singletonList("grp/stream.m3u8"), stored);
+    }
+  }
+
+  @Test
+  public void testIndexedCleanup() throws IOException, InterruptedException {
+    Path folder = Files.createTempDirectory("test");
+    Files.createDirectories(folder.resolve("old"));
+    Files.write(folder.resolve("old/seg1.ts"), new byte[] {1});
+    try (FSFileStore store = new FSFileStore(folder, 50, TimeUnit.MILLISECONDS)) {
+      try (OutputStream storeFile = store.storeFile("grp/seg1.ts")) {
+        storeFile.write(76);
+      }
+      Thread.sleep(100);
+      try (OutputStream storeFile = store.storeFile("grp/seg2.ts")) {
+        storeFile.write(76);
+      }
+      store.cleanup();
+      Assert.assertFalse(Files.exists(folder.resolve("old")));
+      Assert.assertFalse(Files.exists(folder.resolve("grp/seg1.ts")));
+      Assert.assertTrue(Files.exists(folder.resolve("grp/seg2.ts")));
+    }
+  }
+
+  @Test
+  public void testCleanupKeepsUndeletedFilesIndexed() throws IOException, InterruptedException {
+    Path folder = Files.createTempDirectory("test");
+    try (FSFileStore store = new FSFileStore(folder, 50, TimeUnit.MILLISECONDS)) {
+      try (OutputStream storeFile = store.storeFile("grp/seg1.ts")) {
+        storeFile.write(76);
+      }
+      // a non empty folder in place of the file makes the delete fail.
+      Path file = folder.resolve("grp/seg1.ts");
+      Files.delete(file);
+      Files.createDirectories(file.resolve("sub"));
+      Thread.sleep(100);
+      store.cleanup();
+      Assert.assertNotNull(store.getFileInfo("grp/seg1.ts"));
+      Files.delete(file.resolve("sub"));
+      store.cleanup();
+      Assert.assertNull(store.getFileInfo("grp/seg1.ts"));
+      Assert.assertFalse(Files.exists(file));
+    }
+  }
+
+  @Test
+  public void testCopyKeepsModificationTime() throws IOException {
+    Path folder = Files.createTempDirectory("test");
+    long origin = System.currentTimeMillis() - 5000;
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      try (OutputStream storeFile = store.storeFile("grp/copy.ts", origin)) {
+        storeFile.write(76);
+      }
+      Assert.assertEquals(origin, store.getFileInfo("grp/copy.ts").getLastModifiedMillis());
+      Assert.assertEquals(origin, Files.getLastModifiedTime(folder.resolve("grp/copy.ts")).toMillis());
+      Assert.assertEquals(10000, store.getRetentionMillis());
+    }
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      Assert.assertEquals(origin, store.getFileInfo("grp/copy.ts").getLastModifiedMillis());
+    }
+    try (FSFileStore store = new FSFileStore(folder, 1, TimeUnit.SECONDS)) {
+      // a copy expires with the original.
+      Assert.assertNull(store.getFileInfo("grp/copy.ts"));
+    }
+  }
+
+  @Test
+  public void testOpenKeepsVersion() throws IOException {
+    Path folder = Files.createTempDirectory("test");
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      Assert.assertNull(store.open("grp/s.m3u8"));
+      try (OutputStream storeFile = store.storeFile("grp/s.m3u8")) {
+        storeFile.write(new byte[] {1, 2, 3});
+      }
+      try (OpenFile file = store.open("grp/s.m3u8")) {
+        try (OutputStream storeFile = store.storeFile("grp/s.m3u8")) {
+          storeFile.write(new byte[] {4, 5, 6, 7});
+        }
+        Assert.assertEquals(3, file.getInfo().getSize());
+        CRC32C crc = new CRC32C();
+        crc.update(new byte[] {1, 2, 3});
+        Assert.assertEquals(crc.getValue(), file.getInfo().getCrc32c());
+        ByteBuffer content = ByteBuffer.allocate(4);
+        while (file.getChannel().read(content) >= 0 && content.hasRemaining()) {
+          // read the opened version.
+        }
+        Assert.assertEquals(3, content.position());
+      }
+      try (OpenFile file = store.open("grp/s.m3u8")) {
+        Assert.assertEquals(4, file.getInfo().getSize());
+        Assert.assertEquals(4, file.getChannel().size());
+        Assert.assertEquals(4, Files.size(file.getFile()));
+      }
+    }
+  }
+
+  @Test
+  public void testPartitionedScanAndCleanup() throws IOException, InterruptedException {
+    Path folder = Files.createTempDirectory("test");
+    FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+    for (int i = 0; i < 8; i++) {
+      Path grp = Files.createDirectories(folder.resolve("grp" + i + "/sub"));
+      Files.setLastModifiedTime(Files.write(grp.resolve("seg0.ts"), new byte[] {1}), old);
+      Files.write(folder.resolve("grp" + i + "/seg1.ts"), new byte[] {1, 2});
+    }
+    Files.setLastModifiedTime(Files.write(folder.resolve("old.ts"), new byte[] {1}), old);
+    Files.write(folder.resolve("new.ts"), new byte[] {1});
+    Files.createDirectories(folder.resolve("empty"));
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      Assert.assertFalse(Files.exists(folder.resolve("old.ts")));
+      Assert.assertFalse(Files.exists(folder.resolve("empty")));
+      Assert.assertEquals(1, store.getFileInfo("new.ts").getSize());
+      for (int i = 0; i < 8; i++) {
+        Assert.assertFalse(Files.exists(folder.resolve("grp" + i + "/sub")));
+        Assert.assertEquals(2, store.getFileInfo("grp" + i + "/seg1.ts").getSize());
+      }
+      List<String> names = new ArrayList<>();
+      try (CloseableIterable<String> files = store.list("grp3")) {
+        files.forEach(names::add);
+      }
+      Assert.assertEquals(Collections.singletonList("seg1.ts"), names);
+    }
+    try (FSFileStore store = new FSFileStore(folder, 50, TimeUnit.MILLISECONDS)) {
+      Thread.sleep(100);
+      store.cleanup();
+      for (int i = 0; i < 8; i++) {
+        Assert.assertFalse(Files.exists(folder.resolve("grp" + i)));
+      }
+      Assert.assertFalse(Files.exists(folder.resolve("new.ts")));
+    }
+  }
+
+  @Test
+  public void testQuotas() throws IOException {
+    Path folder = Files.createTempDirectory("test");
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.MINUTES, 30, 40, 0)) {
+      for (int i = 0; i < 4; i++) {
+        try (OutputStream storeFile = store.storeFile("big/seg" + i + ".ts")) {
+          storeFile.write(new byte[10]);
+        }
+      }
+      Assert.assertFalse(Files.exists(folder.resolve("big/seg0.ts")));
+      Assert.assertTrue(Files.exists(folder.resolve("big/seg1.ts")));
+      for (int i = 0; i < 2; i++) {
+        try (OutputStream storeFile = store.storeFile("small/seg" + i + ".ts")) {
+          storeFile.write(new byte[10]);
+        }
+      }
+      store.enforceStoreLimits();
+      Assert.assertFalse(Files.exists(folder.resolve("big/seg1.ts")));
+      Assert.assertTrue(Files.exists(folder.resolve("big/seg2.ts")));
+      Assert.assertTrue(Files.exists(folder.resolve("small/seg0.ts")));
+    }
+  }
+
+  @Test
+  public void testIndexedListing() throws IOException {
+    Path folder = Files.createTempDirectory("test");
+    Files.createDirectories(folder.resolve("existing"));
+    Files.write(folder.resolve("existing/s.m3u8"), new byte[] {1});
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      try (OutputStream storeFile = store.storeFile("grp/./s1.ts")) {
+        storeFile.write(new byte[] {1, 2});
+      }
+      try (OutputStream storeFile = store.storeFile("grp/s.m3u8")) {
+        storeFile.write(76);
+      }
+      List<String> names = new ArrayList<>();
+      try (CloseableIterable<String> groups = store.list("")) {
+        groups.forEach(names::add);
+      }
+      Assert.assertEquals(Arrays.asList("existing", "grp"), names);
+      names.clear();
+      try (CloseableIterable<String> files = store.list("grp")) {
+        files.forEach(names::add);
+      }
+      Assert.assertEquals(Arrays.asList("s.m3u8", "s1.ts"), names);
+      Assert.assertNull(store.list("other"));
+      Assert.assertEquals(2, store.getFileInfo("grp/s1.ts").getSize());
+      Assert.assertEquals(1, store.getFileInfo("existing/s.m3u8").getSize());
+      Assert.assertNull(store.getFileInfo("grp"));
+    }
+  }
+
+  @Test
+  public void testAtomicPublish() throws IOException {
+    Path folder = Files.createTempDirectory("test");
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      try (OutputStream storeFile = store.storeFile("grp/s.ts")) {
+        storeFile.write(76);
+        Assert.assertNull(store.readFile("grp/s.ts"));
+        Assert.assertNull(store.list("grp"));
+      }
+      try (OutputStream storeFile = store.storeFile("grp/s.ts")) {
+        storeFile.write(new byte[] {1, 2, 3});
+        Abortable.abort(storeFile, new IOException("upload failed"));
+      }
+      Assert.assertEquals(1, store.getFileInfo("grp/s.ts").getSize());
+      try (InputStream is = store.readFile("grp/s.ts")) {
+        Assert.assertEquals(76, is.read());
+        Assert.assertEquals(-1, is.read());
+      }
+      String[] files = folder.resolve("grp").toFile().list();
+      Arrays.sort(files);
+      Assert.assertEquals(Arrays.asList(".s.ts.crc32c", "s.ts"), Arrays.asList(files));
+    }
+  }
+
+  @Test
+  public void testChecksums() throws IOException {
+    Path folder = Files.createTempDirectory("test");
+    byte[] content = {1, 2, 3, 4, 5};
+    CRC32C crc = new CRC32C();
+    crc.update(content, 0, content.length);
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      try (OutputStream storeFile = store.storeFile("grp/s.ts")) {
+        storeFile.write(content, 0, 2);
+        storeFile.write(content[2]);
+        storeFile.write(content, 3, 2);
+      }
+      Assert.assertEquals(crc.getValue(), store.getFileInfo("grp/s.ts").getCrc32c());
+      try (OutputStream storeFile = store.storeFile("grp/s2.ts")) {
+        FileTransfers.store(new ByteArrayInputStream(content), storeFile, crc.getValue() + 1);
+        Assert.fail();
+      } catch (ChecksumException ex) {
+        // expected
+      }
+      Assert.assertNull(store.getFileInfo("grp/s2.ts"));
+    }
+    try (FSFileStore store = new FSFileStore(folder, 10, TimeUnit.SECONDS)) {
+      FileInfo info = store.getFileInfo("grp/s.ts");
+      Assert.assertEquals(crc.getValue(), info.getCrc32c());
+      Assert.assertEquals(crc.getValue(), FileInfo.parseCrc32c(FileInfo.crc32cToString(info.getCrc32c())));
+      List<String> names = new ArrayList<>();
+      try (CloseableIterable<String> files = store.list("grp")) {
+        files.forEach(names::add);
+      }
+      Assert.assertEquals(Collections.singletonList("s.ts"), names);
+    }
+  }
+
+  @Test
+  public void testFollow() throws Exception {
+    try (FSFileStore store = new FSFileStore(Files.createTempDirectory("test"), 10, TimeUnit.SECONDS)) {
+      Assert.assertNull(store.follow("grp/s.ts"));
+      OutputStream storeFile = store.storeFile("grp/s.ts");
+      storeFile.write(new byte[] {1, 2});
+      try (InputStream is = store.follow("grp/s.ts")) {
+        Assert.assertEquals(1, is.read());
+        Assert.assertEquals(2, is.read());
+        Thread writer = new Thread(() -> {
+          try {
+            Thread.sleep(50);
+            storeFile.write(3);
+            storeFile.close();
+          } catch (IOException | InterruptedException ex) {
+            throw new RuntimeException(ex);
+          }
+        });
+        writer.start();
+        Assert.assertEquals(3, is.read());
+        Assert.assertEquals(-1, is.read());
+        writer.join();
+      }
+      Assert.assertNull(store.follow("grp/s.ts"));
+      Assert.assertEquals(3, store.getFileInfo("grp/s.ts").getSize());
+    }
+  }
+
 }
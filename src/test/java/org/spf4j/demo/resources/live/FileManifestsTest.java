@@ -0,0 +1,59 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class FileManifestsTest {
+
+  @Test
+  public void testManifests() throws IOException {
+    try (FSFileStore store1 = new FSFileStore(Files.createTempDirectory("test"), 10, TimeUnit.SECONDS);
+         FSFileStore store2 = new FSFileStore(Files.createTempDirectory("test"), 10, TimeUnit.SECONDS)) {
+      write(store1, "grp/s0.ts", 10);
+      write(store1, "grp/s1.ts", 20);
+      write(store1, "grp2/s0.ts", 20);
+      write(store2, "grp/s0.ts", 10);
+      write(store2, "grp2/s0.ts", 20);
+      Map<String, String> hashes1 = FileManifests.groupHashes(store1);
+      Map<String, String> hashes2 = FileManifests.readGroupHashes(
+              new StringReader(FileManifests.writeGroupHashes(FileManifests.groupHashes(store2))));
+      Assert.assertEquals(hashes1.get("grp2"), hashes2.get("grp2"));
+      Assert.assertFalse(hashes1.get("grp").equals(hashes2.get("grp")));
+      List<FileManifests.Entry> entries = FileManifests.readEntries(
+              new StringReader(FileManifests.writeEntries(FileManifests.groupEntries(store1, "grp"))));
+      Assert.assertEquals(2, entries.size());
+      Assert.assertEquals("s1.ts", entries.get(1).getName());
+      Assert.assertEquals(20, entries.get(1).getSize());
+      Assert.assertEquals(store1.getFileInfo("grp/s1.ts").getCrc32c(), entries.get(1).getCrc32c());
+      Assert.assertFalse(entries.get(0).differs(entries.get(0)));
+      Assert.assertTrue(entries.get(0).differs(entries.get(1)));
+      // same size, different content.
+      try (OutputStream os = store2.storeFile("grp/s1.ts")) {
+        os.write(new byte[19]);
+        os.write(1);
+      }
+      Assert.assertFalse(FileManifests.groupHashes(store1).get("grp").equals(
+              FileManifests.groupHashes(store2).get("grp")));
+      // manifests without checksums are still readable.
+      FileManifests.Entry noCrc = FileManifests.readEntries(new StringReader("s0.ts\t10\t1000\n")).get(0);
+      Assert.assertFalse(noCrc.hasCrc32c());
+    }
+  }
+
+  private static void write(final FSFileStore store, final String path, final int size) throws IOException {
+    try (OutputStream os = store.storeFile(path)) {
+      os.write(new byte[size]);
+    }
+  }
+
+}
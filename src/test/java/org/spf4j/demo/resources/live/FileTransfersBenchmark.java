@@ -0,0 +1,126 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Segment serving throughput (segments per second, multiply by segmentBytes for bytes per second):
+ * <ul>
+ * <li>copyStream: the InputStream copy through a heap buffer, segments were served this way before readChannel.</li>
+ * <li>transferToStream: transferTo to a channel over an OutputStream, the servlet response being an OutputStream.</li>
+ * <li>transferToOutputStream: positional reads into a pooled heap buffer written to the OutputStream,
+ * how VideoPubSubResource serves playlists, and segments when the container has no sendfile.</li>
+ * <li>transferToFileChannel: transferTo to a file channel, the path the JDK can serve without copying the content
+ * to user space, close to what the container's sendfile does for the segments VideoPubSubResource serves
+ * from disk.</li>
+ * </ul>
+ * Run the main method with the test classpath, after mvn test-compile (which generates the JMH harness).
+ *
+ * @author Zoltan Farkas
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileTransfersBenchmark {
+
+  private static final String SEGMENT = "grp/s0.ts";
+
+  @Param({"2097152"})
+  private int segmentBytes;
+
+  private FSFileStore store;
+
+  private OutputStream sink;
+
+  private FileChannel fileSink;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, TimeoutException {
+    Path folder = Files.createTempDirectory("transferbench");
+    store = new FSFileStore(folder, 10, TimeUnit.MINUTES);
+    try (OutputStream os = store.storeFile(SEGMENT)) {
+      os.write(new byte[segmentBytes]);
+    }
+    sink = OutputStream.nullOutputStream();
+    fileSink = FileChannel.open(folder.resolve("sink"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    fileSink.close();
+    store.close();
+  }
+
+  @Benchmark
+  public long copyStream() throws IOException {
+    try (InputStream is = store.readFile(SEGMENT)) {
+      return is.transferTo(sink);
+    }
+  }
+
+  @Benchmark
+  public long transferToStream() throws IOException {
+    try (FileChannel ch = (FileChannel) store.readChannel(SEGMENT)) {
+      return transferTo(ch, Channels.newChannel(sink));
+    }
+  }
+
+  @Benchmark
+  public long transferToOutputStream() throws IOException {
+    try (SeekableByteChannel ch = store.readChannel(SEGMENT)) {
+      FileTransfers.transfer(ch, 0, ch.size(), sink);
+      return ch.size();
+    }
+  }
+
+  @Benchmark
+  public long transferToFileChannel() throws IOException {
+    try (FileChannel ch = (FileChannel) store.readChannel(SEGMENT)) {
+      fileSink.position(0);
+      return transferTo(ch, fileSink);
+    }
+  }
+
+  private static long transferTo(final FileChannel from, final WritableByteChannel to) throws IOException {
+    long size = from.size();
+    long pos = 0;
+    while (pos < size) {
+      pos += from.transferTo(pos, size - pos, to);
+    }
+    return size;
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(FileTransfersBenchmark.class.getSimpleName()).build()).run();
+  }
+
+}
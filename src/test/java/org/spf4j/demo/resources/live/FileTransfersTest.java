@@ -0,0 +1,112 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class FileTransfersTest {
+
+  @Test
+  public void testTransferToStream() throws IOException {
+    byte[] content = new byte[200000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    Path file = Files.createTempFile("transfer", ".ts");
+    Files.write(file, content);
+    try (SeekableByteChannel ch = FileChannel.open(file)) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      FileTransfers.transfer(ch, 1000, 150000, bos);
+      Assert.assertArrayEquals(Arrays.copyOfRange(content, 1000, 151000), bos.toByteArray());
+      bos.reset();
+      FileTransfers.transfer(ch, 0, content.length, bos);
+      Assert.assertArrayEquals(content, bos.toByteArray());
+      try {
+        FileTransfers.transfer(ch, 199000, 2000, bos);
+        Assert.fail();
+      } catch (IOException ex) {
+        // expected, past the end.
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testStoreWithCrc32cTrailer() throws IOException {
+    byte[] content = new byte[100003];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (i * 31);
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(content);
+    byte[] body = withTrailer(content, crc.getValue());
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    Assert.assertEquals(content.length, FileTransfers.storeWithCrc32cTrailer(new ByteArrayInputStream(body), bos));
+    Assert.assertArrayEquals(content, bos.toByteArray());
+    bos.reset();
+    Assert.assertEquals(content.length, FileTransfers.storeWithCrc32cTrailer(new TrickleInputStream(body), bos));
+    Assert.assertArrayEquals(content, bos.toByteArray());
+    bos.reset();
+    Assert.assertEquals(0, FileTransfers.storeWithCrc32cTrailer(
+            new ByteArrayInputStream(withTrailer(new byte[0], 0)), bos));
+    body[100] ^= 1;
+    try {
+      FileTransfers.storeWithCrc32cTrailer(new ByteArrayInputStream(body), new ByteArrayOutputStream());
+      Assert.fail();
+    } catch (ChecksumException ex) {
+      // expected, corrupted content.
+    }
+    try {
+      FileTransfers.storeWithCrc32cTrailer(new ByteArrayInputStream(new byte[3]), new ByteArrayOutputStream());
+      Assert.fail();
+    } catch (EOFException ex) {
+      // expected, no trailer.
+    }
+  }
+
+  private static byte[] withTrailer(final byte[] content, final long crc32c) {
+    byte[] body = Arrays.copyOf(content, content.length + 4);
+    body[content.length] = (byte) (crc32c >>> 24);
+    body[content.length + 1] = (byte) (crc32c >>> 16);
+    body[content.length + 2] = (byte) (crc32c >>> 8);
+    body[content.length + 3] = (byte) crc32c;
+    return body;
+  }
+
+  /**
+   * Returns at most 3 bytes per read, less than a trailer.
+   */
+  private static final class TrickleInputStream extends InputStream {
+
+    private final ByteArrayInputStream in;
+
+    TrickleInputStream(final byte[] content) {
+      this.in = new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public int read() {
+      return in.read();
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      return in.read(b, off, Math.min(len, 3));
+    }
+  }
+
+}
@@ -0,0 +1,54 @@
+package org.spf4j.demo.resources.live;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class HashRingTest {
+
+  @Test
+  public void testPlacement() throws UnknownHostException {
+    Set<InetAddress> members = new HashSet<>();
+    for (int i = 1; i <= 5; i++) {
+      members.add(InetAddress.getByName("10.0.0." + i));
+    }
+    HashRing ring = new HashRing(64).withMembers(members);
+    Assert.assertSame(ring, ring.withMembers(new HashSet<>(members)));
+    int[] counts = new int[6];
+    int moved = 0;
+    InetAddress removed = InetAddress.getByName("10.0.0.3");
+    Set<InetAddress> fewer = new HashSet<>(members);
+    fewer.remove(removed);
+    HashRing smaller = ring.withMembers(fewer);
+    for (int i = 0; i < 1000; i++) {
+      String stream = "grp/stream" + i;
+      List<InetAddress> replicas = ring.replicas(stream, 2);
+      Assert.assertEquals(2, replicas.size());
+      Assert.assertFalse(replicas.get(0).equals(replicas.get(1)));
+      Assert.assertEquals(replicas, new HashRing(64).withMembers(members).replicas(stream, 2));
+      counts[replicas.get(0).getAddress()[3]]++;
+      List<InetAddress> after = smaller.replicas(stream, 2);
+      Assert.assertFalse(after.contains(removed));
+      if (!replicas.contains(removed)) {
+        Assert.assertEquals(replicas, after);
+      } else {
+        moved++;
+      }
+    }
+    for (int i = 1; i <= 5; i++) {
+      Assert.assertTrue("node " + i + " owns " + counts[i], counts[i] > 100);
+    }
+    // only the streams of the removed node move.
+    Assert.assertTrue(moved < 600);
+    Assert.assertEquals(5, ring.replicas("x", 10).size());
+    Assert.assertTrue(new HashRing(64).replicas("x", 2).isEmpty());
+  }
+
+}
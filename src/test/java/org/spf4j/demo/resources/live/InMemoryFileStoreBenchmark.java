@@ -0,0 +1,141 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Publish and serve latency of the InMemoryFileStore and of the FSFileStore: every writer stores the next segment
+ * of its stream, in chunks like an ingest, and every reader reads one of the last segments of a stream.
+ * The in memory store is sized so that the retained segments fit in the budget.
+ * Run the main method with the test classpath, after mvn test-compile (which generates the JMH harness).
+ *
+ * @author Zoltan Farkas
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InMemoryFileStoreBenchmark {
+
+  private static final int NR_STREAMS = 16;
+
+  private static final int NR_SEGMENTS = 3;
+
+  @Param({"1048576"})
+  private int segmentBytes;
+
+  private InMemoryFileStore memoryStore;
+
+  private FSFileStore fsStore;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, TimeoutException {
+    memoryStore = new InMemoryFileStore(4L * NR_STREAMS * NR_SEGMENTS * segmentBytes, 10, TimeUnit.MINUTES);
+    fsStore = new FSFileStore(Files.createTempDirectory("memorybench"), 10, TimeUnit.MINUTES);
+    byte[] segment = new byte[segmentBytes];
+    for (int s = 0; s < NR_STREAMS; s++) {
+      for (int i = 0; i < NR_SEGMENTS; i++) {
+        for (FileStore store : new FileStore[] {memoryStore, fsStore}) {
+          try (OutputStream os = store.storeFile(segmentPath(s, i))) {
+            os.write(segment);
+          }
+        }
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    memoryStore.close();
+    fsStore.close();
+  }
+
+  private static String segmentPath(final int stream, final int segment) {
+    return "grp/stream" + stream + '/' + segment + ".ts";
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    private final byte[] chunk = new byte[64 * 1024];
+
+    private int next;
+
+    String nextSegment() {
+      int n = next++;
+      return segmentPath(n % NR_STREAMS, (n / NR_STREAMS) % NR_SEGMENTS);
+    }
+
+    long read(final SeekableByteChannel channel) throws IOException {
+      long total = 0;
+      try (SeekableByteChannel ch = channel) {
+        int nr;
+        while ((nr = ch.read(buffer)) >= 0) {
+          total += nr;
+          buffer.clear();
+        }
+      }
+      return total;
+    }
+
+    void write(final FileStore store, final int nrBytes) throws IOException, TimeoutException {
+      try (OutputStream os = store.storeFile(nextSegment())) {
+        for (int written = 0; written < nrBytes; written += chunk.length) {
+          os.write(chunk, 0, Math.min(chunk.length, nrBytes - written));
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public long readInMemory(final Client client) throws IOException {
+    return client.read(memoryStore.readChannel(client.nextSegment()));
+  }
+
+  @Benchmark
+  public long readFSFileStore(final Client client) throws IOException {
+    return client.read(fsStore.readChannel(client.nextSegment()));
+  }
+
+  @Benchmark
+  public void storeInMemory(final Client client) throws IOException, TimeoutException {
+    client.write(memoryStore, segmentBytes);
+  }
+
+  @Benchmark
+  public void storeFSFileStore(final Client client) throws IOException, TimeoutException {
+    client.write(fsStore, segmentBytes);
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(InMemoryFileStoreBenchmark.class.getSimpleName()).build()).run();
+  }
+
+}
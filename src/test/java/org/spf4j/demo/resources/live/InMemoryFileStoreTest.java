@@ -0,0 +1,114 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.CloseableIterable;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class InMemoryFileStoreTest {
+
+  @Test
+  public void testStoreAndRead() throws IOException {
+    try (InMemoryFileStore store = new InMemoryFileStore(1024 * 1024, 10, TimeUnit.SECONDS)) {
+      try (OutputStream os = store.storeFile("grp/s0.ts")) {
+        os.write(new byte[] {1, 2, 3});
+      }
+      try (OutputStream os = store.storeFile("grp/s1.ts")) {
+        os.write(4);
+        Abortable.abort(os, new IOException("upload failed"));
+      }
+      Assert.assertNull(store.getFileInfo("grp/s1.ts"));
+      Assert.assertEquals(3, store.getFileInfo("grp/../grp/s0.ts").getSize());
+      try (InputStream is = store.readFile("grp/s0.ts")) {
+        Assert.assertEquals(1, is.read());
+        Assert.assertEquals(2, is.read());
+        Assert.assertEquals(3, is.read());
+        Assert.assertEquals(-1, is.read());
+      }
+      Assert.assertEquals(Collections.singletonList("grp"), list(store, ""));
+      Assert.assertEquals(Collections.singletonList("s0.ts"), list(store, "grp"));
+      Assert.assertNull(store.getFileInfo("grp"));
+      Assert.assertNull(store.list("other"));
+    }
+  }
+
+  @Test
+  public void testBudgetAndRetention() throws IOException, InterruptedException {
+    try (InMemoryFileStore store = new InMemoryFileStore(25, 200, TimeUnit.MILLISECONDS)) {
+      for (int i = 0; i < 4; i++) {
+        try (OutputStream os = store.storeFile("grp/s" + i + ".ts")) {
+          os.write(new byte[10]);
+        }
+      }
+      try (OutputStream os = store.storeFile("grp2/s.ts")) {
+        os.write(new byte[10]);
+      }
+      // the oldest files of the largest group are evicted, the newest file of a group is always kept.
+      Assert.assertEquals(Arrays.asList("s3.ts"), list(store, "grp"));
+      Assert.assertEquals(20, store.getBytes());
+      Thread.sleep(300);
+      store.cleanup();
+      Assert.assertEquals(0, store.getBytes());
+      Assert.assertNull(store.readChannel("grp/s3.ts"));
+      Assert.assertEquals(Collections.emptyList(), list(store, ""));
+    }
+  }
+
+  @Test
+  public void testCaptureReserved() throws IOException {
+    try (InMemoryFileStore store = new InMemoryFileStore(25, 10, TimeUnit.SECONDS)) {
+      try (OutputStream os = store.storeFile("grp/s0.ts")) {
+        os.write(new byte[10]);
+      }
+      try (OutputStream os = store.storeFile("grp2/s0.ts")) {
+        os.write(new byte[10]);
+      }
+      // no group has older files, the newest files are evicted to make room for the capture.
+      try (OutputStream os = store.storeFile("grp3/s0.ts")) {
+        os.write(new byte[5]);
+        os.write(new byte[15]);
+      }
+      Assert.assertEquals(20, store.getFileInfo("grp3/s0.ts").getSize());
+      Assert.assertEquals(20, store.getBytes());
+      OutputStream os = store.storeFile("grp3/s1.ts");
+      try {
+        os.write(new byte[30]);
+        Assert.fail();
+      } catch (IOException ex) {
+        // larger than the budget.
+        Abortable.abort(os, ex);
+      }
+      Assert.assertNotNull(store.getFileInfo("grp3/s0.ts"));
+      try (OutputStream os2 = store.storeFile("grp3/s2.ts")) {
+        os2.write(new byte[5]);
+      }
+      Assert.assertEquals(25, store.getBytes());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPath() throws IOException {
+    try (InMemoryFileStore store = new InMemoryFileStore(1024, 10, TimeUnit.SECONDS)) {
+      store.storeFile("../someFile.ts");
+    }
+  }
+
+  private static List<String> list(final FileStore store, final String path) throws IOException {
+    List<String> names = new ArrayList<>();
+    try (CloseableIterable<String> files = store.list(path)) {
+      files.forEach(names::add);
+    }
+    return names;
+  }
+
+}
@@ -0,0 +1,134 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Live edge read latency: the last segments of a few streams, read from the live edge store (from memory),
+ * and from the FSFileStore it persists to (from the page cache at best).
+ * Run the main method with the test classpath, after mvn test-compile (which generates the JMH harness).
+ *
+ * @author Zoltan Farkas
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LiveEdgeFileStoreBenchmark {
+
+  private static final int NR_STREAMS = 16;
+
+  private static final int NR_SEGMENTS = 3;
+
+  @Param({"1048576"})
+  private int segmentBytes;
+
+  private Path folder;
+
+  private FSFileStore fsStore;
+
+  private LiveEdgeFileStore edgeStore;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, TimeoutException, InterruptedException {
+    folder = Files.createTempDirectory("edgebench");
+    fsStore = new FSFileStore(folder, 10, TimeUnit.MINUTES);
+    edgeStore = new LiveEdgeFileStore(fsStore, NR_SEGMENTS, 2L * NR_STREAMS * NR_SEGMENTS * segmentBytes,
+            segmentBytes, 10000);
+    byte[] segment = new byte[segmentBytes];
+    for (int s = 0; s < NR_STREAMS; s++) {
+      for (int i = 0; i < NR_SEGMENTS; i++) {
+        try (OutputStream os = edgeStore.storeFile(segmentPath(s, i))) {
+          os.write(segment);
+        }
+      }
+    }
+    // the FSFileStore reads need the segments persisted.
+    long deadline = System.currentTimeMillis() + 60000;
+    for (int s = 0; s < NR_STREAMS; s++) {
+      for (int i = 0; i < NR_SEGMENTS; i++) {
+        while (fsStore.getFileInfo(segmentPath(s, i)) == null) {
+          if (System.currentTimeMillis() > deadline) {
+            throw new IOException("Not persisted " + segmentPath(s, i));
+          }
+          Thread.sleep(10);
+        }
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    edgeStore.close();
+  }
+
+  private static String segmentPath(final int stream, final int segment) {
+    return "grp/stream" + stream + '/' + segment + ".ts";
+  }
+
+  @State(Scope.Thread)
+  public static class Reader {
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    private int next;
+
+    String nextSegment() {
+      int n = next++;
+      return segmentPath(n % NR_STREAMS, (n / NR_STREAMS) % NR_SEGMENTS);
+    }
+
+    long read(final SeekableByteChannel channel) throws IOException {
+      long total = 0;
+      try (SeekableByteChannel ch = channel) {
+        int nr;
+        while ((nr = ch.read(buffer)) >= 0) {
+          total += nr;
+          buffer.clear();
+        }
+      }
+      return total;
+    }
+  }
+
+  @Benchmark
+  public long readLiveEdge(final Reader reader) throws IOException {
+    return reader.read(edgeStore.readChannel(reader.nextSegment()));
+  }
+
+  @Benchmark
+  public long readFSFileStore(final Reader reader) throws IOException {
+    return reader.read(fsStore.readChannel(reader.nextSegment()));
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(LiveEdgeFileStoreBenchmark.class.getSimpleName()).build()).run();
+  }
+
+}
@@ -0,0 +1,209 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.CloseableIterable;
+
+/**
+ *
+ * @author Zoltan Farkas
+ */
+public class LiveEdgeFileStoreTest {
+
+  @Test
+  public void testStreamOf() {
+    Assert.assertEquals("grp/stream", HlsNames.streamOf("grp/stream123.ts"));
+    Assert.assertEquals("grp/stream", HlsNames.streamOf("grp/stream.m3u8"));
+    Assert.assertEquals("grp/5", HlsNames.streamOf("grp/5.ts"));
+    Assert.assertEquals("grp/cam1", HlsNames.streamOf("grp/cam1.m3u8"));
+    Assert.assertEquals("grp/cam1", HlsNames.streamOf("grp/cam10.ts", "grp/cam1"::equals));
+    Assert.assertEquals("grp/cam1", HlsNames.streamOf("grp/cam1123.ts", "grp/cam1"::equals));
+    Assert.assertEquals("grp/cam", HlsNames.streamOf("grp/cam20.ts", "grp/cam1"::equals));
+  }
+
+  @Test
+  public void testStreamOfKnownStreams() {
+    HlsStreams streams = new HlsStreams(2);
+    Assert.assertEquals("grp/cam", streams.streamOf("grp/cam10.ts"));
+    Assert.assertEquals("grp/cam1", streams.streamOf("grp/cam1.m3u8"));
+    Assert.assertEquals("grp/cam2", streams.streamOf("grp/cam2.m3u8"));
+    Assert.assertEquals("grp/cam1", streams.streamOf("grp/cam10.ts"));
+    Assert.assertEquals("grp/cam2", streams.streamOf("grp/cam21.ts"));
+    Assert.assertEquals("grp/cam", streams.streamOf("grp/cam.m3u8"));
+    Assert.assertEquals("grp/cam", streams.streamOf("grp/cam7.ts"));
+    // the least recently seen stream, cam1, is forgotten.
+    Assert.assertEquals("grp/cam", streams.streamOf("grp/cam12.ts"));
+    Assert.assertEquals("grp/cam2", streams.streamOf("grp/cam21.ts"));
+  }
+
+  @Test
+  public void testWriteBehind() throws IOException, TimeoutException, InterruptedException {
+    Path folder = Files.createTempDirectory("test");
+    try (LiveEdgeFileStore store = new LiveEdgeFileStore(new FSFileStore(folder, 10, TimeUnit.SECONDS),
+            2, 1024 * 1024, 256 * 1024, 1000)) {
+      for (int i = 0; i < 3; i++) {
+        try (OutputStream os = store.storeFile("grp/s" + i + ".ts")) {
+          os.write(new byte[] {(byte) i, 2, 3});
+        }
+        try (InputStream is = store.readFile("grp/s" + i + ".ts")) {
+          Assert.assertEquals(i, is.read());
+        }
+      }
+      Assert.assertEquals(3, store.getFileInfo("grp/s0.ts").getSize());
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!Files.exists(folder.resolve("grp/s2.ts")) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertTrue(Files.exists(folder.resolve("grp/s2.ts")));
+      while (store.getUsedBytes() > 2 * 64 * 1024 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(2 * 64 * 1024, store.getUsedBytes());
+      try (InputStream is = store.readFile("grp/s0.ts")) {
+        Assert.assertEquals(0, is.read());
+      }
+    }
+  }
+
+  @Test
+  public void testFollow() throws IOException, TimeoutException {
+    Path folder = Files.createTempDirectory("test");
+    try (LiveEdgeFileStore store = new LiveEdgeFileStore(new FSFileStore(folder, 10, TimeUnit.SECONDS),
+            2, 1024 * 1024, 64 * 1024, 1000)) {
+      Assert.assertNull(store.follow("grp/s0.ts"));
+      try (OutputStream os = store.storeFile("grp/s0.ts")) {
+        os.write(new byte[] {1, 2, 3});
+        try (InputStream is = store.follow("grp/s0.ts")) {
+          Assert.assertEquals(1, is.read());
+          Assert.assertEquals(2, is.read());
+          Assert.assertEquals(3, is.read());
+          os.write(4);
+          Assert.assertEquals(4, is.read());
+          // switch to write through, the follower continues from the wrapped store.
+          os.write(new byte[70 * 1024]);
+          Assert.assertEquals(0, is.read());
+          os.close();
+          Assert.assertEquals(70 * 1024 - 1, is.skip(70 * 1024));
+          Assert.assertEquals(-1, is.read());
+        }
+      }
+      try (OutputStream os = store.storeFile("grp/s1.ts")) {
+        os.write(new byte[] {5, 6});
+        InputStream is = store.follow("grp/s1.ts");
+        os.close();
+        Assert.assertArrayEquals(new byte[] {5, 6}, is.readAllBytes());
+      }
+    }
+  }
+
+  @Test
+  public void testPersistRetried() throws IOException, TimeoutException, InterruptedException {
+    AtomicInteger failures = new AtomicInteger(1);
+    InMemoryFileStore memStore = new InMemoryFileStore(1024 * 1024, 10, TimeUnit.SECONDS);
+    try (LiveEdgeFileStore store = new LiveEdgeFileStore(new FailingFileStore(memStore, failures),
+            1, 1024 * 1024, 64 * 1024, 10000)) {
+      for (int i = 0; i < 3; i++) {
+        try (OutputStream os = store.storeFile("grp/s" + i + ".ts")) {
+          os.write(new byte[] {(byte) i});
+        }
+      }
+      long deadline = System.currentTimeMillis() + 10000;
+      while (memStore.getFileInfo("grp/s0.ts") == null && System.currentTimeMillis() < deadline) {
+        // out of the live edge, but not persisted yet.
+        try (InputStream is = store.readFile("grp/s0.ts")) {
+          Assert.assertEquals(0, is.read());
+        }
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(1, memStore.getFileInfo("grp/s0.ts").getSize());
+      Assert.assertEquals(0, failures.get());
+    }
+  }
+
+  @Test
+  public void testLargeFilesWrittenThrough() throws IOException, TimeoutException {
+    Path folder = Files.createTempDirectory("test");
+    try (LiveEdgeFileStore store = new LiveEdgeFileStore(new FSFileStore(folder, 10, TimeUnit.SECONDS),
+            2, 256 * 1024, 64 * 1024, 1000)) {
+      try (OutputStream os = store.storeFile("grp/big0.ts")) {
+        os.write(new byte[100 * 1024]);
+        Assert.assertEquals(0, store.getUsedBytes());
+      }
+      Assert.assertEquals(100 * 1024, Files.size(folder.resolve("grp/big0.ts")));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMaxEntrySize() throws IOException {
+    new LiveEdgeFileStore(new InMemoryFileStore(1024 * 1024, 10, TimeUnit.SECONDS), 2, 256 * 1024, 0, 1000).close();
+  }
+
+  /**
+   * A store whose first stores fail.
+   */
+  private static final class FailingFileStore implements FileStore {
+
+    private final FileStore wrapped;
+
+    private final AtomicInteger failures;
+
+    FailingFileStore(final FileStore wrapped, final AtomicInteger failures) {
+      this.wrapped = wrapped;
+      this.failures = failures;
+    }
+
+    @Override
+    public void close() throws IOException {
+      wrapped.close();
+    }
+
+    @Override
+    public CloseableIterable<String> list(final String path) throws IOException {
+      return wrapped.list(path);
+    }
+
+    @Override
+    public InputStream readFile(final String filePath) throws IOException {
+      return wrapped.readFile(filePath);
+    }
+
+    @Override
+    public SeekableByteChannel readChannel(final String filePath) throws IOException {
+      return wrapped.readChannel(filePath);
+    }
+
+    @Override
+    public FileInfo getFileInfo(final String filePath) throws IOException {
+      return wrapped.getFileInfo(filePath);
+    }
+
+    @Override
+    public OutputStream storeFile(final String filePath, final long lastModifiedMillis)
+            throws IOException, TimeoutException {
+      if (failures.getAndUpdate((f) -> Math.max(0, f - 1)) > 0) {
+        throw new IOException("Disk full " + filePath);
+      }
+      return wrapped.storeFile(filePath, lastModifiedMillis);
+    }
+
+    @Override
+    public void addListener(final FileStoreListener listener) {
+      wrapped.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(final FileStoreListener listener) {
+      wrapped.removeListener(listener);
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class NonBlockingIngestTest {
+
+  @Test
+  public void testIngest() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    byte[] content = new byte[200000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    try (InMemoryFileStore store = new InMemoryFileStore(1024 * 1024, 10, TimeUnit.SECONDS)) {
+      BurstInputStream in = new BurstInputStream();
+      NonBlockingIngest ingest = NonBlockingIngest.start(in, store.storeFile("grp/s0.ts"));
+      Assert.assertSame(ingest, in.listener);
+      in.receive(Arrays.copyOfRange(content, 0, 1000));
+      in.receive(Arrays.copyOfRange(content, 1000, 150000));
+      Assert.assertNull(store.getFileInfo("grp/s0.ts"));
+      in.receive(Arrays.copyOfRange(content, 150000, content.length));
+      in.end();
+      Assert.assertEquals(content.length, ingest.getResult().get(10, TimeUnit.SECONDS).longValue());
+      Assert.assertEquals(content.length, store.getFileInfo("grp/s0.ts").getSize());
+      try (InputStream is = store.readFile("grp/s0.ts")) {
+        Assert.assertArrayEquals(content, is.readAllBytes());
+      }
+    }
+  }
+
+  @Test
+  public void testOnlyFullChunksWritten() throws IOException, InterruptedException, ExecutionException,
+          TimeoutException {
+    List<Integer> written = new ArrayList<>();
+    ChunkCollector sink = new ChunkCollector(written);
+    BurstInputStream in = new BurstInputStream();
+    NonBlockingIngest ingest = NonBlockingIngest.start(in, sink);
+    for (int i = 0; i < 100; i++) {
+      in.receive(new byte[1000]);
+    }
+    in.end();
+    Assert.assertEquals(100000, ingest.getResult().get(10, TimeUnit.SECONDS).longValue());
+    Assert.assertEquals(Arrays.asList(65536, 100000 - 65536), written);
+    Assert.assertTrue(sink.closed);
+  }
+
+  @Test
+  public void testAbort() throws IOException, InterruptedException {
+    try (InMemoryFileStore store = new InMemoryFileStore(1024 * 1024, 10, TimeUnit.SECONDS)) {
+      BurstInputStream in = new BurstInputStream();
+      NonBlockingIngest ingest = NonBlockingIngest.start(in, store.storeFile("grp/s0.ts"));
+      in.receive(new byte[] {1, 2, 3});
+      ingest.abort(new TimeoutException("upload timed out"));
+      in.end();
+      try {
+        ingest.getResult().get();
+        Assert.fail();
+      } catch (ExecutionException ex) {
+        Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+      }
+      Assert.assertNull(store.getFileInfo("grp/s0.ts"));
+    }
+  }
+
+  private static final class ChunkCollector extends OutputStream implements ChunkSink {
+
+    private final List<Integer> written;
+
+    private volatile boolean closed;
+
+    ChunkCollector(final List<Integer> written) {
+      this.written = written;
+    }
+
+    @Override
+    public void write(final ChunkPool.Chunk chunk) {
+      written.add(chunk.length());
+    }
+
+    @Override
+    public void write(final int b) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  /**
+   * A request body that receives data in bursts, notifying the listener like a container does.
+   */
+  private static final class BurstInputStream extends ServletInputStream {
+
+    private final Deque<Integer> ready = new ArrayDeque<>();
+
+    private boolean finished;
+
+    private ReadListener listener;
+
+    void receive(final byte[] data) throws IOException {
+      for (byte b : data) {
+        ready.addLast(b & 0xFF);
+      }
+      listener.onDataAvailable();
+    }
+
+    void end() throws IOException {
+      finished = true;
+      listener.onAllDataRead();
+    }
+
+    @Override
+    public boolean isFinished() {
+      return finished && ready.isEmpty();
+    }
+
+    @Override
+    public boolean isReady() {
+      return !ready.isEmpty();
+    }
+
+    @Override
+    public void setReadListener(final ReadListener readListener) {
+      this.listener = readListener;
+    }
+
+    @Override
+    public int read() {
+      Integer b = ready.pollFirst();
+      if (b == null) {
+        throw new IllegalStateException("Read while not ready");
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      int nr = Math.min(len, ready.size());
+      for (int i = 0; i < nr; i++) {
+        b[off + i] = (byte) read();
+      }
+      return nr;
+    }
+  }
+
+}
@@ -0,0 +1,42 @@
+package org.spf4j.demo.resources.live;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class PeerReconcilerTest {
+
+  @Test
+  public void testToPull() {
+    List<FileManifests.Entry> local = Arrays.asList(
+            new FileManifests.Entry("same.ts", 10, 1000, 0x1234),
+            new FileManifests.Entry("truncated.ts", 5, 1000, 0x1234),
+            new FileManifests.Entry("corrupt.ts", 10, 1000, 0x1234),
+            new FileManifests.Entry("newer.m3u8", 20, 3000, 0x1234),
+            new FileManifests.Entry("nocrc.ts", 10, 1000),
+            new FileManifests.Entry("replica.ts", 10, 2000, 0x1234));
+    List<FileManifests.Entry> peer = Arrays.asList(
+            new FileManifests.Entry("same.ts", 10, 2000, 0x1234),
+            new FileManifests.Entry("truncated.ts", 10, 2000, 0x1234),
+            new FileManifests.Entry("corrupt.ts", 10, 2000, 0x4321),
+            new FileManifests.Entry("newer.m3u8", 30, 2000, 0x4321),
+            new FileManifests.Entry("nocrc.ts", 10, 2000, 0x4321),
+            new FileManifests.Entry("missing.ts", 10, 2000, 0x1234),
+            new FileManifests.Entry("old.ts", 10, 500, 0x1234),
+            // a copy has the modification time of the original, a differing copy does not replace it.
+            new FileManifests.Entry("replica.ts", 10, 2000, 0x4321));
+    List<FileManifests.Entry> pulls = PeerReconciler.toPull(local, peer, 1000);
+    Assert.assertEquals(3, pulls.size());
+    Assert.assertEquals("truncated.ts", pulls.get(0).getName());
+    Assert.assertEquals("corrupt.ts", pulls.get(1).getName());
+    Assert.assertEquals("missing.ts", pulls.get(2).getName());
+    Assert.assertTrue(PeerReconciler.toPull(peer, peer, 0).isEmpty());
+    Assert.assertEquals(peer.size(), PeerReconciler.toPull(Collections.emptyList(), peer, 0).size());
+  }
+
+}
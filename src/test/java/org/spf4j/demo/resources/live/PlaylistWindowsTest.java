@@ -0,0 +1,155 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class PlaylistWindowsTest {
+
+  @Test
+  public void testWindows() throws IOException {
+    try (InMemoryFileStore store = new InMemoryFileStore(1024 * 1024, 10, TimeUnit.SECONDS)) {
+      PlaylistWindows windows = new PlaylistWindows(store, 4);
+      Assert.assertNull(windows.render("grp/s.m3u8", 2));
+      store(store, "grp/s.m3u8", playlist(5, false));
+      PlaylistWindows.Rendered rendered = windows.render("grp/s.m3u8", 2);
+      Assert.assertEquals("#EXTM3U\n"
+              + "#EXT-X-VERSION:3\n"
+              + "#EXT-X-TARGETDURATION:10\n"
+              + "#EXT-X-MEDIA-SEQUENCE:13\n"
+              + "#EXT-X-DISCONTINUITY-SEQUENCE:1\n"
+              + "#EXTINF:10.000000,\n"
+              + "s3.ts\n"
+              + "#EXTINF:10.000000,\n"
+              + "s4.ts\n", content(rendered));
+      Assert.assertSame(rendered, windows.render("grp/s.m3u8", 2));
+      Assert.assertEquals(1, windows.getNrIndexed());
+      // capped to 4 segments.
+      Assert.assertEquals("#EXTM3U\n"
+              + "#EXT-X-VERSION:3\n"
+              + "#EXT-X-TARGETDURATION:10\n"
+              + "#EXT-X-MEDIA-SEQUENCE:11\n"
+              + "#EXTINF:10.000000,\n"
+              + "s1.ts\n"
+              + "#EXT-X-DISCONTINUITY\n"
+              + "#EXTINF:10.000000,\n"
+              + "s2.ts\n"
+              + "#EXTINF:10.000000,\n"
+              + "s3.ts\n"
+              + "#EXTINF:10.000000,\n"
+              + "s4.ts\n", content(windows.render("grp/s.m3u8", 100)));
+      store(store, "grp/s.m3u8", playlist(6, true));
+      PlaylistWindows.Rendered next = windows.render("grp/s.m3u8", 1);
+      Assert.assertEquals("#EXTM3U\n"
+              + "#EXT-X-VERSION:3\n"
+              + "#EXT-X-TARGETDURATION:10\n"
+              + "#EXT-X-MEDIA-SEQUENCE:15\n"
+              + "#EXT-X-DISCONTINUITY-SEQUENCE:1\n"
+              + "#EXTINF:10.000000,\n"
+              + "s5.ts\n"
+              + "#EXT-X-ENDLIST\n", content(next));
+      Assert.assertTrue(rendered.getCrc32c() != next.getCrc32c());
+    }
+  }
+
+  @Test
+  public void testKeyMapAndDateTime() throws IOException {
+    try (InMemoryFileStore store = new InMemoryFileStore(1024 * 1024, 10, TimeUnit.SECONDS)) {
+      PlaylistWindows windows = new PlaylistWindows(store, 4);
+      store(store, "grp/s.m3u8", "#EXTM3U\n#EXT-X-VERSION:7\n#EXT-X-TARGETDURATION:4\n"
+              + "#EXT-X-MEDIA-SEQUENCE:0\n"
+              + "#EXT-X-KEY:METHOD=AES-128,URI=\"k0\"\n"
+              + "#EXT-X-MAP:URI=\"init.mp4\"\n"
+              + "#EXT-X-PROGRAM-DATE-TIME:2020-01-01T00:00:00.000Z\n"
+              + "#EXTINF:4.000,\ns0.m4s\n"
+              + "#EXTINF:4.000,\ns1.m4s\n"
+              + "#EXT-X-KEY:METHOD=AES-128,URI=\"k1\"\n"
+              + "#EXTINF:4.000,\ns2.m4s\n"
+              + "#EXTINF:4.000,\ns3.m4s\n"
+              + "#EXT-X-DISCONTINUITY\n"
+              + "#EXTINF:4.000,\ns4.m4s\n");
+      Assert.assertEquals("#EXTM3U\n"
+              + "#EXT-X-VERSION:7\n"
+              + "#EXT-X-TARGETDURATION:4\n"
+              + "#EXT-X-MEDIA-SEQUENCE:3\n"
+              + "#EXT-X-KEY:METHOD=AES-128,URI=\"k1\"\n"
+              + "#EXT-X-MAP:URI=\"init.mp4\"\n"
+              + "#EXT-X-PROGRAM-DATE-TIME:2020-01-01T00:00:12.000Z\n"
+              + "#EXTINF:4.000,\n"
+              + "s3.m4s\n"
+              + "#EXT-X-DISCONTINUITY\n"
+              + "#EXTINF:4.000,\n"
+              + "s4.m4s\n", content(windows.render("grp/s.m3u8", 2)));
+      // the first segment is trimmed, its tags are carried by the next one.
+      Assert.assertEquals("#EXTM3U\n"
+              + "#EXT-X-VERSION:7\n"
+              + "#EXT-X-TARGETDURATION:4\n"
+              + "#EXT-X-MEDIA-SEQUENCE:1\n"
+              + "#EXT-X-KEY:METHOD=AES-128,URI=\"k0\"\n"
+              + "#EXT-X-MAP:URI=\"init.mp4\"\n"
+              + "#EXT-X-PROGRAM-DATE-TIME:2020-01-01T00:00:04.000Z\n"
+              + "#EXTINF:4.000,\n"
+              + "s1.m4s\n"
+              + "#EXT-X-PROGRAM-DATE-TIME:2020-01-01T00:00:08.000Z\n"
+              + "#EXT-X-KEY:METHOD=AES-128,URI=\"k1\"\n"
+              + "#EXTINF:4.000,\n"
+              + "s2.m4s\n"
+              + "#EXT-X-PROGRAM-DATE-TIME:2020-01-01T00:00:12.000Z\n"
+              + "#EXTINF:4.000,\n"
+              + "s3.m4s\n"
+              + "#EXT-X-DISCONTINUITY\n"
+              + "#EXTINF:4.000,\n"
+              + "s4.m4s\n", content(windows.render("grp/s.m3u8", 10)));
+    }
+  }
+
+  @Test
+  public void testPlaylistTypeDropped() throws IOException {
+    try (InMemoryFileStore store = new InMemoryFileStore(1024 * 1024, 10, TimeUnit.SECONDS)) {
+      PlaylistWindows windows = new PlaylistWindows(store, 4);
+      store(store, "grp/s.m3u8", "#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-PLAYLIST-TYPE:EVENT\n"
+              + "#EXT-X-TARGETDURATION:10\n#EXT-X-MEDIA-SEQUENCE:0\n"
+              + "#EXTINF:10.000000,\ns0.ts\n"
+              + "#EXTINF:10.000000,\ns1.ts\n");
+      Assert.assertEquals("#EXTM3U\n"
+              + "#EXT-X-VERSION:3\n"
+              + "#EXT-X-TARGETDURATION:10\n"
+              + "#EXT-X-MEDIA-SEQUENCE:1\n"
+              + "#EXTINF:10.000000,\n"
+              + "s1.ts\n", content(windows.render("grp/s.m3u8", 1)));
+    }
+  }
+
+  private static String playlist(final int nrSegments, final boolean ended) {
+    StringBuilder sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:10\n"
+            + "#EXT-X-MEDIA-SEQUENCE:10\n");
+    for (int i = 0; i < nrSegments; i++) {
+      if (i == 2) {
+        sb.append("#EXT-X-DISCONTINUITY\n");
+      }
+      sb.append("#EXTINF:10.000000,\ns").append(i).append(".ts\n");
+    }
+    if (ended) {
+      sb.append("#EXT-X-ENDLIST\n");
+    }
+    return sb.toString();
+  }
+
+  private static void store(final InMemoryFileStore store, final String filePath, final String content)
+          throws IOException {
+    try (OutputStream os = store.storeFile(filePath)) {
+      os.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static String content(final PlaylistWindows.Rendered rendered) {
+    return new String(rendered.getContent(), StandardCharsets.UTF_8);
+  }
+
+}
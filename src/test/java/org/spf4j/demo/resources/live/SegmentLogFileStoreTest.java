@@ -0,0 +1,164 @@
+package org.spf4j.demo.resources.live;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.CloseableIterable;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class SegmentLogFileStoreTest {
+
+  @Test
+  public void testStoreAndRecover() throws IOException {
+    Path folder = Files.createTempDirectory("test");
+    byte[] big = new byte[10000];
+    Arrays.fill(big, (byte) 7);
+    try (SegmentLogFileStore store = new SegmentLogFileStore(folder, 8192, 10, TimeUnit.SECONDS)) {
+      try (OutputStream os = store.storeFile("grp/s0.ts")) {
+        os.write(new byte[] {1, 2, 3});
+      }
+      try (OutputStream os = store.storeFile("grp/s.m3u8")) {
+        os.write(1);
+      }
+      try (OutputStream os = store.storeFile("grp/s.m3u8")) {
+        os.write(2);
+      }
+      try (OutputStream os = store.storeFile("grp/s1.ts")) {
+        os.write(big);
+      }
+      try (OutputStream os = store.storeFile("grp/s2.ts")) {
+        os.write(9);
+        Abortable.abort(os, new IOException("upload failed"));
+      }
+      assertContent(store, "grp/s0.ts", new byte[] {1, 2, 3});
+      assertContent(store, "grp/s.m3u8", new byte[] {2});
+      assertContent(store, "grp/s1.ts", big);
+      Assert.assertNull(store.getFileInfo("grp/s2.ts"));
+      Assert.assertEquals(2, store.getNrLogs());
+    }
+    try (SegmentLogFileStore store = new SegmentLogFileStore(folder, 8192, 10, TimeUnit.SECONDS)) {
+      assertContent(store, "grp/s0.ts", new byte[] {1, 2, 3});
+      assertContent(store, "grp/s.m3u8", new byte[] {2});
+      assertContent(store, "grp/s1.ts", big);
+      CRC32C crc = new CRC32C();
+      crc.update(big, 0, big.length);
+      Assert.assertEquals(crc.getValue(), store.getFileInfo("grp/s1.ts").getCrc32c());
+      Assert.assertEquals(Collections.singletonList("grp"), list(store, ""));
+      Assert.assertEquals(Arrays.asList("s.m3u8", "s0.ts", "s1.ts"), list(store, "grp"));
+      Assert.assertNull(store.list("other"));
+      Assert.assertNull(store.getFileInfo("grp"));
+      try (OutputStream os = store.storeFile("grp/s2.ts")) {
+        os.write(4);
+      }
+      assertContent(store, "grp/s2.ts", new byte[] {4});
+    }
+  }
+
+  @Test
+  public void testRetention() throws IOException, InterruptedException {
+    Path folder = Files.createTempDirectory("test");
+    try (SegmentLogFileStore store = new SegmentLogFileStore(folder, 8192, 100, TimeUnit.MILLISECONDS)) {
+      try (OutputStream os = store.storeFile("grp/s0.ts")) {
+        os.write(1);
+      }
+      Thread.sleep(200);
+      store.cleanup();
+      Assert.assertNull(store.getFileInfo("grp/s0.ts"));
+      Assert.assertEquals(0, store.getNrLogs());
+      Assert.assertFalse(Files.exists(folder.resolve("grp")));
+      // the stream logs were retired, the next file goes to new ones.
+      try (OutputStream os = store.storeFile("grp/s1.ts")) {
+        os.write(2);
+      }
+      assertContent(store, "grp/s1.ts", new byte[] {2});
+      Assert.assertEquals(1, store.getNrLogs());
+    }
+  }
+
+  @Test
+  public void testRetiredMappedBytes() throws IOException, InterruptedException {
+    Path folder = Files.createTempDirectory("test");
+    try (SegmentLogFileStore store = new SegmentLogFileStore(folder, 8192, 100, TimeUnit.MILLISECONDS)) {
+      try (OutputStream os = store.storeFile("grp/s0.ts")) {
+        os.write(1);
+      }
+      Thread.sleep(200);
+      try (InputStream is = store.readFile("grp/s0.ts")) {
+        store.cleanup();
+        Assert.assertFalse(Files.exists(folder.resolve("grp")));
+        // the reader keeps the deleted log mapped.
+        Assert.assertEquals(8192, store.getRetiredMappedBytes());
+        Assert.assertEquals(1, is.read());
+      }
+      for (int i = 0; i < 100 && store.getRetiredMappedBytes() > 0; i++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(0, store.getRetiredMappedBytes());
+    }
+  }
+
+  @Test
+  public void testForceOnCommit() throws IOException {
+    Path folder = Files.createTempDirectory("test");
+    try (SegmentLogFileStore store = new SegmentLogFileStore(folder, 8192, 10, TimeUnit.SECONDS, true)) {
+      try (OutputStream os = store.storeFile("grp/s0.ts")) {
+        os.write(new byte[] {1, 2, 3});
+      }
+    }
+    try (SegmentLogFileStore store = new SegmentLogFileStore(folder, 8192, 10, TimeUnit.SECONDS)) {
+      assertContent(store, "grp/s0.ts", new byte[] {1, 2, 3});
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLogSize() throws IOException {
+    new SegmentLogFileStore(Files.createTempDirectory("test"), 0, 10, TimeUnit.SECONDS).close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPath() throws IOException {
+    try (SegmentLogFileStore store = new SegmentLogFileStore(Files.createTempDirectory("test"), 8192,
+            10, TimeUnit.SECONDS)) {
+      store.storeFile("../someFile.ts");
+    }
+  }
+
+  private static List<String> list(final FileStore store, final String path) throws IOException {
+    List<String> names = new ArrayList<>();
+    try (CloseableIterable<String> files = store.list(path)) {
+      files.forEach(names::add);
+    }
+    return names;
+  }
+
+  private static void assertContent(final FileStore store, final String filePath, final byte[] expected)
+          throws IOException {
+    Assert.assertEquals(expected.length, store.getFileInfo(filePath).getSize());
+    try (SeekableByteChannel ch = store.readChannel(filePath)) {
+      ByteBuffer buff = ByteBuffer.allocate(expected.length + 1);
+      while (ch.read(buff) > 0) {
+        // read all
+      }
+      Assert.assertArrayEquals(expected, Arrays.copyOf(buff.array(), buff.position()));
+    }
+    try (InputStream is = store.readFile(filePath)) {
+      Assert.assertEquals(expected[0], is.read());
+    }
+  }
+
+}
@@ -0,0 +1,24 @@
+package org.spf4j.demo.resources.live;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class SegmentPrefetcherTest {
+
+  @Test
+  public void testLastUris() {
+    String playlist = "#EXTM3U\n#EXT-X-TARGETDURATION:10\n#EXT-X-MEDIA-SEQUENCE:10\n"
+            + "#EXTINF:10.000000,\ns0.ts\n"
+            + "#EXT-X-DISCONTINUITY\n#EXTINF:10.000000,\ns1.ts\n"
+            + "#EXTINF:10.000000,\r\ns2.ts\r\n";
+    Assert.assertEquals(Arrays.asList("s1.ts", "s2.ts"), SegmentPrefetcher.lastUris(playlist, 2));
+    Assert.assertEquals(Arrays.asList("s0.ts", "s1.ts", "s2.ts"), SegmentPrefetcher.lastUris(playlist, 5));
+    Assert.assertEquals(Collections.emptyList(), SegmentPrefetcher.lastUris("#EXTM3U\n", 2));
+  }
+
+}